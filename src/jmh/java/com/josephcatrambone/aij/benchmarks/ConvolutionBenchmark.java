@@ -0,0 +1,132 @@
+package com.josephcatrambone.aij.benchmarks;
+
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.nodes.Convolution2DNode;
+import com.josephcatrambone.aij.nodes.InputNode;
+import com.josephcatrambone.aij.nodes.Node;
+import com.josephcatrambone.aij.nodes.VariableNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Convolution2DNode forward and reverse on a square image with a bank of square kernels, for each algorithm.
+ * This is where the AUTO thresholds in Convolution2DNode come from: Winograd beats im2col at 3x3, and FFT overtakes
+ * im2col somewhere around 11x11 for a single kernel and 21x21 for a bank of eight.
+ * The conversational benchmarks run the encoder layers of ConversationalConvnet, whose kernels span the whole width of
+ * their input at a large stride.  AUTO leaves those on DIRECT, which beats FFT by two orders of magnitude there.
+ * Algorithms that don't apply to a configuration (Winograd on a 9x9) quietly run DIRECT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvolutionBenchmark {
+	@Param({"28", "64", "256"})
+	public int imageSize;
+
+	@Param({"3", "5", "9", "11", "15", "21"})
+	public int kernelSize;
+
+	@Param({"1", "8"})
+	public int kernelCount;
+
+	@Param({"1"})
+	public int stride;
+
+	@Param({"DIRECT", "WINOGRAD", "FFT"})
+	public String algorithm;
+
+	Convolution2DNode node;
+	Matrix[] forwardArgs;
+	Matrix adjoint;
+
+	private static Matrix randomMatrix(Random random, int rows, int columns) {
+		Matrix m = new Matrix(rows, columns);
+		for(int i=0; i < m.data.length; i++) {
+			m.data[i] = random.nextGaussian();
+		}
+		return m;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1234);
+		InputNode input = new InputNode(imageSize, imageSize);
+		Node[] kernels = new Node[kernelCount];
+		forwardArgs = new Matrix[1+kernelCount];
+		forwardArgs[0] = randomMatrix(random, imageSize, imageSize);
+		for(int i=0; i < kernelCount; i++) {
+			forwardArgs[1+i] = randomMatrix(random, kernelSize, kernelSize);
+			kernels[i] = new VariableNode(forwardArgs[1+i]);
+		}
+		node = new Convolution2DNode(input, kernels, stride, stride);
+		node.algorithm = Convolution2DNode.Algorithm.valueOf(algorithm);
+		adjoint = randomMatrix(random, node.rows, node.columns);
+	}
+
+	@Benchmark
+	public Matrix forward() {
+		return node.forward(forwardArgs);
+	}
+
+	@Benchmark
+	public Matrix[] reverse() {
+		return node.reverse(forwardArgs, adjoint);
+	}
+
+	/***
+	 * The two encoder layers of ConversationalConvnet: a 256x41 sentence, then its 128x64 encoding.
+	 */
+	@State(Scope.Thread)
+	public static class ConversationalLayer {
+		// inputRows x inputColumns, kernelRows x kernelColumns x kernelCount, rowStride x columnStride.
+		@Param({"256x41 3x41x32 2x20", "128x64 32x64x64 16x32"})
+		public String shape;
+
+		@Param({"DIRECT", "FFT"})
+		public String algorithm;
+
+		Convolution2DNode node;
+		Matrix[] forwardArgs;
+		Matrix adjoint;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			String[] dims = shape.split("[ x]");
+			int inputRows = Integer.parseInt(dims[0]);
+			int inputColumns = Integer.parseInt(dims[1]);
+			int kernelRows = Integer.parseInt(dims[2]);
+			int kernelColumns = Integer.parseInt(dims[3]);
+			int kernelCount = Integer.parseInt(dims[4]);
+			int rowStride = Integer.parseInt(dims[5]);
+			int columnStride = Integer.parseInt(dims[6]);
+
+			Random random = new Random(1234);
+			InputNode input = new InputNode(inputRows, inputColumns);
+			Node[] kernels = new Node[kernelCount];
+			forwardArgs = new Matrix[1+kernelCount];
+			forwardArgs[0] = randomMatrix(random, inputRows, inputColumns);
+			for(int i=0; i < kernelCount; i++) {
+				forwardArgs[1+i] = randomMatrix(random, kernelRows, kernelColumns);
+				kernels[i] = new VariableNode(forwardArgs[1+i]);
+			}
+			node = new Convolution2DNode(input, kernels, rowStride, columnStride);
+			node.algorithm = Convolution2DNode.Algorithm.valueOf(algorithm);
+			adjoint = randomMatrix(random, node.rows, node.columns);
+		}
+	}
+
+	@Benchmark
+	public static Matrix conversationalForward(ConversationalLayer layer) {
+		return layer.node.forward(layer.forwardArgs);
+	}
+
+	@Benchmark
+	public static Matrix[] conversationalReverse(ConversationalLayer layer) {
+		return layer.node.reverse(layer.forwardArgs, layer.adjoint);
+	}
+}
@@ -0,0 +1,133 @@
+package com.josephcatrambone.aij.benchmarks;
+
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.nodes.Convolution2DNode;
+import com.josephcatrambone.aij.nodes.Deconvolution2DNode;
+import com.josephcatrambone.aij.nodes.InputNode;
+import com.josephcatrambone.aij.nodes.Node;
+import com.josephcatrambone.aij.nodes.VariableNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deconvolution2DNode forward and reverse for the direct and FFT algorithms.
+ * This is where Deconvolution2DNode.FFT_KERNEL_AREA_THRESHOLD comes from: at stride 1 the FFT catches the direct
+ * loops around 15x15 to 17x17, and every step of stride pushes that out since the FFT grid grows with the output.
+ * The conversational benchmarks run the decoder layers of ConversationalConvnet, which stride 16x32 and 2x20.
+ * The FFT takes seconds per call on those, so AUTO leaves them on DIRECT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeconvolutionBenchmark {
+	@Param({"28", "64", "256"})
+	public int imageSize;
+
+	@Param({"5", "9", "15", "21"})
+	public int kernelSize;
+
+	@Param({"1", "8"})
+	public int kernelCount;
+
+	@Param({"1", "2"})
+	public int stride;
+
+	@Param({"DIRECT", "FFT"})
+	public String algorithm;
+
+	Deconvolution2DNode node;
+	Matrix[] forwardArgs;
+	Matrix adjoint;
+
+	private static Matrix randomMatrix(Random random, int rows, int columns) {
+		Matrix m = new Matrix(rows, columns);
+		for(int i=0; i < m.data.length; i++) {
+			m.data[i] = random.nextGaussian();
+		}
+		return m;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1234);
+		// Shaped like the output of a convolution with the same kernel bank, which interleaves the kernels by column.
+		InputNode input = new InputNode(imageSize, imageSize*kernelCount);
+		Node[] kernels = new Node[kernelCount];
+		forwardArgs = new Matrix[1+kernelCount];
+		forwardArgs[0] = randomMatrix(random, imageSize, imageSize*kernelCount);
+		for(int i=0; i < kernelCount; i++) {
+			forwardArgs[1+i] = randomMatrix(random, kernelSize, kernelSize);
+			kernels[i] = new VariableNode(forwardArgs[1+i]);
+		}
+		node = new Deconvolution2DNode(input, kernels, stride, stride);
+		node.algorithm = Convolution2DNode.Algorithm.valueOf(algorithm);
+		adjoint = randomMatrix(random, node.rows, node.columns);
+	}
+
+	@Benchmark
+	public Matrix forward() {
+		return node.forward(forwardArgs);
+	}
+
+	@Benchmark
+	public Matrix[] reverse() {
+		return node.reverse(forwardArgs, adjoint);
+	}
+
+	/***
+	 * The two decoder layers of ConversationalConvnet, which undo its encoder's convolutions.
+	 */
+	@State(Scope.Thread)
+	public static class ConversationalLayer {
+		// inputRows x inputColumns, kernelRows x kernelColumns x kernelCount, rowStride x columnStride.
+		@Param({"8x128 32x64x64 16x32", "128x64 3x41x32 2x20"})
+		public String shape;
+
+		@Param({"DIRECT", "FFT"})
+		public String algorithm;
+
+		Deconvolution2DNode node;
+		Matrix[] forwardArgs;
+		Matrix adjoint;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			String[] dims = shape.split("[ x]");
+			int inputRows = Integer.parseInt(dims[0]);
+			int inputColumns = Integer.parseInt(dims[1]);
+			int kernelRows = Integer.parseInt(dims[2]);
+			int kernelColumns = Integer.parseInt(dims[3]);
+			int kernelCount = Integer.parseInt(dims[4]);
+			int rowStride = Integer.parseInt(dims[5]);
+			int columnStride = Integer.parseInt(dims[6]);
+
+			Random random = new Random(1234);
+			InputNode input = new InputNode(inputRows, inputColumns);
+			Node[] kernels = new Node[kernelCount];
+			forwardArgs = new Matrix[1+kernelCount];
+			forwardArgs[0] = randomMatrix(random, inputRows, inputColumns);
+			for(int i=0; i < kernelCount; i++) {
+				forwardArgs[1+i] = randomMatrix(random, kernelRows, kernelColumns);
+				kernels[i] = new VariableNode(forwardArgs[1+i]);
+			}
+			node = new Deconvolution2DNode(input, kernels, rowStride, columnStride);
+			node.algorithm = Convolution2DNode.Algorithm.valueOf(algorithm);
+			adjoint = randomMatrix(random, node.rows, node.columns);
+		}
+	}
+
+	@Benchmark
+	public static Matrix conversationalForward(ConversationalLayer layer) {
+		return layer.node.forward(layer.forwardArgs);
+	}
+
+	@Benchmark
+	public static Matrix[] conversationalReverse(ConversationalLayer layer) {
+		return layer.node.reverse(layer.forwardArgs, layer.adjoint);
+	}
+}
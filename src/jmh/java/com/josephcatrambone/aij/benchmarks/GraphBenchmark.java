@@ -0,0 +1,73 @@
+package com.josephcatrambone.aij.benchmarks;
+
+import com.josephcatrambone.aij.Graph;
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.nodes.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward and reverse passes through a two layer MLP built directly on Graph.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+	@Param({"64", "512"})
+	public int hiddenSize;
+
+	@Param({"1", "32"})
+	public int batchSize;
+
+	final int inputSize = 784;
+	final int outputSize = 10;
+
+	Graph graph;
+	Node loss;
+	HashMap<Node, Matrix> inputFeed;
+
+	private Matrix randomMatrix(Random random, int rows, int columns) {
+		Matrix m = new Matrix(rows, columns);
+		for(int i=0; i < m.data.length; i++) {
+			m.data[i] = random.nextGaussian()*0.1;
+		}
+		return m;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1234);
+		InputNode x = new InputNode(batchSize, inputSize);
+		InputNode y = new InputNode(batchSize, outputSize);
+		VariableNode w1 = new VariableNode(randomMatrix(random, inputSize, hiddenSize));
+		VariableNode b1 = new VariableNode(randomMatrix(random, batchSize, hiddenSize));
+		VariableNode w2 = new VariableNode(randomMatrix(random, hiddenSize, outputSize));
+		VariableNode b2 = new VariableNode(randomMatrix(random, batchSize, outputSize));
+		Node hidden = new TanhNode(new AddNode(new MatrixMultiplyNode(x, w1), b1));
+		Node out = new SigmoidNode(new AddNode(new MatrixMultiplyNode(hidden, w2), b2));
+		loss = new CollapseSumNode(new PowerNode(new SubtractNode(out, y), 2.0));
+
+		graph = new Graph();
+		graph.addNode(loss);
+
+		inputFeed = new HashMap<>();
+		inputFeed.put(x, randomMatrix(random, batchSize, inputSize));
+		inputFeed.put(y, randomMatrix(random, batchSize, outputSize));
+	}
+
+	@Benchmark
+	public Matrix[] forward() {
+		return graph.forward(inputFeed);
+	}
+
+	@Benchmark
+	public Matrix[] getGradient() {
+		return graph.getGradient(inputFeed, null, loss);
+	}
+}
@@ -0,0 +1,88 @@
+package com.josephcatrambone.aij.benchmarks;
+
+import com.josephcatrambone.aij.Matrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Core Matrix kernels on square size x size operands.
+ * For matmul, GFLOP/s = 2*size^3 * (ops/s) / 1e9.
+ * The element-wise benchmarks come in lambda and dedicated-kernel flavors so the gc.alloc.rate.norm column from the
+ * GC profiler shows which ones allocate per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark {
+	@Param({"64", "128", "256", "512", "1024", "2048"})
+	public int size;
+
+	Matrix a;
+	Matrix b;
+	Matrix accumulator;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1234);
+		a = new Matrix(size, size);
+		b = new Matrix(size, size);
+		accumulator = new Matrix(size, size);
+		for(int i=0; i < a.data.length; i++) {
+			a.data[i] = random.nextGaussian();
+			b.data[i] = random.nextGaussian();
+		}
+	}
+
+	@Benchmark
+	public Matrix matmul() {
+		return a.matmul(b);
+	}
+
+	@Benchmark
+	public Matrix matmulTransposeLeft() {
+		return a.matmulTransposeLeft(b);
+	}
+
+	@Benchmark
+	public Matrix matmulTransposeRight() {
+		return a.matmulTransposeRight(b);
+	}
+
+	@Benchmark
+	public Matrix transpose() {
+		return a.transpose();
+	}
+
+	@Benchmark
+	public Matrix elementOpUnary() {
+		return a.elementOp(x -> 1.0/(1.0+Math.exp(-x)));
+	}
+
+	@Benchmark
+	public Matrix elementOpBinary() {
+		return a.elementOp(b, (x, y) -> x*y);
+	}
+
+	@Benchmark
+	public Matrix elementOpInPlace() {
+		accumulator.elementOp_i(b, (x, y) -> x + 1e-9*y);
+		return accumulator;
+	}
+
+	@Benchmark
+	public Matrix addInPlace() {
+		accumulator.add_i(b);
+		return accumulator;
+	}
+
+	@Benchmark
+	public Matrix axpyInPlace() {
+		accumulator.axpy_i(1e-9, b);
+		return accumulator;
+	}
+}
@@ -0,0 +1,83 @@
+package com.josephcatrambone.aij.benchmarks;
+
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.models.LSTM;
+import com.josephcatrambone.aij.models.Sequential;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end model costs: one fitBatch step on an MNIST-shaped dense network and one LSTM predictStream window.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainingBenchmark {
+
+	@State(Scope.Thread)
+	public static class SequentialState {
+		@Param({"1", "10", "32"})
+		public int batchSize;
+
+		Sequential model;
+		double[][] x;
+		double[][] y;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Random random = new Random(1234);
+			model = new Sequential(1, 784);
+			model.addDenseLayer(64, Sequential.Activation.RELU);
+			model.addDenseLayer(32, Sequential.Activation.TANH);
+			model.addDenseLayer(10, Sequential.Activation.SIGMOID);
+			x = new double[batchSize][784];
+			y = new double[batchSize][10];
+			for(int i=0; i < batchSize; i++) {
+				for(int j=0; j < 784; j++) {
+					x[i][j] = random.nextDouble();
+				}
+				y[i][random.nextInt(10)] = 1.0;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class LSTMState {
+		@Param({"64", "256"})
+		public int hiddenSize;
+
+		@Param({"32"})
+		public int sequenceLength;
+
+		final int inputSize = 127;
+
+		LSTM lstm;
+		Matrix[] sequence;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Random random = new Random(1234);
+			lstm = new LSTM(inputSize, hiddenSize);
+			sequence = new Matrix[sequenceLength];
+			for(int i=0; i < sequenceLength; i++) {
+				sequence[i] = new Matrix(1, inputSize);
+				sequence[i].data[random.nextInt(inputSize)] = 1.0;
+			}
+		}
+	}
+
+	@Benchmark
+	public Sequential sequentialFitBatch(SequentialState state) {
+		state.model.fitBatch(state.x, state.y, 0.01, Sequential.Loss.SQUARED);
+		return state.model;
+	}
+
+	@Benchmark
+	public Matrix[] lstmPredictStream(LSTMState state) {
+		return state.lstm.predictStream(state.sequence);
+	}
+}
@@ -0,0 +1,96 @@
+package com.josephcatrambone.aij;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A pool of double[] buffers, bucketed by exact length.
+ * A graph allocates the same handful of sizes on every step, so once the pool has warmed up to the peak working set
+ * acquire() stops allocating entirely.  The arena never shrinks; drop it to give the memory back.
+ *
+ * Not thread safe.  Each thread should have its own arena (usually via its own ExecutionContext).
+ */
+public class BufferArena {
+	// Free lists by buffer length, in an open-addressed table keyed on the raw int so acquire and release never box.
+	// A slot is in use when its list isn't null.  Kept at most half full.
+	private int[] lengths = new int[16];
+	private ArrayDeque<?>[] freeLists = new ArrayDeque<?>[16];
+	private int listCount = 0;
+	private long allocatedBytes = 0;
+
+	/***
+	 * Get a zeroed buffer of exactly the given length.
+	 */
+	public double[] acquire(int length) {
+		ArrayDeque<double[]> free = freeList(length, false);
+		if(free == null || free.isEmpty()) {
+			allocatedBytes += 8L*length;
+			return new double[length];
+		}
+		double[] buffer = free.pop();
+		Arrays.fill(buffer, 0.0);
+		return buffer;
+	}
+
+	/***
+	 * Hand a buffer back to the pool.  The caller must not touch it afterwards.
+	 */
+	public void release(double[] buffer) {
+		freeList(buffer.length, true).push(buffer);
+	}
+
+	/***
+	 * The total size of every buffer this arena has ever created.  Stops growing once the arena is warm.
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/***
+	 * Forget all pooled buffers.  Buffers currently handed out are unaffected.
+	 */
+	public void clear() {
+		Arrays.fill(freeLists, null);
+		listCount = 0;
+	}
+
+	// The free list for buffers of this length.  If there isn't one yet, makes it or returns null.
+	@SuppressWarnings("unchecked")
+	private ArrayDeque<double[]> freeList(int length, boolean create) {
+		int slot = slotFor(length);
+		if(freeLists[slot] == null) {
+			if(!create) { return null; }
+			if(2*(listCount+1) > freeLists.length) {
+				grow();
+				slot = slotFor(length);
+			}
+			lengths[slot] = length;
+			freeLists[slot] = new ArrayDeque<double[]>();
+			listCount++;
+		}
+		return (ArrayDeque<double[]>)freeLists[slot];
+	}
+
+	// The slot holding this length, or the empty one where it would go.
+	private int slotFor(int length) {
+		int mask = freeLists.length-1;
+		int slot = (length*0x9E3779B9 >>> 16) & mask;
+		while(freeLists[slot] != null && lengths[slot] != length) {
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldLengths = lengths;
+		ArrayDeque<?>[] oldLists = freeLists;
+		lengths = new int[2*oldLengths.length];
+		freeLists = new ArrayDeque<?>[2*oldLists.length];
+		for(int i=0; i < oldLists.length; i++) {
+			if(oldLists[i] == null) { continue; }
+			int slot = slotFor(oldLengths[i]);
+			lengths[slot] = oldLengths[i];
+			freeLists[slot] = oldLists[i];
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.josephcatrambone.aij;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Library-wide thread pool for splitting a single large operation (like a big matmul) across cores.
+ * This is deliberately NOT the common pool so it doesn't compete with parallel streams in user code or fitBatch.
+ * The size comes from the 'aij.threads' system property and defaults to the number of available processors.
+ */
+public final class ComputePool {
+	public static final String THREAD_COUNT_PROPERTY = "aij.threads";
+	// Roughly how many multiply-adds a chunk of a parallelFor should do before it's worth handing to another thread.
+	public static int MIN_CHUNK_WORK = 32*32*32;
+
+	private static volatile int threadCount = Integer.getInteger(THREAD_COUNT_PROPERTY, Runtime.getRuntime().availableProcessors());
+	private static volatile ForkJoinPool pool = null;
+
+	private ComputePool() {}
+
+	public static int getThreadCount() {
+		return threadCount;
+	}
+
+	/***
+	 * Resize the compute pool.  Work already running on the old pool is allowed to finish.
+	 * The old pool is never shut down, since another thread may have just fetched it and be about to invoke on it.
+	 * Its workers exit on their own once they've been idle for a while.
+	 * @param threads The number of worker threads.  1 disables intra-op parallelism entirely.
+	 */
+	public static synchronized void setThreadCount(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Compute pool needs at least one thread.  Got " + threads);
+		}
+		if(threads == threadCount) { return; }
+		threadCount = threads;
+		pool = null;
+	}
+
+	public static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			pool = new ForkJoinPool(threadCount, Worker::new, null, false);
+		}
+		return pool;
+	}
+
+	// True on a worker of the compute pool, current or replaced.  Work there is already split, so it runs inline.
+	private static boolean onComputeWorker() {
+		return Thread.currentThread() instanceof Worker;
+	}
+
+	/***
+	 * True if it's worth splitting work across the pool from the calling thread.
+	 * If we're already inside some other fork/join pool (a parallel stream, say) the caller is parallel at a coarser
+	 * grain, so splitting again would only oversubscribe the machine.
+	 */
+	public static boolean shouldParallelize() {
+		if(getThreadCount() < 2) { return false; }
+		if(ForkJoinTask.inForkJoinPool()) {
+			return onComputeWorker();
+		}
+		return true;
+	}
+
+	/***
+	 * Run the task on the compute pool, or inline if we're already on one of its workers.
+	 */
+	public static void invoke(ForkJoinTask<?> task) {
+		if(onComputeWorker()) {
+			task.invoke();
+		} else {
+			getPool().invoke(task);
+		}
+	}
+
+	/***
+	 * A loop body over a half-open index range.  Each call gets a disjoint range, so bodies which only write to
+	 * state owned by their indices need no synchronization.
+	 */
+	public interface RangeTask {
+		void run(int start, int end);
+	}
+
+	/***
+	 * Run body over [start, end), split into chunks of at least 'grain' indices across the pool.
+	 * Falls back to one inline call when the range is too small or shouldParallelize() says no.
+	 */
+	public static void parallelFor(int start, int end, int grain, RangeTask body) {
+		grain = Math.max(1, grain);
+		if(end-start <= grain || !shouldParallelize()) {
+			body.run(start, end);
+			return;
+		}
+		invoke(new RangeAction(start, end, grain, body));
+	}
+
+	/***
+	 * The grain to pass parallelFor when each index costs workPerIndex multiply-adds.
+	 */
+	public static int grainFor(long workPerIndex) {
+		return (int)Math.max(1, MIN_CHUNK_WORK/Math.max(1, workPerIndex));
+	}
+
+	private static class Worker extends ForkJoinWorkerThread {
+		Worker(ForkJoinPool pool) {
+			super(pool);
+			setDaemon(true);
+		}
+	}
+
+	private static class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int start, end, grain;
+		final RangeTask body;
+
+		RangeAction(int start, int end, int grain, RangeTask body) {
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if(end-start <= grain) {
+				body.run(start, end);
+			} else {
+				int mid = start + (end-start)/2;
+				invokeAll(new RangeAction(start, mid, grain, body), new RangeAction(mid, end, grain, body));
+			}
+		}
+	}
+}
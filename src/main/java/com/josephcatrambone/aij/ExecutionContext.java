@@ -0,0 +1,243 @@
+package com.josephcatrambone.aij;
+
+import com.josephcatrambone.aij.nodes.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Per-thread scratch state for running an ExecutionPlan without allocating on every step.
+ * Nodes which support it ask the context for their output buffers (allocate) instead of calling new Matrix.
+ * Buffers come out of a BufferArena and go back into it when the plan knows they're dead.
+ *
+ * The context is also where a run keeps anything a node needs to carry from forward to reverse (Dropout's mask, say)
+ * and the random stream for nodes that sample.  Nodes hold no per-run state of their own, so one graph can be run from
+ * any number of threads at once as long as each has its own context.
+ *
+ * The rule for callers: anything returned from a plan run on a context (results, gradients) is only valid until the
+ * next run on the same context.  Copy out anything you need to keep.
+ *
+ * Not thread safe.  Use one context per thread.
+ */
+public class ExecutionContext {
+	/***
+	 * A context with no pool.  allocate() is just new Matrix, and nothing is tracked.  Safe to share: node state and
+	 * the random stream are kept per thread.
+	 */
+	public static final ExecutionContext UNPOOLED = new ExecutionContext(null, true);
+
+	// Every context's random stream is seeded from here, so no two contexts (or threads) share a sequence.
+	private static final SplittableRandom seedSource = new SplittableRandom();
+
+	private final BufferArena arena;
+
+	// Node state and the random stream.  Only UNPOOLED uses the thread local, everything else has its own.
+	private final ThreadLocal<RunState> sharedState;
+	private final RunState ownState;
+
+	private boolean training = true;
+
+	// Every pooled buffer handed out since the last reset, mapped to the number of live results that point at it.
+	// Keyed by the backing array rather than the Matrix because nodes like Reshape share data between matrices.
+	private final IdentityHashMap<double[], Integer> liveBuffers = new IdentityHashMap<>();
+
+	// Buffers allocated by reverse(), which only have to live until their adjoints are accumulated.
+	private final ArrayList<Matrix> scratch = new ArrayList<>();
+	private boolean collectingScratch = false;
+
+	// Reused across runs so the plan doesn't allocate its bookkeeping arrays either.
+	private Matrix[] results = new Matrix[0];
+	private Matrix[] gradients = new Matrix[0];
+
+	public ExecutionContext() {
+		this(new BufferArena());
+	}
+
+	public ExecutionContext(BufferArena arena) {
+		this(arena, false);
+	}
+
+	private ExecutionContext(BufferArena arena, boolean perThread) {
+		this.arena = arena;
+		this.sharedState = perThread ? ThreadLocal.withInitial(RunState::new) : null;
+		this.ownState = perThread ? null : new RunState();
+	}
+
+	private static final class RunState {
+		final IdentityHashMap<Node, Object> nodeState = new IdentityHashMap<>();
+		Random random;
+	}
+
+	private RunState state() {
+		return ownState != null ? ownState : sharedState.get();
+	}
+
+	private static long nextSeed() {
+		synchronized(seedSource) {
+			return seedSource.nextLong();
+		}
+	}
+
+	public BufferArena getArena() {
+		return arena;
+	}
+
+	/***
+	 * True (the default) if runs on this context are training runs.  False for inference, where nodes like Dropout
+	 * pass their input straight through.
+	 */
+	public boolean isTraining() {
+		return training;
+	}
+
+	/***
+	 * Switch this context between training and inference mode.  UNPOOLED is shared, so it's always training.
+	 * @return Returns this context, for chaining.
+	 */
+	public ExecutionContext setTraining(boolean training) {
+		if(sharedState != null) {
+			throw new UnsupportedOperationException("Can't change the mode of the shared UNPOOLED context.  Make a new ExecutionContext.");
+		}
+		this.training = training;
+		return this;
+	}
+
+	/***
+	 * Get a zeroed rows x columns matrix.  Nodes should use this for their outputs in forward and reverse.
+	 */
+	public Matrix allocate(int rows, int columns) {
+		if(arena == null) {
+			return new Matrix(rows, columns);
+		}
+		Matrix m = new Matrix(rows, columns, arena.acquire(rows*columns));
+		if(collectingScratch) {
+			scratch.add(m);
+		} else {
+			liveBuffers.put(m.data, 0);
+		}
+		return m;
+	}
+
+	/***
+	 * Whatever node saved with setState during this run, or null.  Cleared at the start of every forward pass.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getState(Node node) {
+		return (T)state().nodeState.get(node);
+	}
+
+	/***
+	 * Keep a value for node until the next forward pass on this context.  Usually something forward computed that
+	 * reverse needs again.  Anything from allocate() is fine to keep here, since it lives just as long.
+	 */
+	public void setState(Node node, Object value) {
+		state().nodeState.put(node, value);
+	}
+
+	/***
+	 * The random stream for nodes that sample (Dropout, Random, Variational).
+	 * Each context gets its own, seeded independently, unless setSeed was called.  On UNPOOLED it's per thread.
+	 */
+	public Random getRandom() {
+		RunState s = state();
+		if(s.random == null) {
+			s.random = new Random(nextSeed());
+		}
+		return s.random;
+	}
+
+	/***
+	 * Restart this context's random stream from a fixed seed, so runs on it are reproducible.
+	 * On UNPOOLED this only affects the calling thread.
+	 */
+	public void setSeed(long seed) {
+		state().random = new Random(seed);
+	}
+
+	/***
+	 * Return every buffer handed out since the last reset to the pool and forget the node state.
+	 * Called at the start of each forward pass, which is what limits result lifetimes to one run.
+	 */
+	void reset() {
+		state().nodeState.clear();
+		if(arena == null) { return; }
+		for(double[] buffer : liveBuffers.keySet()) {
+			arena.release(buffer);
+		}
+		liveBuffers.clear();
+		releaseScratch();
+	}
+
+	Matrix[] getResultsArray(int size) {
+		if(arena == null) { return new Matrix[size]; }
+		if(results.length != size) {
+			results = new Matrix[size];
+		} else {
+			Arrays.fill(results, null);
+		}
+		return results;
+	}
+
+	Matrix[] getGradientsArray(int size) {
+		if(arena == null) { return new Matrix[size]; }
+		if(gradients.length != size) {
+			gradients = new Matrix[size];
+		} else {
+			Arrays.fill(gradients, null);
+		}
+		return gradients;
+	}
+
+	/***
+	 * Note that one more live result points at m's storage.  Does nothing for buffers this context doesn't own.
+	 */
+	void retain(Matrix m) {
+		Integer count = liveBuffers.get(m.data);
+		if(count != null) {
+			liveBuffers.put(m.data, count+1);
+		}
+	}
+
+	/***
+	 * Drop one reference to m's storage, returning it to the pool when nothing else points at it.
+	 */
+	void release(Matrix m) {
+		Integer count = liveBuffers.get(m.data);
+		if(count == null) { return; }
+		if(count <= 1) {
+			liveBuffers.remove(m.data);
+			arena.release(m.data);
+		} else {
+			liveBuffers.put(m.data, count-1);
+		}
+	}
+
+	void collectScratch(boolean collect) {
+		collectingScratch = collect && arena != null;
+	}
+
+	/***
+	 * If m is a scratch buffer, promote it to a live one so it survives releaseScratch.
+	 * @return True if m was scratch and is now owned by the caller.
+	 */
+	boolean adopt(Matrix m) {
+		for(int i=scratch.size()-1; i >= 0; i--) {
+			if(scratch.get(i) == m) {
+				scratch.remove(i);
+				liveBuffers.put(m.data, 1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void releaseScratch() {
+		for(int i=0; i < scratch.size(); i++) {
+			arena.release(scratch.get(i).data);
+		}
+		scratch.clear();
+	}
+}
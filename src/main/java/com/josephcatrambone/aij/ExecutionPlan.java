@@ -0,0 +1,546 @@
+package com.josephcatrambone.aij;
+
+import com.josephcatrambone.aij.nodes.InputNode;
+import com.josephcatrambone.aij.nodes.Node;
+import com.josephcatrambone.aij.nodes.VariableNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable, precompiled schedule for running part of a Graph.
+ * Produced by Graph.compile(outputs...).  All the work that Graph.forward used to do on every call (walking the node
+ * list, instanceof checks, pruning unused paths, building argument arrays) happens once here.
+ * Running a plan only looks up the input feed and calls forward/reverse on each step.
+ *
+ * A plan is safe to run from multiple threads at once.  Each thread gets its own set of argument arrays, and node
+ * state lives in the ExecutionContext (per thread for the unpooled overloads), never in the nodes.
+ * A plan is tied to the graph as it was when compiled.  Adding nodes to the graph after compiling means recompiling.
+ *
+ * A fused plan replaces chains of steps with single fused nodes (see Fusion).  The fused node takes the id of the last
+ * node in its chain, so results for the outputs land where they always do.  The nodes folded into it are never run:
+ * their results are null and they get no gradient.  They can't be used as wrt nodes for getGradient.
+ */
+public final class ExecutionPlan {
+	/*** The nodes that were requested when the plan was compiled.  Everything they depend on is included. */
+	public final Node[] outputs;
+
+	/*** True if the fusion pass ran over this plan.  See Graph.compileFused. */
+	public final boolean fused;
+
+	final int graphSize; // Results arrays are indexed by node id, so they're sized to the whole graph.
+	final Node[] graphNodes; // Snapshot of the graph's node list at compile time.
+	final Node[] steps; // Ancestors of the outputs in topological (id) order.  Includes the input nodes.
+	final int[] stepIds; // steps[i].id, cached.
+	final boolean[] stepIsInput; // True if steps[i] is read from the feed instead of computed.
+	final int[][] argumentIds; // argumentIds[i][j] is the id of the j-th input to steps[i].
+	final InputNode[] inputs; // The inputs this plan actually reads, in id order.
+	final int[][] releaseAfter; // Ids of the values which are dead once steps[i] has run.  Never includes outputs.
+	final boolean[] fusedAway; // Indexed by node id.  True for nodes folded into a fused step.
+
+	// Argument arrays are reused from call to call, but fit batch runs plans from many threads at once.
+	private final ThreadLocal<Matrix[][]> argumentBuffers;
+
+	// Gradient paths, keyed by [target, wrt...].
+	private final Map<List<Node>, GradientPath> gradientPaths = new ConcurrentHashMap<>();
+	// The wrt nodes for the default getGradient, keyed by target.
+	private final Map<Node, Node[]> targetVariables = new ConcurrentHashMap<>();
+
+	/**
+	 * The part of the plan the reverse pass has to visit to get d(target)/d(wrt) for a particular set of nodes.
+	 * A node is on the path if it depends on one of the wrt nodes and the target depends on it.
+	 * Anything else (inputs, constants, side branches like a prediction head next to a loss head) never has
+	 * reverse called on it and never gets a gradient allocated.
+	 */
+	public static final class GradientPath {
+		public final Node target;
+		final boolean[] onPath; // Indexed by node id.
+		final int[] reverseSteps; // Step indices to visit, in reverse order.
+		final int materializedCount;
+
+		GradientPath(ExecutionPlan plan, Node target, Node[] wrt) {
+			this.target = target;
+			boolean[] dependsOnWrt = new boolean[plan.graphSize];
+			for(Node n : wrt) {
+				dependsOnWrt[n.id] = true;
+			}
+			for(int i=0; i < plan.steps.length; i++) {
+				for(int id : plan.argumentIds[i]) {
+					if(dependsOnWrt[id]) {
+						dependsOnWrt[plan.stepIds[i]] = true;
+						break;
+					}
+				}
+			}
+			boolean[] feedsTarget = new boolean[plan.graphSize];
+			feedsTarget[target.id] = true;
+			for(int i=plan.steps.length-1; i >= 0; i--) {
+				if(!feedsTarget[plan.stepIds[i]]) { continue; }
+				for(int id : plan.argumentIds[i]) {
+					feedsTarget[id] = true;
+				}
+			}
+
+			onPath = new boolean[plan.graphSize];
+			int count = 0;
+			int stepCount = 0;
+			for(int id=0; id < plan.graphSize; id++) {
+				onPath[id] = dependsOnWrt[id] && feedsTarget[id];
+				if(onPath[id]) { count++; }
+			}
+			int[] stepsToVisit = new int[plan.steps.length];
+			for(int i=plan.steps.length-1; i >= 0; i--) {
+				if(!onPath[plan.stepIds[i]] || plan.stepIsInput[i]) { continue; }
+				for(int id : plan.argumentIds[i]) {
+					if(onPath[id]) {
+						stepsToVisit[stepCount++] = i;
+						break;
+					}
+				}
+			}
+			reverseSteps = Arrays.copyOf(stepsToVisit, stepCount);
+			materializedCount = count;
+		}
+
+		/*** True if the reverse pass will produce a gradient for this node. */
+		public boolean isMaterialized(Node n) {
+			return n.id >= 0 && n.id < onPath.length && onPath[n.id];
+		}
+
+		/*** The number of gradients the reverse pass produces, including the target's own. */
+		public int getMaterializedCount() {
+			return materializedCount;
+		}
+
+		/*** The number of nodes whose reverse will be called. */
+		public int getReverseStepCount() {
+			return reverseSteps.length;
+		}
+	}
+
+	ExecutionPlan(Graph graph, Node[] outputs) {
+		this(graph, outputs, false);
+	}
+
+	/***
+	 * @param fuse If set, run the fusion pass over the steps.  See Graph.compileFused.
+	 */
+	ExecutionPlan(Graph graph, Node[] outputs, boolean fuse) {
+		this.graphSize = graph.nodes.size();
+		this.graphNodes = graph.nodes.toArray(new Node[graphSize]);
+		this.outputs = Arrays.copyOf(outputs, outputs.length);
+
+		// Mark everything the outputs depend on.  An empty output list means 'the whole graph'.
+		// This is also where the graph gets validated, since addNode doesn't check anything unless it's strict.
+		boolean[] live = new boolean[graphSize];
+		if(outputs.length == 0) {
+			graph.validate();
+			Arrays.fill(live, true);
+		} else {
+			int[] stack = new int[graphSize];
+			int stackSize = 0;
+			for(Node out : outputs) {
+				if(out.id < 0 || out.id >= graphSize || graph.nodes.get(out.id) != out) {
+					throw new IllegalArgumentException("Cannot compile a plan for node '" + out.name + "' because it has not been added to this graph.");
+				}
+				if(!live[out.id]) {
+					live[out.id] = true;
+					stack[stackSize++] = out.id;
+				}
+			}
+			while(stackSize > 0) {
+				Node n = graph.nodes.get(stack[--stackSize]);
+				graph.checkInputs(n);
+				for(Node inp : n.inputs) {
+					if(!live[inp.id]) {
+						live[inp.id] = true;
+						stack[stackSize++] = inp.id;
+					}
+				}
+			}
+		}
+
+		// Node ids are assigned in dependency order, so sorting the live set by id is a topological sort.
+		int liveCount = 0;
+		for(int i=0; i < graphSize; i++) {
+			if(live[i]) { liveCount++; }
+		}
+		Node[] liveNodes = new Node[liveCount];
+		liveCount = 0;
+		for(int i=0; i < graphSize; i++) {
+			if(live[i]) {
+				liveNodes[liveCount++] = graph.nodes.get(i);
+			}
+		}
+		boolean[] isOutput = new boolean[graphSize];
+		for(Node out : outputs) {
+			isOutput[out.id] = true;
+		}
+		this.fused = fuse && outputs.length > 0;
+		if(this.fused) {
+			liveNodes = Fusion.fuse(liveNodes, isOutput);
+		}
+
+		int stepCount = liveNodes.length;
+		int inputCount = 0;
+		for(Node n : liveNodes) {
+			if(n instanceof InputNode) {
+				inputCount++;
+			}
+		}
+		steps = liveNodes;
+		stepIds = new int[stepCount];
+		stepIsInput = new boolean[stepCount];
+		argumentIds = new int[stepCount][];
+		inputs = new InputNode[inputCount];
+		int input = 0;
+		for(int step=0; step < stepCount; step++) {
+			Node n = steps[step];
+			stepIds[step] = n.id;
+			live[n.id] = false;
+			stepIsInput[step] = n instanceof InputNode;
+			if(stepIsInput[step]) {
+				inputs[input++] = (InputNode)n;
+				argumentIds[step] = new int[0];
+			} else {
+				argumentIds[step] = new int[n.inputs.length];
+				for(int j=0; j < n.inputs.length; j++) {
+					argumentIds[step][j] = n.inputs[j].id;
+				}
+			}
+		}
+		fusedAway = live; // Whatever's left live wasn't claimed by a step.
+
+		// Liveness: a value is dead after the last step which reads it, unless it's one of the outputs.
+		int[] lastUse = new int[graphSize];
+		Arrays.fill(lastUse, -1);
+		for(int i=0; i < stepCount; i++) {
+			for(int id : argumentIds[i]) {
+				lastUse[id] = i;
+			}
+		}
+		int[] releaseCounts = new int[stepCount];
+		for(int id=0; id < graphSize; id++) {
+			if(lastUse[id] != -1 && !isOutput[id] && outputs.length > 0) {
+				releaseCounts[lastUse[id]]++;
+			}
+		}
+		releaseAfter = new int[stepCount][];
+		for(int i=0; i < stepCount; i++) {
+			releaseAfter[i] = new int[releaseCounts[i]];
+			releaseCounts[i] = 0;
+		}
+		for(int id=0; id < graphSize; id++) {
+			if(lastUse[id] != -1 && !isOutput[id] && outputs.length > 0) {
+				releaseAfter[lastUse[id]][releaseCounts[lastUse[id]]++] = id;
+			}
+		}
+
+		argumentBuffers = ThreadLocal.withInitial(() -> {
+			Matrix[][] buffers = new Matrix[argumentIds.length][];
+			for(int i=0; i < buffers.length; i++) {
+				buffers[i] = new Matrix[argumentIds[i].length];
+			}
+			return buffers;
+		});
+	}
+
+	/***
+	 * The input nodes this plan reads from its feed, in the order expected by forward(Matrix...).
+	 * Inputs that can't affect the outputs are pruned and won't appear here.
+	 */
+	public InputNode[] getInputs() {
+		return Arrays.copyOf(inputs, inputs.length);
+	}
+
+	/*** The number of nodes this plan runs, including its inputs.  Fusion makes this smaller. */
+	public int getStepCount() {
+		return steps.length;
+	}
+
+	/***
+	 * Run the plan.
+	 * @param datafeed A map of input node -> value.  Only the inputs in getInputs() are read.
+	 * @return Returns an array indexed by node id.  Nodes outside the plan are null.
+	 */
+	public Matrix[] forward(Map<Node, Matrix> datafeed) {
+		ExecutionContext.UNPOOLED.reset();
+		Matrix[] results = new Matrix[graphSize];
+		for(int i=0; i < inputs.length; i++) {
+			Matrix value = datafeed.get(inputs[i]);
+			if(value == null || value.data == null) {
+				System.err.println("Compute graph variable undefined on forward pass: Name '" + inputs[i].name + "'");
+			}
+			results[inputs[i].id] = value;
+		}
+		run(results, null, false);
+		return results;
+	}
+
+	/***
+	 * Run the plan with pooled buffers, keeping every intermediate value for a following getGradient.
+	 * @param context Supplies the buffers.  Everything from the previous run on this context is recycled.
+	 * @param datafeed A map of input node -> value.
+	 * @return Returns an array indexed by node id, owned by the context and valid until its next run.
+	 */
+	public Matrix[] forward(ExecutionContext context, Map<Node, Matrix> datafeed) {
+		context.reset();
+		Matrix[] results = context.getResultsArray(graphSize);
+		feed(results, datafeed);
+		run(results, context, false);
+		return results;
+	}
+
+	/***
+	 * Run the plan for inference with pooled buffers.
+	 * Intermediate values are handed back to the pool as soon as their last consumer has run, so the working set is
+	 * the widest cut of the graph rather than the whole graph.
+	 * @return Returns an array indexed by node id, owned by the context.  Only the plan outputs are populated.
+	 */
+	public Matrix[] evaluate(ExecutionContext context, Map<Node, Matrix> datafeed) {
+		context.reset();
+		Matrix[] results = context.getResultsArray(graphSize);
+		feed(results, datafeed);
+		run(results, context, true);
+		return results;
+	}
+
+	private void feed(Matrix[] results, Map<Node, Matrix> datafeed) {
+		for(int i=0; i < inputs.length; i++) {
+			Matrix value = datafeed.get(inputs[i]);
+			if(value == null || value.data == null) {
+				System.err.println("Compute graph variable undefined on forward pass: Name '" + inputs[i].name + "'");
+			}
+			results[inputs[i].id] = value;
+		}
+	}
+
+	/***
+	 * Run the plan with positional inputs, skipping the map lookup entirely.
+	 * @param inputValues One matrix per entry of getInputs(), in the same order.
+	 * @return Returns an array indexed by node id.  Nodes outside the plan are null.
+	 */
+	public Matrix[] forward(Matrix... inputValues) {
+		if(inputValues.length != inputs.length) {
+			throw new IllegalArgumentException("Plan expects " + inputs.length + " inputs but got " + inputValues.length);
+		}
+		ExecutionContext.UNPOOLED.reset();
+		Matrix[] results = new Matrix[graphSize];
+		for(int i=0; i < inputs.length; i++) {
+			results[inputs[i].id] = inputValues[i];
+		}
+		run(results, null, false);
+		return results;
+	}
+
+	/***
+	 * Run the plan and return the raw values of the first output.
+	 * This is the fast path behind Graph.getOutput.
+	 */
+	public double[] getOutput(Map<Node, double[]> datafeed) {
+		ExecutionContext.UNPOOLED.reset();
+		Matrix[] results = new Matrix[graphSize];
+		for(int i=0; i < inputs.length; i++) {
+			results[inputs[i].id] = new Matrix(inputs[i].rows, inputs[i].columns, datafeed.get(inputs[i]));
+		}
+		run(results, null, false);
+		return results[outputs[0].id].toDouble().data;
+	}
+
+	/***
+	 * Calculate the gradient of one of this plan's outputs with respect to every variable it depends on.
+	 * The same as the wrt overload on ExecutionContext.UNPOOLED with every VariableNode the target reaches as wrt, so
+	 * constant subtrees, inputs, and side branches never have reverse called.  Name an input as a wrt node to get
+	 * its gradient.
+	 * @param inputFeed A map of input node -> value.  Only used if fwd is null.
+	 * @param fwd The values from the forward pass if already computed.  If null, will compute them.
+	 * @param node The output with respect to which we want the gradient.  Must be one of the plan outputs.
+	 * @return Returns an array indexed by node id.  Only the variables and the nodes between them and the target are
+	 * set.  Everything else, the inputs included, is null.
+	 */
+	public Matrix[] getGradient(Map<Node, Matrix> inputFeed, Matrix[] fwd, Node node) {
+		checkIsOutput(node);
+		return getGradient(ExecutionContext.UNPOOLED, inputFeed, fwd, node, variablesUnder(node));
+	}
+
+	/***
+	 * Calculate gradients with pooled buffers.
+	 * Unlike the unpooled version, only nodes which actually receive an adjoint get a gradient.  Everything else,
+	 * including whole branches that don't lead to the target, is null and its reverse is never called.
+	 * @param context The context which ran the forward pass, if fwd came from one.
+	 * @param inputFeed A map of input node -> value.  Only used if fwd is null.
+	 * @param fwd The values from the forward pass.  If null, will run forward on the context first.
+	 * @param node The output with respect to which we want the gradient.  Must be one of the plan outputs.
+	 * @return Returns an array indexed by node id, owned by the context and valid until its next run.
+	 */
+	public Matrix[] getGradient(ExecutionContext context, Map<Node, Matrix> inputFeed, Matrix[] fwd, Node node) {
+		checkIsOutput(node);
+		if(fwd == null) {
+			fwd = forward(context, inputFeed);
+		}
+		Matrix[] grads = context.getGradientsArray(graphSize);
+		grads[node.id] = context.allocate(node.rows, node.columns);
+		grads[node.id].fill(1.0);
+		for(int i=steps.length-1; i >= 0; i--) {
+			if(stepIds[i] > node.id || stepIsInput[i] || grads[stepIds[i]] == null) { continue; }
+			reverseStep(context, i, fwd, grads, null);
+		}
+		return grads;
+	}
+
+	/***
+	 * Calculate only the gradients needed for d(node)/d(wrt).
+	 * The reverse pass is restricted to getGradientPath(node, wrt): no reverse calls or gradient buffers for
+	 * anything that isn't between a wrt node and the target.
+	 * @param context Supplies the buffers.  Pass ExecutionContext.UNPOOLED for freshly allocated results.
+	 * @param wrt The nodes we want gradients for, usually the trainable variables.
+	 * @return Returns an array indexed by node id.  Only entries for which the path says isMaterialized are set.
+	 */
+	public Matrix[] getGradient(ExecutionContext context, Map<Node, Matrix> inputFeed, Matrix[] fwd, Node node, Node... wrt) {
+		checkIsOutput(node);
+		GradientPath path = getGradientPath(node, wrt);
+		if(fwd == null) {
+			fwd = forward(context, inputFeed);
+		}
+		Matrix[] grads = context.getGradientsArray(graphSize);
+		grads[node.id] = context.allocate(node.rows, node.columns);
+		grads[node.id].fill(1.0);
+		for(int i : path.reverseSteps) {
+			reverseStep(context, i, fwd, grads, path.onPath);
+		}
+		return grads;
+	}
+
+	// Every VariableNode the target depends on, in id order.
+	private Node[] variablesUnder(Node target) {
+		Node[] variables = targetVariables.get(target);
+		if(variables == null) {
+			boolean[] feedsTarget = new boolean[graphSize];
+			feedsTarget[target.id] = true;
+			ArrayList<Node> found = new ArrayList<>();
+			for(int i=steps.length-1; i >= 0; i--) {
+				if(!feedsTarget[stepIds[i]]) { continue; }
+				if(steps[i] instanceof VariableNode) {
+					found.add(steps[i]);
+				}
+				for(int id : argumentIds[i]) {
+					feedsTarget[id] = true;
+				}
+			}
+			Collections.reverse(found);
+			variables = found.toArray(new Node[found.size()]);
+			targetVariables.put(target, variables);
+		}
+		return variables;
+	}
+
+	/***
+	 * Work out (or fetch the cached) set of nodes the reverse pass must visit for d(target)/d(wrt).
+	 * Throws IllegalArgumentException if the target or a wrt node isn't in the graph this plan was compiled from.
+	 */
+	public GradientPath getGradientPath(Node target, Node... wrt) {
+		Node[] key = new Node[wrt.length+1];
+		key[0] = target;
+		System.arraycopy(wrt, 0, key, 1, wrt.length);
+		List<Node> keyList = Arrays.asList(key);
+		GradientPath path = gradientPaths.get(keyList);
+		if(path == null) {
+			checkInGraph(target);
+			for(Node n : wrt) {
+				checkInGraph(n);
+				if(fusedAway[n.id]) {
+					throw new IllegalArgumentException("Cannot take a gradient with respect to node '" + n.name + "' because it was fused away.  Use an unfused plan.");
+				}
+			}
+			path = new GradientPath(this, target, wrt);
+			gradientPaths.put(keyList, path);
+		}
+		return path;
+	}
+
+	/***
+	 * The value to pass as argument j of step: as-is, or widened into a plain double matrix if it's in some other
+	 * storage the step can't read.
+	 */
+	private static Matrix argument(Node step, int j, Matrix value, ExecutionContext context) {
+		if(value == null || value.hasArrayData() || step.acceptsAnyStorage(j)) {
+			return value;
+		}
+		return value.toDouble((context == null ? ExecutionContext.UNPOOLED : context).allocate(value.rows, value.columns));
+	}
+
+	private void checkIsOutput(Node node) {
+		if(outputs.length > 0 && !Arrays.asList(outputs).contains(node)) {
+			throw new IllegalArgumentException("Node '" + node.name + "' is not an output of this plan.");
+		}
+	}
+
+	private void checkInGraph(Node node) {
+		if(node.id < 0 || node.id >= graphSize || graphNodes[node.id] != node) {
+			throw new IllegalArgumentException("Node '" + node.name + "' is not part of the graph this plan was compiled from.  Was it added to the graph?");
+		}
+	}
+
+	/***
+	 * Run reverse on steps[i] and accumulate into its inputs' gradients.
+	 * @param accumulateInto If not null, only inputs with accumulateInto[id] set receive their adjoint.
+	 */
+	private void reverseStep(ExecutionContext context, int i, Matrix[] fwd, Matrix[] grads, boolean[] accumulateInto) {
+		Matrix[][] args = argumentBuffers.get();
+		int[] ids = argumentIds[i];
+		Matrix[] stepArgs = args[i];
+		for(int j=0; j < ids.length; j++) {
+			stepArgs[j] = argument(steps[i], j, fwd[ids[j]], context);
+		}
+		context.collectScratch(true);
+		Matrix[] nextAdjoints = steps[i].reverse(stepArgs, grads[stepIds[i]], context);
+		context.collectScratch(false);
+		for(int j=0; j < ids.length; j++) {
+			stepArgs[j] = null;
+			if(accumulateInto != null && !accumulateInto[ids[j]]) { continue; }
+			Matrix adj = nextAdjoints[j];
+			if(grads[ids[j]] != null) {
+				grads[ids[j]].add_i(adj);
+			} else if(context.adopt(adj)) {
+				// Fresh buffer from the pool that nobody else holds, so it can become the gradient as-is.
+				grads[ids[j]] = adj;
+			} else {
+				// Might be aliased (Add passes its adjoint straight through), so take a copy we can accumulate into.
+				grads[ids[j]] = context.allocate(adj.rows, adj.columns);
+				grads[ids[j]].add_i(adj);
+			}
+		}
+		context.releaseScratch();
+	}
+
+	private void run(Matrix[] results, ExecutionContext context, boolean releaseDead) {
+		Matrix[][] args = argumentBuffers.get();
+		for(int i=0; i < steps.length; i++) {
+			if(!stepIsInput[i]) {
+				int[] ids = argumentIds[i];
+				Matrix[] stepArgs = args[i];
+				for(int j=0; j < ids.length; j++) {
+					stepArgs[j] = argument(steps[i], j, results[ids[j]], context);
+				}
+				if(context == null) {
+					// Legacy unpooled run.  UNPOOLED still carries node state, per thread, for the reverse pass.
+					results[stepIds[i]] = steps[i].forward(stepArgs, ExecutionContext.UNPOOLED);
+				} else {
+					results[stepIds[i]] = steps[i].forward(stepArgs, context);
+					context.retain(results[stepIds[i]]);
+				}
+				Arrays.fill(stepArgs, null); // Don't hold on to the results between runs.
+			}
+			if(releaseDead) {
+				for(int id : releaseAfter[i]) {
+					context.release(results[id]);
+					results[id] = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.josephcatrambone.aij;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-place radix-2 fast Fourier transforms over split real/imaginary arrays.
+ * Used by the convolution nodes to turn large-kernel convolutions into elementwise products.
+ * All lengths must be powers of two.  The inverse transforms include the 1/n scale.
+ */
+public final class FFT {
+	// Columns are transformed this many at a time so each strided read pulls in a whole cache line of useful data.
+	private static final int COLUMN_BLOCK = 8;
+
+	// cos and sin of -2*pi*k/n for k < n/2, keyed by n.
+	private static final ConcurrentHashMap<Integer, double[][]> twiddles = new ConcurrentHashMap<>();
+
+	private FFT() {}
+
+	public static int nextPowerOfTwo(int n) {
+		int p = 1;
+		while(p < n) { p <<= 1; }
+		return p;
+	}
+
+	private static double[][] getTwiddles(int n) {
+		return twiddles.computeIfAbsent(n, size -> {
+			double[] cos = new double[Math.max(1, size/2)];
+			double[] sin = new double[Math.max(1, size/2)];
+			for(int k=0; k < size/2; k++) {
+				cos[k] = Math.cos(-2*Math.PI*k/size);
+				sin[k] = Math.sin(-2*Math.PI*k/size);
+			}
+			return new double[][]{cos, sin};
+		});
+	}
+
+	/***
+	 * Transform the n contiguous elements of re/im starting at offset.
+	 */
+	public static void transform(double[] re, double[] im, int offset, int n, boolean inverse) {
+		assert((n & (n-1)) == 0);
+		// Bit-reversal permutation.
+		for(int i=1, j=0; i < n; i++) {
+			int bit = n >> 1;
+			for(; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if(i < j) {
+				int a = offset + i;
+				int b = offset + j;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+		// Butterflies.  The inverse is the forward transform with conjugated twiddles.
+		double[][] table = getTwiddles(n);
+		double[] cos = table[0];
+		double[] sin = table[1];
+		double sign = inverse ? -1.0 : 1.0;
+		for(int length=2; length <= n; length <<= 1) {
+			int half = length/2;
+			int step = n/length;
+			for(int start=offset; start < offset+n; start += length) {
+				for(int k=0; k < half; k++) {
+					double wRe = cos[k*step];
+					double wIm = sign*sin[k*step];
+					int a = start + k;
+					int b = a + half;
+					double tRe = re[b]*wRe - im[b]*wIm;
+					double tIm = re[b]*wIm + im[b]*wRe;
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+				}
+			}
+		}
+		if(inverse) {
+			double scale = 1.0/n;
+			for(int i=offset; i < offset+n; i++) {
+				re[i] *= scale;
+				im[i] *= scale;
+			}
+		}
+	}
+
+	/***
+	 * Transform every column of a row-major rows x columns complex array.
+	 */
+	private static void transformColumns(double[] re, double[] im, int rows, int columns, boolean inverse) {
+		double[] blockRe = new double[COLUMN_BLOCK*rows];
+		double[] blockIm = new double[COLUMN_BLOCK*rows];
+		for(int c0=0; c0 < columns; c0 += COLUMN_BLOCK) {
+			int width = Math.min(COLUMN_BLOCK, columns-c0);
+			for(int r=0; r < rows; r++) {
+				for(int j=0; j < width; j++) {
+					blockRe[j*rows + r] = re[r*columns + c0 + j];
+					blockIm[j*rows + r] = im[r*columns + c0 + j];
+				}
+			}
+			for(int j=0; j < width; j++) {
+				transform(blockRe, blockIm, j*rows, rows, inverse);
+			}
+			for(int r=0; r < rows; r++) {
+				for(int j=0; j < width; j++) {
+					re[r*columns + c0 + j] = blockRe[j*rows + r];
+					im[r*columns + c0 + j] = blockIm[j*rows + r];
+				}
+			}
+		}
+	}
+
+	/***
+	 * Transform a row-major rows x columns complex array: every row, then every column.
+	 */
+	public static void transform2D(double[] re, double[] im, int rows, int columns, boolean inverse) {
+		if(inverse) {
+			inverse2D(re, im, rows, columns, 0, rows);
+		} else {
+			forward2D(re, im, rows, columns, rows);
+		}
+	}
+
+	/***
+	 * Forward 2D transform of a grid where only the first nonzeroRows rows hold data.
+	 * The row transforms of all-zero rows are zero, so they're skipped.
+	 */
+	public static void forward2D(double[] re, double[] im, int rows, int columns, int nonzeroRows) {
+		for(int r=0; r < Math.min(rows, nonzeroRows); r++) {
+			transform(re, im, r*columns, columns, false);
+		}
+		transformColumns(re, im, rows, columns, false);
+	}
+
+	/***
+	 * Inverse 2D transform where the caller will only read rowCount rows starting at firstRow (wrapping around).
+	 * The column transforms have to be complete, but the other rows are left half-transformed.
+	 */
+	public static void inverse2D(double[] re, double[] im, int rows, int columns, int firstRow, int rowCount) {
+		transformColumns(re, im, rows, columns, true);
+		for(int i=0; i < Math.min(rows, rowCount); i++) {
+			int r = Math.floorMod(firstRow + i, rows);
+			transform(re, im, r*columns, columns, true);
+		}
+	}
+
+	/***
+	 * Zero-pad m into a rows x columns grid, with m's element (0,0) landing at (0, columnOffset) and its rows
+	 * rowSpacing apart and columns columnSpacing apart, then transform it.
+	 * Returns {re, im}.
+	 */
+	public static double[][] spectrum(Matrix m, int rows, int columns, int columnOffset, int rowSpacing, int columnSpacing) {
+		double[] re = new double[rows*columns];
+		double[] im = new double[rows*columns];
+		for(int r=0; r < m.rows; r++) {
+			int row = r*rowSpacing;
+			for(int c=0; c < m.columns; c++) {
+				re[row*columns + columnOffset + c*columnSpacing] = m.data[r*m.columns + c];
+			}
+		}
+		forward2D(re, im, rows, columns, (m.rows-1)*rowSpacing + 1);
+		return new double[][]{re, im};
+	}
+
+	public static double[][] spectrum(Matrix m, int rows, int columns) {
+		return spectrum(m, rows, columns, 0, 1, 1);
+	}
+
+	/***
+	 * accumulator += a * b, or a * conj(b) if conjugate is set.  All spectra must be the same size.
+	 * In the spatial domain a*b is circular convolution and a*conj(b) is circular cross-correlation of a against b.
+	 */
+	public static void multiplyAccumulate(double[][] a, double[][] b, boolean conjugate, double[][] accumulator) {
+		double[] aRe = a[0], aIm = a[1], bRe = b[0], bIm = b[1], outRe = accumulator[0], outIm = accumulator[1];
+		double sign = conjugate ? -1.0 : 1.0;
+		for(int i=0; i < aRe.length; i++) {
+			double bi = sign*bIm[i];
+			outRe[i] += aRe[i]*bRe[i] - aIm[i]*bi;
+			outIm[i] += aRe[i]*bi + aIm[i]*bRe[i];
+		}
+	}
+}
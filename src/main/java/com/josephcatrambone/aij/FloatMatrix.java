@@ -0,0 +1,108 @@
+package com.josephcatrambone.aij;
+
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * A Matrix whose elements are stored as 32-bit floats in floatData.  The inherited double[] data is null.
+ *
+ * Only get/set, getElements, copy, axpy_i, fill, toDouble and the matmul family understand this storage.  Matmuls read the floats
+ * directly and accumulate in double.  Anything else has to go through toDouble() first.  The execution plan does that
+ * automatically for nodes which don't say they accept other storage (see Node.acceptsAnyStorage).
+ */
+public class FloatMatrix extends Matrix {
+	private static final long serialVersionUID = 1L;
+
+	public float[] floatData;
+
+	public FloatMatrix(int rows, int columns) {
+		this(rows, columns, new float[rows*columns]);
+	}
+
+	public FloatMatrix(int rows, int columns, float[] floatData) {
+		super(rows, columns, (double[])null);
+		this.floatData = floatData;
+	}
+
+	/***
+	 * Round a double matrix to float storage.
+	 */
+	public FloatMatrix(Matrix m) {
+		this(m.rows, m.columns);
+		for(int i=0; i < floatData.length; i++) {
+			floatData[i] = (float)m.get(i/columns, i%columns);
+		}
+	}
+
+	@Override
+	public boolean hasArrayData() {
+		return false;
+	}
+
+	@Override
+	public Precision getPrecision() {
+		return Precision.FLOAT32;
+	}
+
+	@Override
+	public void getElements(int index, int stride, int count, double[] dst, int dstOffset) {
+		for(int i=0; i < count; i++) {
+			dst[dstOffset + i] = floatData[index + i*stride];
+		}
+	}
+
+	@Override
+	public Matrix toDouble(Matrix result) {
+		assert(result.data.length == floatData.length);
+		for(int i=0; i < floatData.length; i++) {
+			result.data[i] = floatData[i];
+		}
+		return result;
+	}
+
+	@Override
+	public double get(int r, int c) {
+		return this.floatData[c + r*columns];
+	}
+
+	@Override
+	public void set(int r, int c, double n) {
+		this.floatData[c + r*columns] = (float)n;
+	}
+
+	@Override
+	public void axpy_i(double alpha, Matrix x) {
+		assert(this.floatData.length == x.rows*x.columns);
+		Matrix values = x.toDouble();
+		for(int i=0; i < this.floatData.length; i++) { this.floatData[i] = (float)(this.floatData[i] + alpha*values.data[i]); }
+	}
+
+	@Override
+	public void fill(double value) {
+		Arrays.fill(this.floatData, (float)value);
+	}
+
+	@Override
+	public Matrix copy() {
+		return new FloatMatrix(this.rows, this.columns, Arrays.copyOf(this.floatData, this.floatData.length));
+	}
+
+	// Same format as Matrix, so Matrix.fromString reads it back (as doubles).
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[MATRIX]");
+		sb.append("[");
+		sb.append(rows);
+		sb.append(",");
+		sb.append(columns);
+		sb.append("]");
+
+		StringJoiner sj = new StringJoiner(",", "[", "");
+		for(float f : floatData) {
+			sj.add(""+f);
+		}
+		sb.append(sj.toString());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,116 @@
+package com.josephcatrambone.aij;
+
+import com.josephcatrambone.aij.nodes.*;
+
+import java.util.ArrayList;
+
+/**
+ * The fusion pass behind fused execution plans.  Rewrites a plan's step list, never the graph.
+ *
+ * Two patterns are recognized:
+ *   activation(MatrixMultiply(x, W) + bias), or any part of it with the matmul, becomes one FusedDenseNode.
+ *   Two or more ElementwiseNodes in a row become one FusedElementwiseNode.
+ * A node is only folded into the one after it if that's its sole consumer in the plan and it isn't a plan output,
+ * since its value is never materialized.
+ */
+final class Fusion {
+	private Fusion() {}
+
+	/***
+	 * @param steps The plan's nodes in id order.
+	 * @param isOutput Indexed by node id.
+	 * @return Returns the new steps in id order.  Fused nodes take the id of the last node in their chain.
+	 */
+	static Node[] fuse(Node[] steps, boolean[] isOutput) {
+		int graphSize = isOutput.length;
+		int[] uses = new int[graphSize];
+		for(Node n : steps) {
+			if(n instanceof InputNode) { continue; }
+			for(Node inp : n.inputs) {
+				uses[inp.id]++;
+			}
+		}
+		boolean[] foldable = new boolean[graphSize];
+		for(Node n : steps) {
+			foldable[n.id] = uses[n.id] == 1 && !isOutput[n.id] && !(n instanceof InputNode);
+		}
+
+		// Work back from the end so each chain is found from its tail and grabs as much as it can.
+		boolean[] absorbed = new boolean[graphSize];
+		Node[] replaced = new Node[steps.length];
+		for(int i=steps.length-1; i >= 0; i--) {
+			Node n = steps[i];
+			if(absorbed[n.id]) { continue; }
+			Node fused = fuseDense(n, foldable, absorbed);
+			if(fused == null) {
+				fused = fuseElementwise(n, foldable, absorbed);
+			}
+			replaced[i] = fused == null ? n : fused;
+		}
+
+		ArrayList<Node> result = new ArrayList<>(steps.length);
+		for(int i=0; i < steps.length; i++) {
+			if(!absorbed[steps[i].id]) {
+				result.add(replaced[i]);
+			}
+		}
+		return result.toArray(new Node[result.size()]);
+	}
+
+	private static Node fuseDense(Node tail, boolean[] foldable, boolean[] absorbed) {
+		ElementwiseNode activation = null;
+		Node sum = tail;
+		if(tail instanceof ElementwiseNode && foldable[tail.inputs[0].id]) {
+			activation = (ElementwiseNode)tail;
+			sum = tail.inputs[0];
+		}
+
+		Node product = null;
+		Node bias = null;
+		if(sum instanceof AddNode && sum.inputs.length == 2 && (sum == tail || foldable[sum.id])) {
+			for(int j=0; j < 2; j++) {
+				Node candidate = sum.inputs[j];
+				Node other = sum.inputs[1-j];
+				// The bias has to be a weight, so its shape at run time is the one it was built with: the same as the
+				// product or a single row.  Anything else might be the product broadcast over the bias instead.
+				if(candidate instanceof MatrixMultiplyNode && foldable[candidate.id] && other instanceof VariableNode
+						&& other.columns == candidate.columns && (other.rows == 1 || other.rows == candidate.rows)) {
+					product = candidate;
+					bias = other;
+					break;
+				}
+			}
+		} else if(sum instanceof MatrixMultiplyNode && activation != null) {
+			product = sum;
+		}
+		if(product == null) { return null; }
+
+		absorbed[product.id] = true;
+		if(bias != null && sum != tail) {
+			absorbed[sum.id] = true;
+		}
+		return new FusedDenseNode(product.inputs[0], product.inputs[1], bias, activation, tail);
+	}
+
+	private static Node fuseElementwise(Node tail, boolean[] foldable, boolean[] absorbed) {
+		if(!(tail instanceof ElementwiseNode)) { return null; }
+		ArrayList<Node> chain = new ArrayList<>();
+		chain.add(tail);
+		Node head = tail;
+		while(head.inputs[0] instanceof ElementwiseNode && foldable[head.inputs[0].id]) {
+			head = head.inputs[0];
+			chain.add(head);
+		}
+		if(chain.size() < 2) { return null; }
+
+		ElementwiseNode[] ops = new ElementwiseNode[chain.size()];
+		for(int j=0; j < ops.length; j++) {
+			Node n = chain.get(ops.length-1-j);
+			ops[j] = (ElementwiseNode)n;
+			if(n != tail) {
+				absorbed[n.id] = true;
+			}
+		}
+		return new FusedElementwiseNode(head.inputs[0], ops, tail);
+	}
+}
@@ -0,0 +1,436 @@
+package com.josephcatrambone.aij;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * General matrix multiply kernels operating directly on row-major backing arrays.
+ * All routines accumulate: C += A*B.  Each operand is described by an offset and a row/column stride so callers can
+ * hand in sub-blocks (or transposed views) without copying.
+ */
+public final class GEMM {
+	// Below this many multiply-adds the packing overhead isn't worth it.
+	public static int NAIVE_THRESHOLD = 32*32*32;
+	// Below this many multiply-adds it's cheaper to stay on the calling thread than to fan out over the ComputePool.
+	public static int PARALLEL_THRESHOLD = 64*64*64;
+
+	// Blocking parameters.  MC x KC of A should sit in L2, KC x NC of B in L3.
+	static final int MC = 64;
+	static final int KC = 256;
+	static final int NC = 1024;
+	// Register tile.  16 accumulators keeps the micro-kernel inside the register file on x86-64.
+	// Kernels.gemmTile is written for exactly 4 x 4.
+	static final int MR = 4;
+	static final int NR = 4;
+
+	// Packing buffers are reused per-thread so steady-state multiplies don't allocate.
+	private static final ThreadLocal<double[]> packedA = ThreadLocal.withInitial(() -> new double[MC*KC]);
+	private static final ThreadLocal<double[]> packedB = ThreadLocal.withInitial(() -> new double[0]);
+	// A row or column of an operand which isn't array backed, widened to double.
+	private static final ThreadLocal<double[]> widened = ThreadLocal.withInitial(() -> new double[0]);
+
+	private GEMM() {}
+
+	/***
+	 * Pick the naive, blocked, or parallel kernel based on the size of the product and compute C += A*B.
+	 * A is m x k, B is k x n, C is m x n.
+	 */
+	public static void multiply(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		if(m == 0 || n == 0 || k == 0) { return; }
+		if((long)m*n*k >= PARALLEL_THRESHOLD && ComputePool.shouldParallelize()) {
+			multiplyParallel(m, n, k, a, aOffset, aRowStride, aColumnStride, b, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		} else {
+			multiplySerial(m, n, k, a, aOffset, aRowStride, aColumnStride, b, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		}
+	}
+
+	/***
+	 * C += A*B for operands in any storage (plain, FloatMatrix, OffHeapMatrix).  Offsets and strides index the
+	 * operands' elements in row-major order, the same as for the array versions.
+	 * Operands which aren't array backed are widened to double as they're read, so all the arithmetic is in double.
+	 */
+	public static void multiplyMixed(int m, int n, int k,
+		Matrix a, int aOffset, int aRowStride, int aColumnStride,
+		Matrix b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		if(a.hasArrayData() && b.hasArrayData()) {
+			multiply(m, n, k, a.data, aOffset, aRowStride, aColumnStride, b.data, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+			return;
+		}
+		if(m == 0 || n == 0 || k == 0) { return; }
+		double[] aData = a.hasArrayData() ? a.data : null;
+		double[] bData = b.hasArrayData() ? b.data : null;
+		Matrix aSource = aData == null ? a : null;
+		Matrix bSource = bData == null ? b : null;
+		if((long)m*n*k >= PARALLEL_THRESHOLD && ComputePool.shouldParallelize()) {
+			long grain = Math.max(PARALLEL_THRESHOLD/4, ((long)m*n*k)/(4L*ComputePool.getThreadCount()));
+			ComputePool.invoke(new TileTask(
+				0, m, 0, n, k, grain,
+				aData, aSource, aOffset, aRowStride, aColumnStride,
+				bData, bSource, bOffset, bRowStride, bColumnStride,
+				c, cOffset, cRowStride
+			));
+		} else {
+			multiplySerialMixed(m, n, k, aData, aSource, aOffset, aRowStride, aColumnStride, bData, bSource, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		}
+	}
+
+	// Exactly one of a/aSource and one of b/bSource is non-null.  The source is used when the operand isn't array backed.
+	private static void multiplySerialMixed(int m, int n, int k,
+		double[] a, Matrix aSource, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, Matrix bSource, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		if(aSource == null && bSource == null) {
+			multiplySerial(m, n, k, a, aOffset, aRowStride, aColumnStride, b, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		} else if(aSource == null && ((long)m*n*k < NAIVE_THRESHOLD || m < MR || n < NR)) {
+			// The common inference case: a few activations times stored weights.
+			multiplyNaive(m, n, k, a, aOffset, aRowStride, aColumnStride, bSource, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		} else {
+			// Packing widens the elements, so the blocked kernel handles any storage unchanged.
+			blocked(m, n, k, a, aSource, aOffset, aRowStride, aColumnStride, b, bSource, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		}
+	}
+
+	/***
+	 * Single-threaded multiply.  Picks between the naive and blocked kernels.
+	 */
+	public static void multiplySerial(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		// Skinny products (like a single example times a weight matrix) would mostly multiply padding in the blocked path.
+		if((long)m*n*k < NAIVE_THRESHOLD || m < MR || n < NR) {
+			multiplyNaive(m, n, k, a, aOffset, aRowStride, aColumnStride, b, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		} else {
+			multiplyBlocked(m, n, k, a, aOffset, aRowStride, aColumnStride, b, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+		}
+	}
+
+	/***
+	 * Split C into independent output tiles and compute them on the ComputePool.
+	 * Tiles never share output elements and the K dimension is never split, so no synchronization is needed.
+	 */
+	public static void multiplyParallel(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		// Aim for a few tiles per thread so stragglers get balanced by work stealing.
+		long grain = Math.max(PARALLEL_THRESHOLD/4, ((long)m*n*k)/(4L*ComputePool.getThreadCount()));
+		ComputePool.invoke(new TileTask(
+			0, m, 0, n, k, grain,
+			a, null, aOffset, aRowStride, aColumnStride,
+			b, null, bOffset, bRowStride, bColumnStride,
+			c, cOffset, cRowStride
+		));
+	}
+
+	private static class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int rowStart, rowEnd, columnStart, columnEnd, k;
+		final long grain;
+		final double[] a, b, c;
+		final Matrix aSource, bSource;
+		final int aOffset, aRowStride, aColumnStride;
+		final int bOffset, bRowStride, bColumnStride;
+		final int cOffset, cRowStride;
+
+		TileTask(int rowStart, int rowEnd, int columnStart, int columnEnd, int k, long grain,
+			double[] a, Matrix aSource, int aOffset, int aRowStride, int aColumnStride,
+			double[] b, Matrix bSource, int bOffset, int bRowStride, int bColumnStride,
+			double[] c, int cOffset, int cRowStride
+		) {
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.columnStart = columnStart;
+			this.columnEnd = columnEnd;
+			this.k = k;
+			this.grain = grain;
+			this.a = a;
+			this.aSource = aSource;
+			this.aOffset = aOffset;
+			this.aRowStride = aRowStride;
+			this.aColumnStride = aColumnStride;
+			this.b = b;
+			this.bSource = bSource;
+			this.bOffset = bOffset;
+			this.bRowStride = bRowStride;
+			this.bColumnStride = bColumnStride;
+			this.c = c;
+			this.cOffset = cOffset;
+			this.cRowStride = cRowStride;
+		}
+
+		TileTask subTile(int rowStart, int rowEnd, int columnStart, int columnEnd) {
+			return new TileTask(
+				rowStart, rowEnd, columnStart, columnEnd, k, grain,
+				a, aSource, aOffset, aRowStride, aColumnStride,
+				b, bSource, bOffset, bRowStride, bColumnStride,
+				c, cOffset, cRowStride
+			);
+		}
+
+		@Override
+		protected void compute() {
+			int m = rowEnd-rowStart;
+			int n = columnEnd-columnStart;
+			boolean canSplitRows = m >= 2*MR;
+			boolean canSplitColumns = n >= 2*NR;
+			if((long)m*n*k <= grain || !(canSplitRows || canSplitColumns)) {
+				multiplySerialMixed(m, n, k,
+					a, aSource, aOffset + rowStart*aRowStride, aRowStride, aColumnStride,
+					b, bSource, bOffset + columnStart*bColumnStride, bRowStride, bColumnStride,
+					c, cOffset + rowStart*cRowStride + columnStart, cRowStride
+				);
+			} else if(canSplitRows && (m >= n || !canSplitColumns)) {
+				// Keep the split on a register tile boundary so only the last tile is ragged.
+				int mid = rowStart + ((m/2 + MR - 1)/MR)*MR;
+				invokeAll(subTile(rowStart, mid, columnStart, columnEnd), subTile(mid, rowEnd, columnStart, columnEnd));
+			} else {
+				int mid = columnStart + ((n/2 + NR - 1)/NR)*NR;
+				invokeAll(subTile(rowStart, rowEnd, columnStart, mid), subTile(rowStart, rowEnd, mid, columnEnd));
+			}
+		}
+	}
+
+	/***
+	 * Straightforward loops for small products.
+	 * Normally i-k-j so B and C are walked along rows.  If B is a transposed view (its rows are strided) we switch to
+	 * i-j-k so each output is a dot product along contiguous memory instead.
+	 */
+	public static void multiplyNaive(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		Kernels kernels = Kernels.get();
+		if(bColumnStride != 1 && bRowStride == 1) {
+			for(int i=0; i < m; i++) {
+				int cRow = cOffset + i*cRowStride;
+				int aRow = aOffset + i*aRowStride;
+				for(int j=0; j < n; j++) {
+					int bColumn = bOffset + j*bColumnStride;
+					if(aColumnStride == 1) {
+						c[cRow + j] += kernels.dot(a, aRow, b, bColumn, k);
+						continue;
+					}
+					double accumulator = 0;
+					for(int p=0; p < k; p++) {
+						accumulator += a[aRow + p*aColumnStride]*b[bColumn + p];
+					}
+					c[cRow + j] += accumulator;
+				}
+			}
+			return;
+		}
+		for(int i=0; i < m; i++) {
+			int cRow = cOffset + i*cRowStride;
+			int aRow = aOffset + i*aRowStride;
+			for(int p=0; p < k; p++) {
+				double aip = a[aRow + p*aColumnStride];
+				int bRow = bOffset + p*bRowStride;
+				if(bColumnStride == 1) {
+					kernels.axpy(aip, b, bRow, c, cRow, n);
+					continue;
+				}
+				for(int j=0; j < n; j++) {
+					c[cRow + j] += aip*b[bRow + j*bColumnStride];
+				}
+			}
+		}
+	}
+
+	/***
+	 * multiplyNaive with B in other storage.  Each row (or, for a transposed view, column) of B is widened once into
+	 * a scratch buffer, then the inner loops run over plain doubles.
+	 */
+	private static void multiplyNaive(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		Matrix b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		Kernels kernels = Kernels.get();
+		if(bColumnStride != 1 && bRowStride == 1) {
+			double[] bColumn = scratch(k);
+			for(int j=0; j < n; j++) {
+				b.getElements(bOffset + j*bColumnStride, 1, k, bColumn, 0);
+				for(int i=0; i < m; i++) {
+					int aRow = aOffset + i*aRowStride;
+					if(aColumnStride == 1) {
+						c[cOffset + i*cRowStride + j] += kernels.dot(a, aRow, bColumn, 0, k);
+						continue;
+					}
+					double accumulator = 0;
+					for(int p=0; p < k; p++) {
+						accumulator += a[aRow + p*aColumnStride]*bColumn[p];
+					}
+					c[cOffset + i*cRowStride + j] += accumulator;
+				}
+			}
+			return;
+		}
+		double[] bRow = scratch(n);
+		for(int p=0; p < k; p++) {
+			b.getElements(bOffset + p*bRowStride, bColumnStride, n, bRow, 0);
+			for(int i=0; i < m; i++) {
+				kernels.axpy(a[aOffset + i*aRowStride + p*aColumnStride], bRow, 0, c, cOffset + i*cRowStride, n);
+			}
+		}
+	}
+
+	private static double[] scratch(int length) {
+		double[] buffer = widened.get();
+		if(buffer.length < length) {
+			buffer = new double[length];
+			widened.set(buffer);
+		}
+		return buffer;
+	}
+
+	/***
+	 * Cache-blocked multiply.  Panels of A and B are packed into contiguous MR/NR-wide strips so the micro-kernel
+	 * streams both operands linearly regardless of the source layout.
+	 */
+	public static void multiplyBlocked(int m, int n, int k,
+		double[] a, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		blocked(m, n, k, a, null, aOffset, aRowStride, aColumnStride, b, null, bOffset, bRowStride, bColumnStride, c, cOffset, cRowStride);
+	}
+
+	private static void blocked(int m, int n, int k,
+		double[] a, Matrix aSource, int aOffset, int aRowStride, int aColumnStride,
+		double[] b, Matrix bSource, int bOffset, int bRowStride, int bColumnStride,
+		double[] c, int cOffset, int cRowStride
+	) {
+		double[] pa = packedA.get();
+		double[] pb = packedB.get();
+		int maxPanel = KC*roundUp(Math.min(n, NC), NR);
+		if(pb.length < maxPanel) {
+			pb = new double[maxPanel];
+			packedB.set(pb);
+		}
+
+		for(int jc=0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n-jc);
+			for(int pc=0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k-pc);
+				if(bSource != null) {
+					packB(kc, nc, bSource, bOffset + pc*bRowStride + jc*bColumnStride, bRowStride, bColumnStride, pb);
+				} else {
+					packB(kc, nc, b, bOffset + pc*bRowStride + jc*bColumnStride, bRowStride, bColumnStride, pb);
+				}
+				for(int ic=0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m-ic);
+					if(aSource != null) {
+						packA(mc, kc, aSource, aOffset + ic*aRowStride + pc*aColumnStride, aRowStride, aColumnStride, pa);
+					} else {
+						packA(mc, kc, a, aOffset + ic*aRowStride + pc*aColumnStride, aRowStride, aColumnStride, pa);
+					}
+					macroKernel(mc, nc, kc, pa, pb, c, cOffset + ic*cRowStride + jc, cRowStride);
+				}
+			}
+		}
+	}
+
+	private static int roundUp(int value, int multiple) {
+		return ((value + multiple - 1)/multiple)*multiple;
+	}
+
+	// Pack an mc x kc block of A into strips of MR rows, column-major within each strip.  Ragged strips are zero-padded.
+	private static void packA(int mc, int kc, double[] a, int offset, int rowStride, int columnStride, double[] dst) {
+		int d = 0;
+		for(int i=0; i < mc; i += MR) {
+			int rows = Math.min(MR, mc-i);
+			for(int p=0; p < kc; p++) {
+				int src = offset + i*rowStride + p*columnStride;
+				int r = 0;
+				for(; r < rows; r++) {
+					dst[d++] = a[src + r*rowStride];
+				}
+				for(; r < MR; r++) {
+					dst[d++] = 0;
+				}
+			}
+		}
+	}
+
+	// Pack a kc x nc panel of B into strips of NR columns, row-major within each strip.  Ragged strips are zero-padded.
+	private static void packB(int kc, int nc, double[] b, int offset, int rowStride, int columnStride, double[] dst) {
+		int d = 0;
+		for(int j=0; j < nc; j += NR) {
+			int columns = Math.min(NR, nc-j);
+			for(int p=0; p < kc; p++) {
+				int src = offset + p*rowStride + j*columnStride;
+				int col = 0;
+				for(; col < columns; col++) {
+					dst[d++] = b[src + col*columnStride];
+				}
+				for(; col < NR; col++) {
+					dst[d++] = 0;
+				}
+			}
+		}
+	}
+
+	// packA and packB for sources in other storage.  Each source column (for A) or row (for B) of the block is widened
+	// in one getElements call, then scattered into the strips.
+	private static void packA(int mc, int kc, Matrix a, int offset, int rowStride, int columnStride, double[] dst) {
+		double[] column = scratch(mc);
+		int strips = (mc + MR - 1)/MR;
+		for(int p=0; p < kc; p++) {
+			a.getElements(offset + p*columnStride, rowStride, mc, column, 0);
+			for(int s=0; s < strips; s++) {
+				int rows = Math.min(MR, mc - s*MR);
+				int d = s*MR*kc + p*MR;
+				int r = 0;
+				for(; r < rows; r++) {
+					dst[d + r] = column[s*MR + r];
+				}
+				for(; r < MR; r++) {
+					dst[d + r] = 0;
+				}
+			}
+		}
+	}
+
+	private static void packB(int kc, int nc, Matrix b, int offset, int rowStride, int columnStride, double[] dst) {
+		double[] row = scratch(nc);
+		int strips = (nc + NR - 1)/NR;
+		for(int p=0; p < kc; p++) {
+			b.getElements(offset + p*rowStride, columnStride, nc, row, 0);
+			for(int s=0; s < strips; s++) {
+				int columns = Math.min(NR, nc - s*NR);
+				int d = s*NR*kc + p*NR;
+				int col = 0;
+				for(; col < columns; col++) {
+					dst[d + col] = row[s*NR + col];
+				}
+				for(; col < NR; col++) {
+					dst[d + col] = 0;
+				}
+			}
+		}
+	}
+
+	// The MR x NR register tile itself is Kernels.gemmTile, so it can be swapped for the SIMD version.
+	private static void macroKernel(int mc, int nc, int kc, double[] pa, double[] pb, double[] c, int cOffset, int cRowStride) {
+		Kernels kernels = Kernels.get();
+		for(int j=0; j < nc; j += NR) {
+			int columns = Math.min(NR, nc-j);
+			int bStrip = j*kc;
+			for(int i=0; i < mc; i += MR) {
+				int rows = Math.min(MR, mc-i);
+				kernels.gemmTile(kc, pa, i*kc, pb, bStrip, c, cOffset + i*cRowStride + j, cRowStride, rows, columns);
+			}
+		}
+	}
+}
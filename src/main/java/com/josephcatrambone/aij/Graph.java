@@ -1,6 +1,17 @@
 package com.josephcatrambone.aij;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.josephcatrambone.aij.nodes.*;
 
@@ -9,31 +20,185 @@ import com.josephcatrambone.aij.nodes.*;
  */
 public class Graph {
 	public ArrayList<Node> nodes = new ArrayList<>();
+	public boolean strict = false; // Validate each node as it's added instead of waiting for compile.
 
+	// Binary checkpoint layout, all little-endian:
+	//   int magic, int version, int topology length in bytes, long offset of the weight data
+	//   topology: serializeToString() with the variable values left out, UTF-8
+	//   zero padding up to an 8 byte boundary
+	//   weights: each VariableNode in id order, rows*columns values, row-major, each padded to an 8 byte boundary.
+	//     Values are doubles, or floats for FLOAT32 variables (marked in the topology).  Version 1 is all doubles.
+	public static final int CHECKPOINT_MAGIC = 0x424a4941; // "AIJB" when read as bytes.
+	public static final int CHECKPOINT_VERSION = 2;
+	private static final int CHECKPOINT_HEADER_BYTES = 4+4+4+8;
+	private static final int CHECKPOINT_WRITE_CHUNK = 1 << 20; // Bytes of weights written per channel write.
+
+	// Compiled plans, keyed by the output they were compiled for.  The whole-graph plan is kept separately.
+	private final Map<Node, ExecutionPlan> planCache = new ConcurrentHashMap<>();
+	private final Map<Node, ExecutionPlan> fusedPlanCache = new ConcurrentHashMap<>();
+	private volatile ExecutionPlan fullPlan = null;
+	private final Map<Node, InferenceSession> sessionCache = new ConcurrentHashMap<>();
+
+	/***
+	 * Add a node, and any of its inputs which aren't in the graph yet, giving each the next id.
+	 * Constant time per node added, so building a graph is linear in its size.  Nothing is checked here unless
+	 * strict is set: compiling a plan validates the nodes it covers, and validate() checks the whole graph.
+	 * @return Returns n, as a pass-through.
+	 */
 	public Node addNode(Node n) {
-		// Make sure all the dependencies happen first.
-		for(Node inp : n.inputs) {
-			if(inp.id == -1) {
-				this.addNode(inp);
+		// Dependencies have to get lower ids.  Walk them with an explicit stack: an unrolled network can be tens of
+		// thousands of nodes deep, which is too deep to recurse.
+		ArrayDeque<Node> pending = new ArrayDeque<>();
+		pending.push(n);
+		while(!pending.isEmpty()) {
+			Node top = pending.peek();
+			boolean ready = true;
+			for(Node inp : top.inputs) {
+				if(inp.id == -1) {
+					pending.push(inp);
+					ready = false;
+				}
+			}
+			if(!ready) { continue; }
+			pending.pop();
+			// A shared input can be pushed more than once.  Only the first visit adds it.
+			if(top.id == -1 || (top == n && pending.isEmpty())) {
+				top.id = nodes.size();
+				if(strict) {
+					try {
+						checkInputs(top);
+					} catch(IllegalStateException e) {
+						top.id = -1;
+						throw e;
+					}
+				}
+				nodes.add(top);
 			}
 		}
-		n.id = nodes.size();
-		nodes.add(n);
-		// DEBUG:
-		// Sanity check each node to make sure that we're dense and all the dependencies are set.
+		invalidatePlans();
+		return n;
+	}
+
+	/***
+	 * Check the whole graph: every node's id is its index, and every input is a node of this graph that comes
+	 * before it.  Linear in the size of the graph.
+	 * @throws IllegalStateException if a node fails.
+	 */
+	public void validate() {
 		for(int i=0; i < nodes.size(); i++) {
-			// Make sure this node has an ID.
-			assert(nodes.get(i).id != -1);
-			// Make sure the ID is equal to its place in the index.
-			assert(nodes.get(i).id == i);
-			// Assert that the inputs pass this check, too.
-			Node[] inputs = nodes.get(i).inputs;
-			for(int j=0; j < inputs.length; j++) {
-				assert(nodes.get(j).id < i);
+			Node n = nodes.get(i);
+			if(n.id != i) {
+				throw new IllegalStateException("Node '" + n.name + "' is at index " + i + " but has id " + n.id + ".");
+			}
+			checkInputs(n);
+		}
+	}
+
+	// Every input has to be a node of this graph with a lower id.
+	void checkInputs(Node n) {
+		for(Node inp : n.inputs) {
+			if(inp.id < 0 || inp.id >= n.id || nodes.get(inp.id) != inp) {
+				throw new IllegalStateException("Node '" + n.name + "' (id " + n.id + ") has input '" + inp.name + "' (id " + inp.id + ") which isn't an earlier node of this graph.");
+			}
+		}
+	}
+
+	/***
+	 * Precompute the schedule for evaluating the given outputs.
+	 * Only the nodes the outputs depend on are included.  With no outputs, the plan covers the whole graph.
+	 * The plan is only valid until more nodes are added to the graph.
+	 * @param outputs The nodes whose values we want.
+	 * @return Returns an immutable ExecutionPlan which can be run repeatedly and from multiple threads.
+	 */
+	public ExecutionPlan compile(Node... outputs) {
+		return new ExecutionPlan(this, outputs);
+	}
+
+	/***
+	 * Like compile, but with dense layers (MatrixMultiply -> Add bias -> activation) and runs of element-wise nodes
+	 * each turned into one fused step.  Same results and gradients, less memory traffic.
+	 * The nodes folded away aren't computed, so their results are null and they can't be gradient targets.  Use an
+	 * unfused plan if you need to look at intermediate values.  The graph itself is not changed.
+	 * @param outputs The nodes whose values we want.  Never fused away.  Must not be empty.
+	 */
+	public ExecutionPlan compileFused(Node... outputs) {
+		if(outputs.length == 0) {
+			throw new IllegalArgumentException("A fused plan needs at least one output.");
+		}
+		return new ExecutionPlan(this, outputs, true);
+	}
+
+	/***
+	 * Get a cached fused plan for computing the given node, compiling it on first use.  See compileFused.
+	 */
+	public ExecutionPlan getFusedPlan(Node output) {
+		ExecutionPlan plan = fusedPlanCache.get(output);
+		if(plan == null || plan.graphSize != nodes.size()) {
+			plan = compileFused(output);
+			fusedPlanCache.put(output, plan);
+		}
+		return plan;
+	}
+
+	/***
+	 * Get a cached plan for computing the given node, compiling it on first use.
+	 */
+	public ExecutionPlan getPlan(Node output) {
+		ExecutionPlan plan = planCache.get(output);
+		if(plan == null || plan.graphSize != nodes.size()) {
+			plan = compile(output);
+			planCache.put(output, plan);
+		}
+		return plan;
+	}
+
+	/***
+	 * Get a cached inference session for the given output, compiling it on first use.
+	 * Safe to call and run from many threads at once.  See InferenceSession.
+	 * Sessions only hand back their outputs, so they always run fused plans.
+	 */
+	public InferenceSession getInferenceSession(Node output) {
+		InferenceSession session = sessionCache.get(output);
+		if(session == null || session.plan.graphSize != nodes.size()) {
+			session = new InferenceSession(compileFused(output));
+			sessionCache.put(output, session);
+		}
+		return session;
+	}
+
+	/***
+	 * Make a new inference session for several outputs at once.  Not cached, so keep it around.
+	 */
+	public InferenceSession newInferenceSession(Node... outputs) {
+		return new InferenceSession(compileFused(outputs));
+	}
+
+	private ExecutionPlan getFullPlan() {
+		ExecutionPlan plan = fullPlan;
+		if(plan == null || plan.graphSize != nodes.size()) {
+			plan = compile();
+			fullPlan = plan;
+		}
+		return plan;
+	}
+
+	protected void invalidatePlans() {
+		planCache.clear();
+		fusedPlanCache.clear();
+		sessionCache.clear();
+		fullPlan = null;
+	}
+
+	/***
+	 * Switch every variable in the graph to the given storage precision.
+	 * FLOAT32 halves the memory (and checkpoint size) of the weights.  Activations and gradients stay in double.
+	 */
+	public void setPrecision(Precision precision) {
+		for(Node n : nodes) {
+			if(n instanceof VariableNode) {
+				((VariableNode)n).setPrecision(precision);
 			}
 		}
-		// DEBUG END
-		return n; // A pass-through.
 	}
 
 	public String serializeToString() {
@@ -44,6 +209,170 @@ public class Graph {
 		return s.toString();
 	}
 
+	/***
+	 * Write the graph and all its variables to a binary checkpoint.
+	 * Much smaller and faster than serializeToString for big models since the weights are raw doubles.
+	 * @param path The file to write.  Overwritten if it exists.
+	 */
+	public void saveCheckpoint(Path path) throws IOException {
+		StringBuilder topology = new StringBuilder();
+		for(Node n : nodes) {
+			if(n instanceof VariableNode) {
+				boolean isFloat = ((VariableNode)n).getPrecision() == Precision.FLOAT32;
+				topology.append(n.toString(isFloat ? VariableNode.FLOAT32_PREFIX : "") + "\n");
+			} else {
+				topology.append(n.toString() + "\n");
+			}
+		}
+		byte[] topologyBytes = topology.toString().getBytes(StandardCharsets.UTF_8);
+		long dataOffset = ((CHECKPOINT_HEADER_BYTES + topologyBytes.length + 7) / 8) * 8;
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate((int)dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(CHECKPOINT_MAGIC);
+			header.putInt(CHECKPOINT_VERSION);
+			header.putInt(topologyBytes.length);
+			header.putLong(dataOffset);
+			header.put(topologyBytes);
+			header.rewind();
+			writeFully(channel, header);
+
+			ByteBuffer chunk = ByteBuffer.allocateDirect(CHECKPOINT_WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+			DoubleBuffer chunkDoubles = chunk.asDoubleBuffer();
+			FloatBuffer chunkFloats = chunk.asFloatBuffer();
+			double[] values = new double[CHECKPOINT_WRITE_CHUNK/4];
+			for(Node n : nodes) {
+				if(!(n instanceof VariableNode)) { continue; }
+				Matrix storage = ((VariableNode)n).getVariable();
+				boolean isFloat = storage.getPrecision() == Precision.FLOAT32;
+				int length = storage.rows*storage.columns;
+				int bytesPerValue = isFloat ? 4 : 8;
+				int written = 0;
+				while(written < length) {
+					int count = Math.min(CHECKPOINT_WRITE_CHUNK/bytesPerValue, length-written);
+					storage.getElements(written, 1, count, values, 0);
+					if(isFloat) {
+						chunkFloats.clear();
+						for(int i=0; i < count; i++) {
+							chunkFloats.put((float)values[i]);
+						}
+					} else {
+						chunkDoubles.clear();
+						chunkDoubles.put(values, 0, count);
+					}
+					chunk.clear();
+					chunk.limit(count*bytesPerValue);
+					writeFully(channel, chunk);
+					written += count;
+				}
+				int padding = (8 - (length*bytesPerValue) % 8) % 8;
+				if(padding > 0) {
+					writeFully(channel, ByteBuffer.allocate(padding));
+				}
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/***
+	 * Load a graph written by saveCheckpoint, replacing this graph's nodes.
+	 * The file is memory mapped and the weights are bulk-copied out of the mapping, with no text parsing.
+	 * @param path The checkpoint file.
+	 */
+	public void restoreCheckpoint(Path path) throws IOException {
+		restoreCheckpoint(path, null);
+	}
+
+	/***
+	 * Like restoreCheckpoint(path), but if arena isn't null the weights are never copied onto the heap.
+	 * Each variable becomes an OffHeapMatrix over a private (copy-on-write) mapping of its part of the file, so pages
+	 * are only read in when they're used and training updates never reach the file.  Closing the arena unmaps them.
+	 * If the file isn't writable the mapping has to be read only, which is fine for inference but can't be trained.
+	 */
+	public void restoreCheckpoint(Path path, OffHeapArena arena) throws IOException {
+		FileChannel.MapMode weightMode = FileChannel.MapMode.PRIVATE;
+		FileChannel opened;
+		try {
+			// Java only allows private mappings of channels opened for writing, even though nothing is ever written.
+			opened = arena != null ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(path, StandardOpenOption.READ);
+		} catch(AccessDeniedException e) {
+			weightMode = FileChannel.MapMode.READ_ONLY;
+			opened = FileChannel.open(path, StandardOpenOption.READ);
+		}
+		try(FileChannel channel = opened) {
+			long fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate((int)Math.min(fileSize, CHECKPOINT_HEADER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			header.flip();
+			if(header.remaining() < CHECKPOINT_HEADER_BYTES || header.getInt() != CHECKPOINT_MAGIC) {
+				throw new IOException("Not an Aij checkpoint: " + path);
+			}
+			int version = header.getInt();
+			if(version < 1 || version > CHECKPOINT_VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version + " in " + path);
+			}
+			ByteBuffer topologyBytes = ByteBuffer.allocate(header.getInt());
+			long dataOffset = header.getLong();
+			readFully(channel, topologyBytes, CHECKPOINT_HEADER_BYTES);
+			restoreFromString(new String(topologyBytes.array(), StandardCharsets.UTF_8));
+
+			// Without an arena the weights are copied out, so map the whole data section once.
+			// With one, each variable gets its own mapping so no single mapping has to cover a multi-GB file.
+			ByteBuffer buffer = null;
+			if(arena == null) {
+				if(fileSize - dataOffset > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Checkpoint weights are over 2 GB, too big to copy onto the heap.  Restore through an OffHeapArena: " + path);
+				}
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, fileSize - dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			long offset = dataOffset;
+			for(Node n : nodes) {
+				if(!(n instanceof VariableNode)) { continue; }
+				VariableNode v = (VariableNode)n;
+				Precision precision = v.getPrecision();
+				boolean isFloat = precision == Precision.FLOAT32;
+				long bytes = (long)n.rows*n.columns*(isFloat ? 4 : 8);
+				if(offset + bytes > fileSize) {
+					throw new IOException("Checkpoint is truncated.  Ran out of weights at node " + n.id + " in " + path);
+				}
+				// Version 1 packed the doubles back to back, which is the same as padding to 8.
+				long next = offset + ((bytes + 7)/8)*8;
+				if(arena != null) {
+					OffHeapMatrix.byteSize(n.rows, n.columns, precision); // Fail before mapping anything too big.
+					ByteBuffer mapping = channel.map(weightMode, offset, bytes);
+					v.setVariable(arena.wrap(n.rows, n.columns, mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN), precision, mapping));
+					offset = next;
+					continue;
+				}
+				buffer.position((int)(offset - dataOffset));
+				ByteBuffer weights = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+				if(isFloat) {
+					FloatMatrix m = new FloatMatrix(n.rows, n.columns);
+					weights.asFloatBuffer().get(m.floatData);
+					v.setVariable(m);
+				} else {
+					Matrix m = new Matrix(n.rows, n.columns);
+					weights.asDoubleBuffer().get(m.data);
+					v.setVariable(m);
+				}
+				offset = next;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+	}
+
 	public void restoreFromString(String s) {
 		String[] lines = s.split("[\\r\\n]+"); // Also removes empty lines.
 		// Check for blank first line.
@@ -55,66 +384,26 @@ public class Graph {
 		for(int i=0; i < lines.length; i++) {
 			nodes.add(i, Node.fromString(lines[i], nodes));
 		}
+		invalidatePlans();
 	}
 
 	public double[] getOutput(Map<Node, double[]> inputs, Node node) {
 		// getOutput is different slightly from forward in that we don't care about unused paths.
 		// For forward, we want to be sure _all_ different node values are populated in order.
-		// getOutput spends a cycle or two figuring out which paths it can ignore (so we don't pay for training paths).
-		Stack<Node> toProcess = new Stack<>();
-		Matrix[] results = new Matrix[node.id+1];
-
-		// Traverse our graph from the output to the inputs.
-		toProcess.push(node);
-		while(!toProcess.empty()) {
-			Node n = toProcess.pop();
-			// Allocate an empty matrix for our results OR copy from input.
-			if(n instanceof InputNode) {
-				results[n.id] = new Matrix(n.rows, n.columns, inputs.get(n));
-			} else {
-				results[n.id] = new Matrix(n.rows, n.columns);
-			}
-			for(Node inp : n.inputs) {
-				toProcess.push(inp);
-			}
-		}
-
-		// Compute the values, skipping the dead nodes.
-		for(int i=0; i < results.length; i++) {
-			Node n = nodes.get(i);
-			if(results[i] == null || n instanceof InputNode) { continue; }
-			// Compile an array of values to be passed into the node.
-			Matrix[] forwardInputs = new Matrix[n.inputs.length];
-			for(int j=0; j < forwardInputs.length; j++) {
-				forwardInputs[j] = results[n.inputs[j].id];
-			}
-			results[i] = nodes.get(i).forward(forwardInputs);
-		}
-		return results[node.id].data;
-
-		/* // If we didn't care about path pruning, we could just do this:
-		HashMap<Node, Matrix> remappedInputs = doubleMapToMatrixMap(inputs);
-		return forward(remappedInputs)[node.id].data;
-		*/
+		// The plan for this node is pruned once and cached, so we don't pay for training paths on every call.
+		return getPlan(node).getOutput(inputs);
 	}
 
+	/***
+	 * Run every node in the graph.
+	 * @return Returns an array indexed by node id.  Every value is a plain double Matrix, so FLOAT32 and off-heap
+	 * variables come back widened.
+	 */
 	public Matrix[] forward(Map<Node, Matrix> datafeed) {
-		Matrix[] results = new Matrix[nodes.size()];
-		for(int i=0; i < nodes.size(); i++) {
-			// Special case: inputs read from the input map.
-			if(nodes.get(i) instanceof InputNode) {
-				results[i] = datafeed.get(nodes.get(i));
-				if(results[i] == null || results[i].data == null) {
-					System.err.println("Compute graph variable undefined on forward pass: Name '" + nodes.get(i).name + "'");
-				}
-			} else {
-				// Compile an array of values to be passed into the node.
-				Node n = nodes.get(i);
-				Matrix[] forwardInputs = new Matrix[n.inputs.length];
-				for(int j=0; j < forwardInputs.length; j++) {
-					forwardInputs[j] = results[n.inputs[j].id];
-				}
-				results[i] = nodes.get(i).forward(forwardInputs);
+		Matrix[] results = getFullPlan().forward(datafeed);
+		for(int i=0; i < results.length; i++) {
+			if(results[i] != null && !results[i].hasArrayData()) {
+				results[i] = results[i].toDouble();
 			}
 		}
 		return results;
@@ -137,38 +426,34 @@ public class Graph {
 	}*/
 
 	/***
-	 * Calculate the gradient with respect to the given node.
+	 * Calculate the gradient of node with respect to every variable it depends on.
 	 * @param inputFeed A Hash Map of the input node -> matrix values.
 	 * @param fwd The values from the forward pass if already computed.  If null, will compute them.
 	 * @param node The value with respect to which we want the gradient.
-	 * @return Returns an array of matrices wherein Matrix[node.id] corresponds to the node's gradient.
+	 * @return Returns an array of matrices wherein Matrix[n.id] is the gradient for each variable n and each node
+	 * between the variables and the target.  Inputs, constants, and side branches are null.  Use the wrt overload to
+	 * get the gradient of an input.
 	 */
 	public Matrix[] getGradient(Map<Node, Matrix> inputFeed, Matrix[] fwd, Node node) {
-		// If forward pass isn't calculated, do that.
+		// If the forward pass isn't calculated, only compute what the target depends on.
+		ExecutionPlan plan = getPlan(node);
 		if(fwd == null) {
-			fwd = forward(inputFeed);
-		}
-
-		// Populate our initial adjoints/gradients.
-		Matrix[] grads = new Matrix[nodes.size()];
-		grads[node.id] = Matrix.ones(node.rows, node.columns); // The output/target gets 1.0.
-		// Everything else gets 0.0.
-		for(int i=0; i < node.id; i++) {
-			grads[i] = new Matrix(nodes.get(i).rows, nodes.get(i).columns);
+			fwd = plan.forward(inputFeed);
 		}
+		return plan.getGradient(inputFeed, fwd, node);
+	}
 
-		// Starting from the out and propagating backwards, calculate the adjoints.
-		for(int i=node.id; i >= 0; i--) {
-			// For all the inputs to this node, calculate their adjoints from this adjoint.
-			Matrix[] argInputs = new Matrix[nodes.get(i).inputs.length];
-			for(int j=0; j < argInputs.length; j++) {
-				argInputs[j] = fwd[nodes.get(i).inputs[j].id];
-			}
-			Matrix[] nextAdjoints = nodes.get(i).reverse(argInputs, grads[i]);
-			for(int j=0; j < nodes.get(i).inputs.length; j++) {
-				grads[nodes.get(i).inputs[j].id].elementOp_i(nextAdjoints[j], (a,b) -> a+b);
-			}
-		}
-		return grads;
+	/***
+	 * Calculate the gradient of node with respect to only the given nodes (usually the trainable variables).
+	 * The reverse pass skips everything that isn't on a path from one of them to the target: inputs, constants,
+	 * and side branches don't get reverse called or a gradient allocated.
+	 * @param inputFeed A Hash Map of the input node -> matrix values.
+	 * @param fwd The values from the forward pass if already computed.  If null, will compute them.
+	 * @param node The value with respect to which we want the gradient.
+	 * @param wrt The nodes we want gradients for.
+	 * @return Returns an array indexed by node id.  Nodes off the path are null.  See ExecutionPlan.getGradientPath.
+	 */
+	public Matrix[] getGradient(Map<Node, Matrix> inputFeed, Matrix[] fwd, Node node, Node... wrt) {
+		return getPlan(node).getGradient(ExecutionContext.UNPOOLED, inputFeed, fwd, node, wrt);
 	}
 }
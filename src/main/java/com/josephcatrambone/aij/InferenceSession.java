@@ -0,0 +1,67 @@
+package com.josephcatrambone.aij;
+
+import com.josephcatrambone.aij.nodes.InputNode;
+import com.josephcatrambone.aij.nodes.Node;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a compiled plan for inference from any number of threads at once, with no locks and nothing shared that a
+ * call can change.  Get one from Graph.getInferenceSession.
+ *
+ * Every calling thread gets its own pooled ExecutionContext in inference mode, so Dropout is off for these calls only
+ * and the forward pass doesn't allocate once the thread's pool is warm.  Results are copied out of the pool before
+ * they're returned, so callers can keep them.
+ *
+ * The plan is fixed when the session is made, but the weights are read live.  Updating variables while requests are
+ * in flight is safe from crashes, but a request may see a mix of old and new weights.
+ */
+public final class InferenceSession {
+	public final ExecutionPlan plan;
+
+	private final ThreadLocal<ExecutionContext> contexts = ThreadLocal.withInitial(() -> new ExecutionContext().setTraining(false));
+
+	InferenceSession(ExecutionPlan plan) {
+		if(plan.outputs.length == 0) {
+			throw new IllegalArgumentException("An inference session needs at least one output.");
+		}
+		this.plan = plan;
+	}
+
+	/*** The inputs to feed, in id order.  Inputs that can't affect the outputs aren't needed. */
+	public InputNode[] getInputs() {
+		return plan.getInputs();
+	}
+
+	/***
+	 * Evaluate the session's outputs.
+	 * @param datafeed A map of input node -> value.
+	 * @return Returns a copy of each output, as doubles, in the order they were given to getInferenceSession.
+	 */
+	public Matrix[] evaluate(Map<Node, Matrix> datafeed) {
+		Matrix[] results = plan.evaluate(contexts.get(), datafeed);
+		Matrix[] outputs = new Matrix[plan.outputs.length];
+		for(int i=0; i < outputs.length; i++) {
+			outputs[i] = copyOut(results[plan.outputs[i].id]);
+		}
+		return outputs;
+	}
+
+	/***
+	 * Evaluate the first output and return its values, like Graph.getOutput.
+	 */
+	public double[] getOutput(Map<Node, double[]> datafeed) {
+		HashMap<Node, Matrix> feed = new HashMap<>();
+		for(InputNode n : plan.inputs) {
+			feed.put(n, new Matrix(n.rows, n.columns, datafeed.get(n)));
+		}
+		Matrix[] results = plan.evaluate(contexts.get(), feed);
+		return copyOut(results[plan.outputs[0].id]).data;
+	}
+
+	// A plain double copy that doesn't point into the context's pool.
+	private static Matrix copyOut(Matrix m) {
+		return m.hasArrayData() ? m.copy() : m.toDouble();
+	}
+}
@@ -0,0 +1,143 @@
+package com.josephcatrambone.aij;
+
+/**
+ * The innermost loops behind Matrix's element-wise ops, the sum reductions and GEMM, over raw arrays.
+ * This class is the plain scalar version.  When the JVM has the jdk.incubator.vector module (JDK 16+, run with
+ * --add-modules jdk.incubator.vector) get() returns VectorKernels instead, which does the same thing with SIMD.
+ * VectorKernels lives in the separate 'vector' source set so the rest of the library still builds for Java 8.
+ * Set the 'aij.vector' system property to false to force the scalar kernels.
+ *
+ * The element-wise kernels give bit-identical results either way.  sum, dot and the GEMM tile reassociate their
+ * additions, so those can differ in the last few bits.
+ */
+public class Kernels {
+	public static final String VECTOR_PROPERTY = "aij.vector";
+	public static final String VECTOR_KERNELS_CLASS = "com.josephcatrambone.aij.VectorKernels";
+
+	private static final Kernels active = load();
+
+	protected Kernels() {}
+
+	/***
+	 * The fastest kernels this JVM supports.  Chosen once, at class load.
+	 */
+	public static Kernels get() {
+		return active;
+	}
+
+	/***
+	 * The scalar kernels, whatever get() picked.  For testing and benchmarking.
+	 */
+	public static Kernels scalar() {
+		return new Kernels();
+	}
+
+	public static boolean isVectorized() {
+		return active.getClass() != Kernels.class;
+	}
+
+	private static Kernels load() {
+		if(!Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true"))) {
+			return new Kernels();
+		}
+		try {
+			Kernels k = (Kernels)Class.forName(VECTOR_KERNELS_CLASS).newInstance();
+			// The class can load fine and still fail to link against the vector module on first use, so try it.
+			if(k.sum(new double[]{1, 2, 3, 4, 5}, 0, 5) == 15.0) {
+				return k;
+			}
+		} catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// Not built, too old a JVM, or the module wasn't added.  The scalar kernels work everywhere.
+		}
+		return new Kernels();
+	}
+
+	// out = a + b, elementwise, over n elements.  out may alias a or b.
+	public void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		for(int i=0; i < n; i++) { out[outOffset+i] = a[aOffset+i] + b[bOffset+i]; }
+	}
+
+	public void sub(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		for(int i=0; i < n; i++) { out[outOffset+i] = a[aOffset+i] - b[bOffset+i]; }
+	}
+
+	public void mul(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		for(int i=0; i < n; i++) { out[outOffset+i] = a[aOffset+i] * b[bOffset+i]; }
+	}
+
+	// out = alpha*x.
+	public void scale(double alpha, double[] x, int xOffset, double[] out, int outOffset, int n) {
+		for(int i=0; i < n; i++) { out[outOffset+i] = alpha*x[xOffset+i]; }
+	}
+
+	// y += alpha*x.
+	public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int n) {
+		for(int i=0; i < n; i++) { y[yOffset+i] += alpha*x[xOffset+i]; }
+	}
+
+	public double sum(double[] x, int offset, int n) {
+		double accumulator = 0;
+		for(int i=0; i < n; i++) { accumulator += x[offset+i]; }
+		return accumulator;
+	}
+
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		double accumulator = 0;
+		for(int i=0; i < n; i++) { accumulator += a[aOffset+i]*b[bOffset+i]; }
+		return accumulator;
+	}
+
+	/***
+	 * GEMM's register tile: c += the product of one packed MR-row strip of A and one packed NR-column strip of B
+	 * (GEMM.MR = GEMM.NR = 4), holding the whole tile in locals.  Only the top-left rows x columns of it land in c.
+	 */
+	public void gemmTile(int kc, double[] pa, int aIndex, double[] pb, int bIndex, double[] c, int cIndex, int cRowStride, int rows, int columns) {
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+		for(int p=0; p < kc; p++) {
+			double b0 = pb[bIndex];
+			double b1 = pb[bIndex+1];
+			double b2 = pb[bIndex+2];
+			double b3 = pb[bIndex+3];
+
+			double a0 = pa[aIndex];
+			c00 += a0*b0; c01 += a0*b1; c02 += a0*b2; c03 += a0*b3;
+			double a1 = pa[aIndex+1];
+			c10 += a1*b0; c11 += a1*b1; c12 += a1*b2; c13 += a1*b3;
+			double a2 = pa[aIndex+2];
+			c20 += a2*b0; c21 += a2*b1; c22 += a2*b2; c23 += a2*b3;
+			double a3 = pa[aIndex+3];
+			c30 += a3*b0; c31 += a3*b1; c32 += a3*b2; c33 += a3*b3;
+
+			aIndex += 4;
+			bIndex += 4;
+		}
+
+		if(rows == 4 && columns == 4) {
+			int r0 = cIndex;
+			int r1 = r0 + cRowStride;
+			int r2 = r1 + cRowStride;
+			int r3 = r2 + cRowStride;
+			c[r0] += c00; c[r0+1] += c01; c[r0+2] += c02; c[r0+3] += c03;
+			c[r1] += c10; c[r1+1] += c11; c[r1+2] += c12; c[r1+3] += c13;
+			c[r2] += c20; c[r2+1] += c21; c[r2+2] += c22; c[r2+3] += c23;
+			c[r3] += c30; c[r3+1] += c31; c[r3+2] += c32; c[r3+3] += c33;
+		} else {
+			// Edge tile.  Only write back the part that lands inside C.
+			addRow(c, cIndex, columns, c00, c01, c02, c03);
+			if(rows > 1) { addRow(c, cIndex + cRowStride, columns, c10, c11, c12, c13); }
+			if(rows > 2) { addRow(c, cIndex + 2*cRowStride, columns, c20, c21, c22, c23); }
+			if(rows > 3) { addRow(c, cIndex + 3*cRowStride, columns, c30, c31, c32, c33); }
+		}
+	}
+
+	protected static void addRow(double[] c, int index, int columns, double v0, double v1, double v2, double v3) {
+		c[index] += v0;
+		if(columns > 1) { c[index+1] += v1; }
+		if(columns > 2) { c[index+2] += v2; }
+		if(columns > 3) { c[index+3] += v3; }
+	}
+}
@@ -4,8 +4,8 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.StringJoiner;
 import java.util.function.BiFunction;
-import java.util.function.BinaryOperator;
-import java.util.function.UnaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.IntStream;
 
 /**
@@ -17,11 +17,21 @@ public class Matrix implements Serializable {
 	public double[] data;
 
 	public static Matrix identity(int rows) {
-		return new Matrix(rows, rows, (a,b) -> { if(a==b) {return 1.0;} else {return 0.0;} } );
+		Matrix m = new Matrix(rows, rows);
+		for(int i=0; i < rows; i++) {
+			m.data[i + i*rows] = 1.0;
+		}
+		return m;
 	}
 
 	public static Matrix ones(int rows, int columns) {
-		return new Matrix(rows, columns, (a,b) -> 1.0);
+		return full(rows, columns, 1.0);
+	}
+
+	public static Matrix full(int rows, int columns, double value) {
+		Matrix m = new Matrix(rows, columns);
+		Arrays.fill(m.data, value);
+		return m;
 	}
 
 	public Matrix() {
@@ -68,69 +78,310 @@ public class Matrix implements Serializable {
 		this.data[c + r*columns] = n;
 	}
 
-	public void elementOp_i(UnaryOperator<Double> op) {
+	public void elementOp_i(DoubleUnaryOperator op) {
 		// Parallel version.
-		//IntStream.range(0, this.data.length).parallel().forEach(i -> this.data[i] = op.apply(this.data[i]));
+		//IntStream.range(0, this.data.length).parallel().forEach(i -> this.data[i] = op.applyAsDouble(this.data[i]));
 		// Serial version.
-		for(int i=0; i < this.data.length; i++) { this.data[i] = op.apply(this.data[i]); }
+		for(int i=0; i < this.data.length; i++) { this.data[i] = op.applyAsDouble(this.data[i]); }
 	}
 
-	public Matrix elementOp(UnaryOperator<Double> op) {
+	public Matrix elementOp(DoubleUnaryOperator op) {
 		// Parallel version:
 		/*
 		return new Matrix(this.rows, this.columns,
-			Arrays.stream(this.data).parallel().map(x -> op.apply(x)).toArray()
+			Arrays.stream(this.data).parallel().map(op).toArray()
 		);
 		*/
 		// Serial is faster than parallel?
-		return new Matrix(this.rows, this.columns, (r,c) -> op.apply(get(r,c)));
+		double[] result = new double[this.data.length];
+		for(int i=0; i < result.length; i++) { result[i] = op.applyAsDouble(this.data[i]); }
+		return new Matrix(this.rows, this.columns, result);
+	}
+
+	/***
+	 * Like elementOp, but writes into a preallocated matrix of the same size.  result may be this.
+	 */
+	public Matrix elementOp(DoubleUnaryOperator op, Matrix result) {
+		assert(result.data.length == this.data.length);
+		for(int i=0; i < this.data.length; i++) { result.data[i] = op.applyAsDouble(this.data[i]); }
+		return result;
 	}
 
-	public void elementOp_i(Matrix other, BinaryOperator<Double> op) {
+	public void elementOp_i(Matrix other, DoubleBinaryOperator op) {
 		// Parallel version:
 		/*
 		this.data = IntStream.range(0, data.length).parallel().mapToDouble(
-			i -> op.apply(data[i], other.data[i])
+			i -> op.applyAsDouble(data[i], other.data[i])
 		).toArray();
 		*/
 		// Serial version:
 		for(int i=0; i < this.data.length; i++) {
-			this.data[i] = op.apply(this.data[i], other.data[i]);
+			this.data[i] = op.applyAsDouble(this.data[i], other.data[i]);
 		}
 	}
 
-	public Matrix elementOp(Matrix other, BinaryOperator<Double> op) {
+	public Matrix elementOp(Matrix other, DoubleBinaryOperator op) {
 		// Parallel version:
 		/*
 		return new Matrix(this.rows, this.columns, IntStream.range(0, data.length).parallel().mapToDouble(
-			i -> op.apply(this.data[i], other.data[i])
+			i -> op.applyAsDouble(this.data[i], other.data[i])
 		).toArray());
 		*/
-		return new Matrix(this.rows, this.columns, (r, c) -> op.apply(this.get(r, c), other.get(r, c)));
+		double[] result = new double[this.data.length];
+		for(int i=0; i < result.length; i++) { result[i] = op.applyAsDouble(this.data[i], other.data[i]); }
+		return new Matrix(this.rows, this.columns, result);
 	}
 
-	public Matrix matmul(Matrix other) {
-		// TODO: This function consumes around 60% of CPU time.
-		Matrix result = new Matrix(this.rows, other.columns);
-
-		for (int i = 0; i < rows; i++) {
-			//IntStream.range(0, rows).parallel().forEach( i -> {
-			for (int j = 0; j < other.columns; j++) {
-				double accumulator = 0;
-				for (int k = 0; k < this.columns; k++) {
-					// TODO: This must be made generic.
-					// TODO: The get currently consumes 32% of CPU time.
-					accumulator += this.get(i, k) * other.get(k, j);
-				}
-				result.set(i, j, accumulator);
-			}
-			//});
+	public Matrix elementOp(Matrix other, DoubleBinaryOperator op, Matrix result) {
+		assert(result.data.length == this.data.length);
+		for(int i=0; i < this.data.length; i++) { result.data[i] = op.applyAsDouble(this.data[i], other.data[i]); }
+		return result;
+	}
+
+	// Dedicated kernels for the common element-wise cases.  Straight over the backing arrays via Kernels, no boxing.
+	// The _i variants work in place on this matrix.  The variants taking a result write into it and return it.
+
+	public Matrix add(Matrix other) {
+		Matrix result = this.copy();
+		result.add_i(other);
+		return result;
+	}
+
+	public Matrix add(Matrix other, Matrix result) {
+		assert(this.data.length == other.data.length && this.data.length == result.data.length);
+		Kernels.get().add(this.data, 0, other.data, 0, result.data, 0, this.data.length);
+		return result;
+	}
+
+	public void add_i(Matrix other) {
+		assert(this.data.length == other.data.length);
+		Kernels.get().add(this.data, 0, other.data, 0, this.data, 0, this.data.length);
+	}
+
+	public Matrix sub(Matrix other) {
+		Matrix result = this.copy();
+		result.sub_i(other);
+		return result;
+	}
+
+	public Matrix sub(Matrix other, Matrix result) {
+		assert(this.data.length == other.data.length && this.data.length == result.data.length);
+		Kernels.get().sub(this.data, 0, other.data, 0, result.data, 0, this.data.length);
+		return result;
+	}
+
+	public void sub_i(Matrix other) {
+		assert(this.data.length == other.data.length);
+		Kernels.get().sub(this.data, 0, other.data, 0, this.data, 0, this.data.length);
+	}
+
+	public Matrix mul(Matrix other) {
+		Matrix result = this.copy();
+		result.mul_i(other);
+		return result;
+	}
+
+	public Matrix mul(Matrix other, Matrix result) {
+		assert(this.data.length == other.data.length && this.data.length == result.data.length);
+		Kernels.get().mul(this.data, 0, other.data, 0, result.data, 0, this.data.length);
+		return result;
+	}
+
+	public void mul_i(Matrix other) {
+		assert(this.data.length == other.data.length);
+		Kernels.get().mul(this.data, 0, other.data, 0, this.data, 0, this.data.length);
+	}
+
+	public Matrix scale(double alpha) {
+		Matrix result = this.copy();
+		result.scale_i(alpha);
+		return result;
+	}
+
+	public Matrix scale(double alpha, Matrix result) {
+		assert(this.data.length == result.data.length);
+		Kernels.get().scale(alpha, this.data, 0, result.data, 0, this.data.length);
+		return result;
+	}
+
+	public void scale_i(double alpha) {
+		Kernels.get().scale(alpha, this.data, 0, this.data, 0, this.data.length);
+	}
+
+	// Row broadcasting.  'row' is a 1 x columns matrix applied to every row of this one.
+	// This is what lets a 1 x n bias be added to a whole batch of examples stacked as rows.
+
+	public void addRowVector_i(Matrix row) {
+		assert(row.data.length == this.columns);
+		for(int r=0; r < this.rows; r++) {
+			int offset = r*this.columns;
+			Kernels.get().add(this.data, offset, row.data, 0, this.data, offset, this.columns);
+		}
+	}
+
+	public void subRowVector_i(Matrix row) {
+		assert(row.data.length == this.columns);
+		for(int r=0; r < this.rows; r++) {
+			int offset = r*this.columns;
+			Kernels.get().sub(this.data, offset, row.data, 0, this.data, offset, this.columns);
+		}
+	}
+
+	public void mulRowVector_i(Matrix row) {
+		assert(row.data.length == this.columns);
+		for(int r=0; r < this.rows; r++) {
+			int offset = r*this.columns;
+			Kernels.get().mul(this.data, offset, row.data, 0, this.data, offset, this.columns);
+		}
+	}
+
+	/***
+	 * Sum down each column, giving a 1 x columns matrix.  The adjoint of broadcasting a row vector.
+	 */
+	public Matrix columnSums() {
+		return columnSums(new Matrix(1, this.columns));
+	}
+
+	public Matrix columnSums(Matrix result) {
+		assert(result.data.length == this.columns);
+		Arrays.fill(result.data, 0.0);
+		for(int r=0; r < this.rows; r++) {
+			int offset = r*this.columns;
+			Kernels.get().add(result.data, 0, this.data, offset, result.data, 0, this.columns);
 		}
 		return result;
 	}
 
+	/***
+	 * this += alpha*x.  The workhorse of gradient accumulation and weight updates.
+	 */
+	public void axpy_i(double alpha, Matrix x) {
+		assert(this.data.length == x.data.length);
+		Kernels.get().axpy(alpha, x.data, 0, this.data, 0, this.data.length);
+	}
+
+	public void fill(double value) {
+		Arrays.fill(this.data, value);
+	}
+
+	public Matrix copy() {
+		return new Matrix(this.rows, this.columns, Arrays.copyOf(this.data, this.data.length));
+	}
+
+	/***
+	 * True if the elements live in data.  Subclasses with other storage (FloatMatrix, OffHeapMatrix) return false and
+	 * leave data null.
+	 */
+	public boolean hasArrayData() {
+		return true;
+	}
+
+	/***
+	 * The precision the elements are stored in.
+	 */
+	public Precision getPrecision() {
+		return Precision.FLOAT64;
+	}
+
+	/***
+	 * Read count elements as doubles, starting at flat (row-major) index and stepping by stride, into dst.
+	 * This is how GEMM reads operands which aren't array backed.
+	 */
+	public void getElements(int index, int stride, int count, double[] dst, int dstOffset) {
+		if(stride == 1) {
+			System.arraycopy(this.data, index, dst, dstOffset, count);
+			return;
+		}
+		for(int i=0; i < count; i++) {
+			dst[dstOffset + i] = this.data[index + i*stride];
+		}
+	}
+
+	/***
+	 * Copy the elements into result, which must be a plain double matrix of the same size.
+	 */
+	public Matrix toDouble(Matrix result) {
+		assert(result.data.length == this.data.length);
+		System.arraycopy(this.data, 0, result.data, 0, this.data.length);
+		return result;
+	}
+
+	/***
+	 * This matrix if it's already a plain double matrix, otherwise a widened copy.
+	 */
+	public Matrix toDouble() {
+		return hasArrayData() ? this : toDouble(new Matrix(this.rows, this.columns));
+	}
+
+	public Matrix matmul(Matrix other) {
+		return matmul(other, new Matrix(this.rows, other.columns));
+	}
+
+	/***
+	 * Like matmul, but writes into result, which must be this.rows x other.columns and must not share data with
+	 * either operand.  Any previous contents of result are overwritten.
+	 */
+	public Matrix matmul(Matrix other, Matrix result) {
+		assert(this.columns == other.rows);
+		assert(result.data.length == this.rows*other.columns);
+		Arrays.fill(result.data, 0.0);
+		GEMM.multiplyMixed(
+			this.rows, other.columns, this.columns,
+			this, 0, this.columns, 1,
+			other, 0, other.columns, 1,
+			result.data, 0, result.columns
+		);
+		return result;
+	}
+
+	/***
+	 * Compute this^T * other without building the transpose.
+	 */
+	public Matrix matmulTransposeLeft(Matrix other) {
+		return matmulTransposeLeft(other, new Matrix(this.columns, other.columns));
+	}
+
+	public Matrix matmulTransposeLeft(Matrix other, Matrix result) {
+		assert(this.rows == other.rows);
+		assert(result.data.length == this.columns*other.columns);
+		Arrays.fill(result.data, 0.0);
+		GEMM.multiplyMixed(
+			this.columns, other.columns, this.rows,
+			this, 0, 1, this.columns,
+			other, 0, other.columns, 1,
+			result.data, 0, result.columns
+		);
+		return result;
+	}
+
+	/***
+	 * Compute this * other^T without building the transpose.
+	 */
+	public Matrix matmulTransposeRight(Matrix other) {
+		return matmulTransposeRight(other, new Matrix(this.rows, other.rows));
+	}
+
+	public Matrix matmulTransposeRight(Matrix other, Matrix result) {
+		assert(this.columns == other.columns);
+		assert(result.data.length == this.rows*other.rows);
+		Arrays.fill(result.data, 0.0);
+		GEMM.multiplyMixed(
+			this.rows, other.rows, this.columns,
+			this, 0, this.columns, 1,
+			other, 0, 1, other.columns,
+			result.data, 0, result.columns
+		);
+		return result;
+	}
+
 	public Matrix transpose() {
-		return new Matrix(this.columns, this.rows, (r,c) -> this.get(c, r));
+		Matrix result = new Matrix(this.columns, this.rows);
+		for(int r=0; r < this.rows; r++) {
+			for(int c=0; c < this.columns; c++) {
+				result.data[r + c*this.rows] = this.data[c + r*this.columns];
+			}
+		}
+		return result;
 	}
 
 	public Matrix getSlice(int startRow, int endRow, int startColumn, int endColumn) {
@@ -141,20 +392,15 @@ public class Matrix implements Serializable {
 
 		Matrix slice = new Matrix(endRow-startRow, endColumn-startColumn);
 		for(int row=startRow; row < endRow; row++) {
-			for(int column=startColumn; column < endColumn; column++) {
-				slice.set(row-startRow, column-startColumn, get(row, column));
-			}
+			System.arraycopy(this.data, startColumn + row*this.columns, slice.data, (row-startRow)*slice.columns, slice.columns);
 		}
 		return slice;
 	}
 
 	public void setSlice(int startRow, int startColumn, Matrix m) {
 		int endRow = startRow+m.rows;
-		int endColumn = startColumn+m.columns;
 		for(int row=startRow; row < endRow; row++) {
-			for(int column=startColumn; column < endColumn; column++) {
-				set(row, column, m.get(row-startRow, column-startColumn));
-			}
+			System.arraycopy(m.data, (row-startRow)*m.columns, this.data, startColumn + row*this.columns, m.columns);
 		}
 	}
 
@@ -0,0 +1,129 @@
+package com.josephcatrambone.aij;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Owns a set of OffHeapMatrix instances and the native memory behind them.
+ * Closing the arena closes every matrix it handed out and frees the memory right away, rather than waiting for the
+ * garbage collector to notice the (tiny) buffer objects.  Use it with try-with-resources, or keep it for the life of
+ * a model:
+ *
+ *     try(OffHeapArena arena = new OffHeapArena()) {
+ *         graph.restoreCheckpoint(path, arena);
+ *         ...
+ *     }
+ *
+ * Matrices from a closed arena throw IllegalStateException when touched.  Each matrix is limited to Integer.MAX_VALUE
+ * bytes, like a ByteBuffer.  See OffHeapMatrix.  Not thread safe.
+ */
+public class OffHeapArena implements AutoCloseable {
+	private final ArrayList<OffHeapMatrix> matrices = new ArrayList<>();
+	private final ArrayList<ByteBuffer> buffers = new ArrayList<>();
+	private long allocatedBytes = 0;
+	private boolean closed = false;
+
+	/***
+	 * A zeroed rows x columns matrix in new direct memory.
+	 */
+	public OffHeapMatrix allocate(int rows, int columns, Precision precision) {
+		checkOpen();
+		long bytes = OffHeapMatrix.byteSize(rows, columns, precision);
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+		OffHeapMatrix m = wrap(rows, columns, buffer, precision, buffer);
+		allocatedBytes += bytes;
+		return m;
+	}
+
+	/***
+	 * Move a copy of m off the heap, keeping its precision.
+	 */
+	public OffHeapMatrix copyOf(Matrix m) {
+		OffHeapMatrix result = allocate(m.rows, m.columns, m.getPrecision());
+		double[] row = new double[m.columns];
+		for(int r=0; r < m.rows; r++) {
+			m.getElements(r*m.columns, 1, m.columns, row, 0);
+			for(int c=0; c < m.columns; c++) {
+				result.set(r, c, row[c]);
+			}
+		}
+		return result;
+	}
+
+	/***
+	 * View part of an existing buffer (usually a memory-mapped file) as a matrix.  See the OffHeapMatrix constructor.
+	 * If owner isn't null the arena takes it over and frees it on close.  It must be the buffer that came from
+	 * allocateDirect or FileChannel.map, not a slice or duplicate of one.
+	 */
+	public OffHeapMatrix wrap(int rows, int columns, ByteBuffer bytes, Precision precision, ByteBuffer owner) {
+		checkOpen();
+		OffHeapMatrix m = new OffHeapMatrix(rows, columns, bytes, precision);
+		matrices.add(m);
+		if(owner != null) {
+			buffers.add(owner);
+		}
+		return m;
+	}
+
+	/***
+	 * Bytes of direct memory allocated by allocate and copyOf.  Mapped files aren't counted.
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private void checkOpen() {
+		if(closed) {
+			throw new IllegalStateException("OffHeapArena has been closed.");
+		}
+	}
+
+	@Override
+	public void close() {
+		if(closed) { return; }
+		closed = true;
+		for(OffHeapMatrix m : matrices) {
+			m.close();
+		}
+		matrices.clear();
+		for(ByteBuffer b : buffers) {
+			free(b);
+		}
+		buffers.clear();
+	}
+
+	// Run the buffer's cleaner now instead of at the next GC.  The JDK has no public way to do this before the
+	// foreign memory API, so it's reflective and best effort: if it doesn't work the memory is freed by the GC as usual.
+	// Only ever called on buffers whose matrices have all been closed, so nothing can touch the memory afterwards.
+	private static void free(ByteBuffer buffer) {
+		if(!buffer.isDirect()) { return; }
+		try {
+			// Java 9 and later.
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			// Fall through to the Java 8 way.
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if(cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			// Leave it to the GC.
+		}
+	}
+}
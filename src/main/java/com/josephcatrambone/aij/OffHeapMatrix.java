@@ -0,0 +1,256 @@
+package com.josephcatrambone.aij;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.StringJoiner;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A Matrix whose elements live outside the Java heap, in a direct or memory-mapped buffer of doubles or floats.
+ * The inherited double[] data is null, so the heap cost is a few objects no matter how big the matrix is.
+ *
+ * get/set, getElements, the in-place element-wise ops, axpy_i, fill, copy, toDouble and the matmul family understand
+ * this storage.  Like FloatMatrix, anything else goes through toDouble() first, which the execution plan does for
+ * nodes that need it.  Create these through an OffHeapArena so the memory has a clear owner and gets freed on close.
+ *
+ * One matrix has to fit in a single ByteBuffer, so it's limited to Integer.MAX_VALUE bytes: about 268 million doubles
+ * or 536 million floats.  Asking for a bigger one throws IllegalArgumentException.
+ */
+public class OffHeapMatrix extends Matrix implements AutoCloseable {
+	private static final long serialVersionUID = 1L;
+
+	// Element-wise ops work through a heap buffer this many elements at a time.
+	private static final int CHUNK = 1024;
+
+	// Exactly one is non-null until the matrix is closed, then both are.
+	private DoubleBuffer doubles;
+	private FloatBuffer floats;
+
+	/***
+	 * A zeroed rows x columns matrix in newly allocated direct memory.
+	 */
+	public OffHeapMatrix(int rows, int columns, Precision precision) {
+		this(rows, columns, ByteBuffer.allocateDirect((int)byteSize(rows, columns, precision)).order(ByteOrder.nativeOrder()), precision);
+	}
+
+	/***
+	 * View rows*columns elements at the start of bytes (from its position) as a matrix.  Nothing is copied.
+	 * The bytes' order decides how the elements are decoded.
+	 */
+	public OffHeapMatrix(int rows, int columns, ByteBuffer bytes, Precision precision) {
+		super(rows, columns, (double[])null);
+		byteSize(rows, columns, precision);
+		ByteBuffer view = bytes.slice().order(bytes.order());
+		if(precision == Precision.FLOAT32) {
+			FloatBuffer f = view.asFloatBuffer();
+			f.limit(rows*columns);
+			this.floats = f.slice();
+		} else {
+			DoubleBuffer d = view.asDoubleBuffer();
+			d.limit(rows*columns);
+			this.doubles = d.slice();
+		}
+	}
+
+	/***
+	 * The bytes a rows x columns matrix takes in the given precision.
+	 * Throws IllegalArgumentException if that's more than one ByteBuffer can hold.
+	 */
+	static long byteSize(int rows, int columns, Precision precision) {
+		long bytes = (long)rows*columns*(precision == Precision.FLOAT32 ? 4 : 8);
+		if(rows < 0 || columns < 0 || bytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A " + rows + "x" + columns + " " + precision + " matrix needs " + bytes + " bytes, but an OffHeapMatrix is limited to " + Integer.MAX_VALUE + ".");
+		}
+		return bytes;
+	}
+
+	@Override
+	public boolean hasArrayData() {
+		return false;
+	}
+
+	@Override
+	public Precision getPrecision() {
+		checkOpen();
+		return floats != null ? Precision.FLOAT32 : Precision.FLOAT64;
+	}
+
+	public boolean isClosed() {
+		return doubles == null && floats == null;
+	}
+
+	/***
+	 * Drop the reference to the off-heap memory.  Any further access throws IllegalStateException.
+	 * The arena which made this matrix is what actually frees the memory.
+	 */
+	@Override
+	public void close() {
+		doubles = null;
+		floats = null;
+	}
+
+	private void checkOpen() {
+		if(isClosed()) {
+			throw new IllegalStateException("OffHeapMatrix has been closed.");
+		}
+	}
+
+	@Override
+	public double get(int r, int c) {
+		checkOpen();
+		int i = c + r*columns;
+		return floats != null ? floats.get(i) : doubles.get(i);
+	}
+
+	@Override
+	public void set(int r, int c, double n) {
+		checkOpen();
+		int i = c + r*columns;
+		if(floats != null) {
+			floats.put(i, (float)n);
+		} else {
+			doubles.put(i, n);
+		}
+	}
+
+	@Override
+	public void getElements(int index, int stride, int count, double[] dst, int dstOffset) {
+		checkOpen();
+		if(stride == 1 && doubles != null) {
+			DoubleBuffer d = doubles.duplicate();
+			d.position(index);
+			d.get(dst, dstOffset, count);
+			return;
+		}
+		if(floats != null) {
+			for(int i=0; i < count; i++) {
+				dst[dstOffset + i] = floats.get(index + i*stride);
+			}
+		} else {
+			for(int i=0; i < count; i++) {
+				dst[dstOffset + i] = doubles.get(index + i*stride);
+			}
+		}
+	}
+
+	// Write count elements from src back to index onwards, contiguous.
+	private void putElements(int index, int count, double[] src) {
+		if(doubles != null) {
+			DoubleBuffer d = doubles.duplicate();
+			d.position(index);
+			d.put(src, 0, count);
+		} else {
+			for(int i=0; i < count; i++) {
+				floats.put(index + i, (float)src[i]);
+			}
+		}
+	}
+
+	@Override
+	public Matrix toDouble(Matrix result) {
+		assert(result.data.length == rows*columns);
+		getElements(0, 1, rows*columns, result.data, 0);
+		return result;
+	}
+
+	@Override
+	public void elementOp_i(DoubleUnaryOperator op) {
+		checkOpen();
+		double[] chunk = new double[Math.min(CHUNK, rows*columns)];
+		for(int start=0; start < rows*columns; start += CHUNK) {
+			int count = Math.min(CHUNK, rows*columns-start);
+			getElements(start, 1, count, chunk, 0);
+			for(int i=0; i < count; i++) { chunk[i] = op.applyAsDouble(chunk[i]); }
+			putElements(start, count, chunk);
+		}
+	}
+
+	@Override
+	public Matrix elementOp(DoubleUnaryOperator op) {
+		return toDouble().elementOp(op);
+	}
+
+	@Override
+	public void elementOp_i(Matrix other, DoubleBinaryOperator op) {
+		checkOpen();
+		assert(other.rows*other.columns == rows*columns);
+		double[] chunk = new double[Math.min(CHUNK, rows*columns)];
+		double[] otherChunk = new double[chunk.length];
+		for(int start=0; start < rows*columns; start += CHUNK) {
+			int count = Math.min(CHUNK, rows*columns-start);
+			getElements(start, 1, count, chunk, 0);
+			other.getElements(start, 1, count, otherChunk, 0);
+			for(int i=0; i < count; i++) { chunk[i] = op.applyAsDouble(chunk[i], otherChunk[i]); }
+			putElements(start, count, chunk);
+		}
+	}
+
+	@Override
+	public void add_i(Matrix other) {
+		elementOp_i(other, (a, b) -> a + b);
+	}
+
+	@Override
+	public void sub_i(Matrix other) {
+		elementOp_i(other, (a, b) -> a - b);
+	}
+
+	@Override
+	public void mul_i(Matrix other) {
+		elementOp_i(other, (a, b) -> a * b);
+	}
+
+	@Override
+	public void scale_i(double alpha) {
+		elementOp_i(v -> v*alpha);
+	}
+
+	@Override
+	public void axpy_i(double alpha, Matrix x) {
+		elementOp_i(x, (a, b) -> a + alpha*b);
+	}
+
+	@Override
+	public void fill(double value) {
+		elementOp_i(v -> value);
+	}
+
+	/***
+	 * A copy on the heap, in the same precision.
+	 */
+	@Override
+	public Matrix copy() {
+		checkOpen();
+		if(floats != null) {
+			FloatMatrix m = new FloatMatrix(rows, columns);
+			FloatBuffer f = floats.duplicate();
+			f.rewind();
+			f.get(m.floatData);
+			return m;
+		}
+		return toDouble(new Matrix(rows, columns));
+	}
+
+	// Same format as Matrix, so Matrix.fromString reads it back (as doubles).
+	@Override
+	public String toString() {
+		checkOpen();
+		StringBuilder sb = new StringBuilder();
+		sb.append("[MATRIX]");
+		sb.append("[");
+		sb.append(rows);
+		sb.append(",");
+		sb.append(columns);
+		sb.append("]");
+
+		StringJoiner sj = new StringJoiner(",", "[", "");
+		for(int i=0; i < rows*columns; i++) {
+			sj.add(floats != null ? ""+floats.get(i) : ""+doubles.get(i));
+		}
+		sb.append(sj.toString());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,11 @@
+package com.josephcatrambone.aij;
+
+/**
+ * How a VariableNode stores its weights.
+ * FLOAT32 halves the memory and bandwidth of the weights.  Arithmetic is still done (and accumulated) in double,
+ * so only the stored values are rounded.
+ */
+public enum Precision {
+	FLOAT64,
+	FLOAT32
+}
@@ -0,0 +1,45 @@
+package com.josephcatrambone.aij.data;
+
+import java.util.Arrays;
+
+/**
+ * One minibatch from a BatchLoader: x[i] is the input for example i and y[i] its target.
+ * The row arrays are reused from batch to batch, so a batch is only good until the loader's next call to next().
+ */
+public class Batch {
+	public double[][] x;
+	public double[][] y;
+
+	// Full-size row buffers.  x and y are these, or a shorter prefix of them for the last batch of an epoch.
+	private final double[][] xRows;
+	private final double[][] yRows;
+
+	Batch(int capacity, int inputSize, int targetSize) {
+		xRows = new double[capacity][inputSize];
+		yRows = new double[capacity][targetSize];
+		x = xRows;
+		y = yRows;
+	}
+
+	public int size() {
+		return x.length;
+	}
+
+	double[] inputRow(int i) {
+		return xRows[i];
+	}
+
+	double[] targetRow(int i) {
+		return yRows[i];
+	}
+
+	void setSize(int size) {
+		if(size == xRows.length) {
+			x = xRows;
+			y = yRows;
+		} else if(size != x.length) {
+			x = Arrays.copyOf(xRows, size);
+			y = Arrays.copyOf(yRows, size);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.josephcatrambone.aij.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Turns a DataStream into one epoch of minibatches, ready for Sequential.fitBatches.
+ *
+ *     try(BatchLoader batches = new BatchLoader(stream, 32, 10000, 2, seed)) {
+ *         model.fitBatches(batches, learningRate, Sequential.Loss.SQUARED);
+ *     }
+ *
+ * With a shuffle buffer, examples go into a pool of that many and each one emitted is picked at random from the pool,
+ * then replaced by the next from the stream.  That shuffles locally without ever holding the whole dataset.  Make
+ * the buffer a good fraction of the dataset (or of whatever ordering the data was written in) for a good shuffle.
+ *
+ * With prefetching, a background thread fills the next few batches while the caller trains on the current one, so
+ * reading and decoding overlap the compute.  Batches come out of a small fixed pool and are recycled, so a batch is
+ * only valid until the next call to next().  Copy out anything you need to keep.
+ *
+ * The loader resets the stream when it's created and reads it once.  Make a new loader for each epoch.
+ * It doesn't close the stream.  Not thread safe, apart from its own background thread.
+ */
+public class BatchLoader implements Iterator<Batch>, AutoCloseable {
+	// Marks the end of the epoch in the ready queue, and tells the worker to stop when it's in the free queue.
+	private static final Batch END = new Batch(0, 0, 0);
+
+	private final DataStream source;
+	private final int batchSize;
+	private final Random random;
+
+	// The shuffle pool, or null for no shuffling.  Slots below shuffleCount hold examples not yet emitted.
+	private final double[][] shuffleX;
+	private final double[][] shuffleY;
+	private int shuffleCount = 0;
+	private boolean sourceDone = false;
+
+	private final ArrayBlockingQueue<Batch> free;
+	private final ArrayBlockingQueue<Batch> ready; // Only used with prefetching.
+	private final Thread worker;
+	private volatile Throwable failure = null;
+	private volatile boolean closed = false;
+
+	private Batch current = null; // Handed to the caller.  Recycled on the next call to next().
+	private Batch peeked = null; // Read by hasNext, not yet handed out.
+
+	/***
+	 * Unshuffled, with one batch prefetched.
+	 */
+	public BatchLoader(DataStream source, int batchSize) {
+		this(source, batchSize, 0, 1, new Random().nextLong());
+	}
+
+	/***
+	 * @param source Where the examples come from.  Reset before the first read.
+	 * @param batchSize Examples per batch.  The last batch of the epoch may be smaller.
+	 * @param shuffleBufferSize Examples to shuffle among.  0 or 1 keeps the stream's order.
+	 * @param prefetchBatches Batches to read ahead on a background thread.  0 reads on the caller's thread.
+	 * @param seed Seed for the shuffle.
+	 */
+	public BatchLoader(DataStream source, int batchSize, int shuffleBufferSize, int prefetchBatches, long seed) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least one.  Got " + batchSize);
+		}
+		this.source = source;
+		this.batchSize = batchSize;
+		this.random = new Random(seed);
+		if(shuffleBufferSize > 1) {
+			shuffleX = new double[shuffleBufferSize][source.getInputSize()];
+			shuffleY = new double[shuffleBufferSize][source.getTargetSize()];
+		} else {
+			shuffleX = null;
+			shuffleY = null;
+		}
+		try {
+			source.reset();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		// One batch with the caller, one peeked, and the rest in flight.
+		int poolSize = prefetchBatches + 2;
+		free = new ArrayBlockingQueue<>(poolSize);
+		for(int i=0; i < poolSize; i++) {
+			free.add(new Batch(batchSize, source.getInputSize(), source.getTargetSize()));
+		}
+		if(prefetchBatches > 0) {
+			ready = new ArrayBlockingQueue<>(poolSize+1);
+			worker = new Thread(this::prefetch, "aij-batch-loader");
+			worker.setDaemon(true);
+			worker.start();
+		} else {
+			ready = null;
+			worker = null;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(peeked == null) {
+			peeked = take();
+		}
+		return peeked != END;
+	}
+
+	@Override
+	public Batch next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if(current != null) {
+			free.add(current);
+		}
+		current = peeked;
+		peeked = null;
+		return current;
+	}
+
+	/***
+	 * Stop the background thread.  The stream is left open.
+	 * If the thread is in the middle of reading a batch, this waits for that read to finish.  The thread is never
+	 * interrupted, since an interrupt during a read would close the caller's FileChannel.
+	 */
+	@Override
+	public void close() {
+		if(closed) { return; }
+		closed = true;
+		if(worker != null) {
+			// The worker only ever blocks waiting on the free queue.  If it's full the worker won't wait, and it sees
+			// closed before it takes again.
+			free.offer(END);
+			try {
+				worker.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private Batch take() {
+		if(closed) {
+			throw new IllegalStateException("BatchLoader has been closed.");
+		}
+		if(worker == null) {
+			Batch b = free.poll();
+			boolean filled = false;
+			try {
+				filled = fill(b);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				if(!filled) { free.add(b); }
+			}
+			return filled ? b : END;
+		}
+		Batch b;
+		try {
+			b = ready.take();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for the next batch.", e);
+		}
+		if(b == END) {
+			ready.add(END); // So hasNext keeps saying no.
+			Throwable t = failure;
+			if(t instanceof IOException) {
+				throw new UncheckedIOException((IOException)t);
+			} else if(t instanceof RuntimeException) {
+				throw (RuntimeException)t;
+			} else if(t instanceof Error) {
+				throw (Error)t;
+			}
+		}
+		return b;
+	}
+
+	private void prefetch() {
+		try {
+			while(!closed) {
+				Batch b = free.take();
+				if(b == END || !fill(b)) { break; }
+				ready.put(b);
+			}
+		} catch(InterruptedException e) {
+			// Somebody else's interrupt.  Stop, same as being closed.
+		} catch(Throwable t) {
+			failure = t;
+		}
+		ready.offer(END);
+	}
+
+	// Read up to batchSize examples into b.  False if the epoch is over.
+	private boolean fill(Batch b) throws IOException {
+		int n = 0;
+		while(n < batchSize && nextExample(b.inputRow(n), b.targetRow(n))) {
+			n++;
+		}
+		if(n == 0) { return false; }
+		b.setSize(n);
+		return true;
+	}
+
+	private boolean nextExample(double[] x, double[] y) throws IOException {
+		if(shuffleX == null) {
+			return source.next(x, y);
+		}
+		while(!sourceDone && shuffleCount < shuffleX.length) {
+			if(source.next(shuffleX[shuffleCount], shuffleY[shuffleCount])) {
+				shuffleCount++;
+			} else {
+				sourceDone = true;
+			}
+		}
+		if(shuffleCount == 0) { return false; }
+
+		int i = random.nextInt(shuffleCount);
+		System.arraycopy(shuffleX[i], 0, x, 0, x.length);
+		System.arraycopy(shuffleY[i], 0, y, 0, y.length);
+		if(!sourceDone && source.next(shuffleX[i], shuffleY[i])) {
+			return true; // Refilled the slot in place.
+		}
+		// Nothing left to refill with.  Move the last live slot into the hole.
+		sourceDone = true;
+		shuffleCount--;
+		double[] tempX = shuffleX[i];
+		double[] tempY = shuffleY[i];
+		shuffleX[i] = shuffleX[shuffleCount];
+		shuffleY[i] = shuffleY[shuffleCount];
+		shuffleX[shuffleCount] = tempX;
+		shuffleY[shuffleCount] = tempY;
+		return true;
+	}
+}
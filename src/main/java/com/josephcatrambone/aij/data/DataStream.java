@@ -0,0 +1,32 @@
+package com.josephcatrambone.aij.data;
+
+import java.io.IOException;
+
+/**
+ * A sequential source of training examples, one (input, target) pair at a time.
+ * Examples are read into buffers the caller owns, so a stream never has to hold more than it's reading right now.
+ * That's what lets BatchLoader train on datasets much bigger than memory.
+ */
+public interface DataStream extends AutoCloseable {
+	/*** The length of every input row. */
+	int getInputSize();
+
+	/*** The length of every target row. */
+	int getTargetSize();
+
+	/***
+	 * Read the next example.
+	 * @param x Filled with the input.  Length getInputSize().
+	 * @param y Filled with the target.  Length getTargetSize().
+	 * @return Returns false, leaving x and y alone, when the stream is out of examples.
+	 */
+	boolean next(double[] x, double[] y) throws IOException;
+
+	/***
+	 * Go back to the first example, for the next epoch.
+	 */
+	void reset() throws IOException;
+
+	@Override
+	void close() throws IOException;
+}
@@ -0,0 +1,178 @@
+package com.josephcatrambone.aij.data;
+
+import com.josephcatrambone.aij.Precision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A DataStream over two flat binary files, one of inputs and one of targets, read through memory maps.
+ * Each file is just its rows back to back: row-major, little-endian, no header.  write() makes them.
+ *
+ * The files are mapped a segment at a time and only read front to back, so the OS can read ahead and drop pages we're
+ * done with.  A file can be much bigger than memory (or than the 2GB limit on one map).
+ */
+public class MappedDataStream implements DataStream {
+	// How much of a file is mapped at once.  Rounded down to whole rows.
+	private static final long SEGMENT_BYTES = 1L << 28;
+
+	private final Column inputs;
+	private final Column targets;
+	private final long rowCount;
+	private long position = 0;
+
+	/***
+	 * @param inputPath The input rows.
+	 * @param targetPath The target rows.  Must have the same number of rows as inputPath.
+	 * @param inputSize Values per input row.
+	 * @param targetSize Values per target row.
+	 * @param precision Whether the files hold floats or doubles.  Both files use the same.
+	 */
+	public MappedDataStream(Path inputPath, Path targetPath, int inputSize, int targetSize, Precision precision) throws IOException {
+		this.inputs = new Column(inputPath, inputSize, precision);
+		try {
+			this.targets = new Column(targetPath, targetSize, precision);
+		} catch(IOException | RuntimeException e) {
+			inputs.close();
+			throw e;
+		}
+		if(inputs.rowCount != targets.rowCount) {
+			close();
+			throw new IllegalArgumentException(inputPath + " has " + inputs.rowCount + " rows but " + targetPath + " has " + targets.rowCount);
+		}
+		this.rowCount = inputs.rowCount;
+	}
+
+	/***
+	 * Write rows in the format this stream reads.
+	 */
+	public static void write(Path path, double[][] rows, Precision precision) throws IOException {
+		int width = rows.length == 0 ? 0 : rows[0].length;
+		int valueBytes = precision == Precision.FLOAT32 ? 4 : 8;
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, width*valueBytes)).order(ByteOrder.LITTLE_ENDIAN);
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for(double[] row : rows) {
+				if(row.length != width) {
+					throw new IllegalArgumentException("Every row must be the same length.  Expected " + width + " but got " + row.length);
+				}
+				buffer.clear();
+				for(double v : row) {
+					if(valueBytes == 4) {
+						buffer.putFloat((float)v);
+					} else {
+						buffer.putDouble(v);
+					}
+				}
+				buffer.flip();
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+	/*** The number of examples in the files. */
+	public long size() {
+		return rowCount;
+	}
+
+	@Override
+	public int getInputSize() {
+		return inputs.width;
+	}
+
+	@Override
+	public int getTargetSize() {
+		return targets.width;
+	}
+
+	@Override
+	public boolean next(double[] x, double[] y) throws IOException {
+		if(position >= rowCount) { return false; }
+		inputs.read(position, x);
+		targets.read(position, y);
+		position++;
+		return true;
+	}
+
+	@Override
+	public void reset() {
+		position = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			inputs.close();
+		} finally {
+			if(targets != null) {
+				targets.close();
+			}
+		}
+	}
+
+	// One of the two files, and whichever segment of it is mapped right now.
+	private static final class Column {
+		final FileChannel channel;
+		final int width;
+		final int valueBytes;
+		final long rowCount;
+		final long rowsPerSegment;
+		long segmentStart = -1; // First row of the mapped segment.
+		DoubleBuffer doubles;
+		FloatBuffer floats;
+
+		Column(Path path, int width, Precision precision) throws IOException {
+			this.width = width;
+			this.valueBytes = precision == Precision.FLOAT32 ? 4 : 8;
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			long rowBytes = (long)width*valueBytes;
+			long fileSize = channel.size();
+			if(rowBytes == 0 || fileSize % rowBytes != 0) {
+				channel.close();
+				throw new IllegalArgumentException(path + " is " + fileSize + " bytes, which isn't a whole number of " + width + "-value rows.");
+			}
+			this.rowCount = fileSize / rowBytes;
+			this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / rowBytes);
+		}
+
+		void read(long row, double[] dst) throws IOException {
+			if(segmentStart < 0 || row < segmentStart || row >= segmentStart+rowsPerSegment) {
+				map(row - row % rowsPerSegment);
+			}
+			int offset = (int)(row - segmentStart)*width;
+			if(doubles != null) {
+				doubles.position(offset);
+				doubles.get(dst, 0, width);
+			} else {
+				for(int i=0; i < width; i++) {
+					dst[i] = floats.get(offset+i);
+				}
+			}
+		}
+
+		private void map(long firstRow) throws IOException {
+			long rows = Math.min(rowsPerSegment, rowCount - firstRow);
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, firstRow*width*valueBytes, rows*width*valueBytes).order(ByteOrder.LITTLE_ENDIAN);
+			// The previous segment is unmapped when the GC collects it.
+			if(valueBytes == 4) {
+				floats = bytes.asFloatBuffer();
+			} else {
+				doubles = bytes.asDoubleBuffer();
+			}
+			segmentStart = firstRow;
+		}
+
+		void close() throws IOException {
+			doubles = null;
+			floats = null;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.josephcatrambone.aij.data;
+
+/**
+ * A DataStream over examples already in memory.  Rows are copied out, never modified.
+ */
+public class MemoryDataStream implements DataStream {
+	private final double[][] x;
+	private final double[][] y;
+	private int position = 0;
+
+	public MemoryDataStream(double[][] x, double[][] y) {
+		if(x.length != y.length) {
+			throw new IllegalArgumentException("Got " + x.length + " inputs but " + y.length + " targets.");
+		}
+		this.x = x;
+		this.y = y;
+	}
+
+	@Override
+	public int getInputSize() {
+		return x.length == 0 ? 0 : x[0].length;
+	}
+
+	@Override
+	public int getTargetSize() {
+		return y.length == 0 ? 0 : y[0].length;
+	}
+
+	@Override
+	public boolean next(double[] xOut, double[] yOut) {
+		if(position >= x.length) { return false; }
+		System.arraycopy(x[position], 0, xOut, 0, xOut.length);
+		System.arraycopy(y[position], 0, yOut, 0, yOut.length);
+		position++;
+		return true;
+	}
+
+	@Override
+	public void reset() {
+		position = 0;
+	}
+
+	@Override
+	public void close() {}
+}
@@ -0,0 +1,219 @@
+package com.josephcatrambone.aij.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batching front end for Sequential.predict.
+ * Callers submit single examples from any number of threads.  One worker thread collects them until it has
+ * maxBatchSize rows or the oldest has waited maxDelay, then runs them all as one predict(double[][]) and completes each
+ * caller's future.  For networks Sequential can stack (dense layers on a 1 x n input) that's one matrix-matrix pass in
+ * place of many matrix-vector ones.  Anything else still works, it just doesn't get faster.
+ *
+ *     BatchingPredictor predictor = new BatchingPredictor(model, 32, 2, TimeUnit.MILLISECONDS);
+ *     double[] y = predictor.predict(x); // Or submit(x) for a future.
+ *
+ * getMetrics() reports batch sizes, latency and throughput for tuning the window.  Close it to stop the worker.
+ */
+public class BatchingPredictor implements AutoCloseable {
+	// Latency percentiles are over this many of the most recent requests.
+	private static final int LATENCY_WINDOW = 4096;
+
+	private final Sequential model;
+	private final int maxBatchSize;
+	private final long maxDelayNanos;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final Thread worker;
+	private volatile boolean closed = false;
+
+	// Written by the worker once per batch, read by getMetrics.  Guarded by the metrics lock.
+	private final Object metricsLock = new Object();
+	private final long startNanos = System.nanoTime();
+	private long requestCount = 0;
+	private long batchCount = 0;
+	private long totalLatencyNanos = 0;
+	private long maxLatencyNanos = 0;
+	private long busyNanos = 0;
+	private final long[] recentLatencies = new long[LATENCY_WINDOW];
+	private int recentIndex = 0;
+
+	private static final class Request {
+		final double[] x;
+		final long submitNanos = System.nanoTime();
+		final CompletableFuture<double[]> result = new CompletableFuture<>();
+
+		Request(double[] x) {
+			this.x = x;
+		}
+	}
+
+	/***
+	 * A snapshot of the predictor's counters since it was created.  Times are in nanoseconds.
+	 */
+	public static final class Metrics {
+		public final long requests;
+		public final long batches;
+		public final double meanBatchSize;
+		public final double meanLatency; // Submit to completion, including the wait in the queue.
+		public final long p50Latency;
+		public final long p99Latency;
+		public final long maxLatency;
+		public final double requestsPerSecond;
+		public final double utilization; // Fraction of the time the worker spent running batches.
+
+		Metrics(long requests, long batches, long totalLatency, long p50Latency, long p99Latency, long maxLatency, long busy, long elapsed) {
+			this.requests = requests;
+			this.batches = batches;
+			this.meanBatchSize = batches == 0 ? 0 : (double)requests/batches;
+			this.meanLatency = requests == 0 ? 0 : (double)totalLatency/requests;
+			this.p50Latency = p50Latency;
+			this.p99Latency = p99Latency;
+			this.maxLatency = maxLatency;
+			this.requestsPerSecond = elapsed == 0 ? 0 : requests*1e9/elapsed;
+			this.utilization = elapsed == 0 ? 0 : (double)busy/elapsed;
+		}
+
+		public String toString() {
+			return String.format("%d requests in %d batches (mean %.1f rows), latency mean %.3fms p50 %.3fms p99 %.3fms max %.3fms, %.1f requests/s, %.0f%% busy",
+				requests, batches, meanBatchSize, meanLatency/1e6, p50Latency/1e6, p99Latency/1e6, maxLatency/1e6, requestsPerSecond, utilization*100);
+		}
+	}
+
+	/***
+	 * @param model The network to serve.  Should be finished being built; training it at the same time is allowed.
+	 * @param maxBatchSize Run a batch as soon as this many requests are waiting.
+	 * @param maxDelay The longest the first request in a batch waits for others to join it.
+	 */
+	public BatchingPredictor(Sequential model, int maxBatchSize, long maxDelay, TimeUnit unit) {
+		if(maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least one.  Got " + maxBatchSize);
+		}
+		this.model = model;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.worker = new Thread(this::run, "aij-batching-predictor");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/***
+	 * Queue one example.  The future completes with the same thing model.predict(x) would return.
+	 * Throws IllegalArgumentException right away if x isn't model.getInputSize() long, since it would otherwise be
+	 * stacked into the rows of other callers' examples.
+	 */
+	public CompletableFuture<double[]> submit(double[] x) {
+		if(closed) {
+			throw new IllegalStateException("BatchingPredictor has been closed.");
+		}
+		if(x.length != model.getInputSize()) {
+			throw new IllegalArgumentException("Example has " + x.length + " values but the model takes " + model.getInputSize() + ".");
+		}
+		Request r = new Request(x);
+		queue.add(r);
+		return r.result;
+	}
+
+	/***
+	 * Queue one example and wait for its result.
+	 */
+	public double[] predict(double[] x) {
+		return submit(x).join();
+	}
+
+	public Metrics getMetrics() {
+		synchronized(metricsLock) {
+			int count = (int)Math.min(requestCount, LATENCY_WINDOW);
+			long[] sorted = Arrays.copyOf(recentLatencies, count);
+			Arrays.sort(sorted);
+			long p50 = count == 0 ? 0 : sorted[(count-1)/2];
+			long p99 = count == 0 ? 0 : sorted[(int)Math.ceil(0.99*count)-1];
+			return new Metrics(requestCount, batchCount, totalLatencyNanos, p50, p99, maxLatencyNanos, busyNanos, System.nanoTime()-startNanos);
+		}
+	}
+
+	/***
+	 * Stop taking requests.  Anything already queued is still run before the worker exits.
+	 */
+	@Override
+	public void close() {
+		if(closed) { return; }
+		closed = true;
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// A submit racing with close can slip in after the worker's last drain.
+		Request r;
+		while((r = queue.poll()) != null) {
+			r.result.completeExceptionally(new IllegalStateException("BatchingPredictor has been closed."));
+		}
+	}
+
+	private void run() {
+		ArrayList<Request> batch = new ArrayList<>(maxBatchSize);
+		while(!closed || !queue.isEmpty()) {
+			try {
+				Request first = closed ? queue.poll() : queue.take();
+				if(first == null) { continue; }
+				batch.add(first);
+				long deadline = first.submitNanos + maxDelayNanos;
+				while(batch.size() < maxBatchSize) {
+					// Take whatever is already waiting, then wait out the rest of the window for more.
+					if(queue.drainTo(batch, maxBatchSize-batch.size()) > 0) { continue; }
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0 || closed) { break; }
+					Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if(next == null) { break; }
+					batch.add(next);
+				}
+			} catch(InterruptedException e) {
+				// close() wakes us up this way.  Whatever is in the batch or the queue still gets run.
+			}
+			if(!batch.isEmpty()) {
+				runBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void runBatch(ArrayList<Request> batch) {
+		long start = System.nanoTime();
+		double[][] x = new double[batch.size()][];
+		for(int i=0; i < x.length; i++) {
+			x[i] = batch.get(i).x;
+		}
+		double[][] y = null;
+		Throwable failure = null;
+		try {
+			y = model.predict(x);
+		} catch(RuntimeException | Error e) {
+			failure = e;
+		}
+		for(int i=0; i < x.length; i++) {
+			if(failure != null) {
+				batch.get(i).result.completeExceptionally(failure);
+			} else {
+				batch.get(i).result.complete(y[i]);
+			}
+		}
+		long end = System.nanoTime();
+
+		synchronized(metricsLock) {
+			batchCount++;
+			busyNanos += end - start;
+			for(Request r : batch) {
+				long latency = end - r.submitNanos;
+				requestCount++;
+				totalLatencyNanos += latency;
+				maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+				recentLatencies[recentIndex] = latency;
+				recentIndex = (recentIndex+1) % LATENCY_WINDOW;
+			}
+		}
+	}
+}
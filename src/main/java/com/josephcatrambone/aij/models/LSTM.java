@@ -6,7 +6,9 @@ import com.josephcatrambone.aij.nodes.*;
 import com.josephcatrambone.aij.optimizers.Optimizer;
 import com.josephcatrambone.aij.optimizers.SGD;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -21,30 +23,24 @@ public class LSTM {
 
 	int inputSize = -1;
 	int hiddenSize = -1;
-	VariableNode weight_ig; // Wi*x_t  // X is our input.  i means input gate.
-	VariableNode weight_hg; // Ui*h_t-1
-	VariableNode weight_if; // W_f*x_t
-	VariableNode weight_hf; // U_f*h_t-1
-	VariableNode weight_ic; // W_c*x_t
-	VariableNode weight_hc; // U_c*h_t-1
-	VariableNode weight_io;
-	VariableNode weight_ho;
-	VariableNode bias_g;
-	VariableNode bias_f;
-	VariableNode bias_c;
-	VariableNode bias_o;
-
-	Node initialHidden = null;
-	Node initialMemory = null;
-
-	// For training.
+	// The four gates are packed side by side, [input gate | forget gate | candidate memory | output gate], so each
+	// step is two wide matmuls instead of eight skinny ones.
+	VariableNode weight_x; // [W_i|W_f|W_c|W_o], inputSize x 4*hiddenSize.  Multiplies x_t.
+	VariableNode weight_h; // [U_i|U_f|U_c|U_o], hiddenSize x 4*hiddenSize.  Multiplies h_t-1.
+	VariableNode bias; // [b_i|b_f|b_c|b_o], 1 x 4*hiddenSize.
+
+	// For training.  A window is one LSTMSequenceNode, with its inputs and targets stacked a step at a time.
 	Optimizer optimizer = null;
 	Graph trainingGraph = null;
-	LSTMStep[] steps = null;
+	Node trainingInitialState = null;
+	Node trainingInputs = null;
+	Node trainingTargets = null;
 	Node trainingLoss = null;
 
 	// For running.
-	LSTMStep nextStep = null; // For running.
+	Node initialState = null; // [h | c | o] before the first step.  Fed zeros, or the last state to carry on from.
+	LSTMStep nextStep = null; // One step at a time, for generate.
+	Map<List<Integer>, RunSequence> runSequences = new HashMap<>(); // Whole streams for predictStream.  See getRunSequence.
 	Graph runGraph = null;
 
 	public LSTM(int inputSize, int hiddenSize) {
@@ -53,51 +49,18 @@ public class LSTM {
 
 		// 1/n_in from paper.  2/n_in from Google's experiemnts, but we're using Tanh & Sigmoid instead of RELU, so 1.0.
 		// The last value * (...) is the Xavier initialization.
-		weight_ig = new VariableNode(new Matrix(inputSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/inputSize)));
-		weight_if = new VariableNode(new Matrix(inputSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/inputSize)));
-		weight_ic = new VariableNode(new Matrix(inputSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/inputSize)));
-		weight_io = new VariableNode(new Matrix(inputSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/inputSize)));
-		weight_hg = new VariableNode(new Matrix(hiddenSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/hiddenSize)));
-		weight_hf = new VariableNode(new Matrix(hiddenSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/hiddenSize)));
-		weight_hc = new VariableNode(new Matrix(hiddenSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/hiddenSize)));
-		weight_ho = new VariableNode(new Matrix(hiddenSize, hiddenSize, (i,j)->random.nextGaussian()*(1.0/hiddenSize)));
-		bias_g = new VariableNode(1, hiddenSize);
-		bias_f = new VariableNode(1, hiddenSize);
-		bias_c = new VariableNode(1, hiddenSize);
-		bias_o = new VariableNode(1, hiddenSize);
+		weight_x = new VariableNode(new Matrix(inputSize, 4*hiddenSize, (i,j)->random.nextGaussian()*(1.0/inputSize)));
+		weight_h = new VariableNode(new Matrix(hiddenSize, 4*hiddenSize, (i,j)->random.nextGaussian()*(1.0/hiddenSize)));
+		bias = new VariableNode(1, 4*hiddenSize);
 
 		// Assign some names so we're not debugging blind.
-		weight_ig.name = "LSTM_Weight_input_to_gate";
-		weight_if.name = "LSTM_Weight_input_to_forget";
-		weight_ic.name = "LSTM_Weight_input_to_memory";
-		weight_io.name = "LSTM_Weight_input_to_output";
-
-		weight_hg.name = "LSTM_Weight_hidden_to_gate";
-		weight_hf.name = "LSTM_Weight_hidden_to_forget";
-		weight_hc.name = "LSTM_Weight_hidden_to_memory_cell";
-		weight_ho.name = "LSTM_Weight_hidden_to_output";
-
-		bias_g.name = "LSTM_Bias_gate";
-		bias_f.name = "LSTM_Bias_forget";
-		bias_c.name = "LSTM_Bias_memory";
-		bias_o.name = "LSTM_Bias_output";
+		weight_x.name = "LSTM_Weight_input_to_gates";
+		weight_h.name = "LSTM_Weight_hidden_to_gates";
+		bias.name = "LSTM_Bias_gates";
 	}
 
 	private VariableNode[] collectTrainingVariables() {
-		return new VariableNode[]{
-			weight_ig, // Wi*x_t  // X is our input.  i means input gate.
-			weight_hg, // Ui*h_t-1
-			weight_if, // W_f*x_t
-			weight_hf, // U_f*h_t-1
-			weight_ic, // W_c*x_t
-			weight_hc, // U_c*h_t-1
-			weight_io,
-			weight_ho,
-			bias_g,
-			bias_f,
-			bias_c,
-			bias_o
-		};
+		return new VariableNode[]{weight_x, weight_h, bias};
 	}
 
 	/*** makeRunOnlyLSTM
@@ -106,87 +69,75 @@ public class LSTM {
 	 */
 	public LSTM makeRunOnlyLSTM() {
 		LSTM ret = new LSTM(inputSize, hiddenSize);
-		ret.weight_ic = new VariableNode(this.weight_ic.getVariable());
-		ret.weight_if = new VariableNode(this.weight_if.getVariable());
-		ret.weight_ig = new VariableNode(this.weight_ig.getVariable());
-		ret.weight_io = new VariableNode(this.weight_io.getVariable());
-		ret.weight_hc = new VariableNode(this.weight_hc.getVariable());
-		ret.weight_hf = new VariableNode(this.weight_hf.getVariable());
-		ret.weight_hg = new VariableNode(this.weight_hg.getVariable());
-		ret.weight_ho = new VariableNode(this.weight_ho.getVariable());
-		ret.bias_c = new VariableNode(this.bias_c.getVariable());
-		ret.bias_f = new VariableNode(this.bias_f.getVariable());
-		ret.bias_g = new VariableNode(this.bias_g.getVariable());
-		ret.bias_o = new VariableNode(this.bias_o.getVariable());
+		ret.weight_x = new VariableNode(this.weight_x.getVariable());
+		ret.weight_h = new VariableNode(this.weight_h.getVariable());
+		ret.bias = new VariableNode(this.bias.getVariable());
 		return ret;
 	}
 
 	private void makeSingleRunStep() {
 		runGraph = new Graph();
 
-		initialHidden = new InputNode(1, hiddenSize);
-		initialMemory = new InputNode(1, hiddenSize);
+		initialState = new InputNode(1, 3*hiddenSize);
 		LSTMStep previousStep = new LSTMStep(this);
-		previousStep.hidden = initialHidden;
-		previousStep.memory = initialMemory;
+		previousStep.state = initialState;
 
 		Node nextInput = new InputNode(1, inputSize);
 		nextStep = previousStep.wireNextStep(nextInput);
-		runGraph.addNode(nextStep.hidden);
+		runGraph.addNode(nextStep.out);
+		runSequences.clear();
 	}
 
-	private void unroll(int batchSize, int stepsToUnwind, boolean singleLoss) {
-		// See unrollAndTrain for the real shape of these things.
-		// singleLoss means our loss function is ONLY the last output.
-		// singleLoss = false means we add up all the differences between the outputs and the targets.
-		steps = new LSTMStep[stepsToUnwind];
-		trainingGraph = new Graph();
-		initialMemory = new InputNode(1, hiddenSize);
-		initialHidden = new InputNode(1, hiddenSize);
-
-		// Start with some default input item.
-		LSTMStep previousStep = new LSTMStep(this);
-		previousStep.input = new InputNode(batchSize, inputSize);
-		previousStep.hidden = initialHidden;
-		previousStep.memory = initialMemory;
-
-		for(int i=0; i < stepsToUnwind; i++) {
-			Node input = new InputNode(batchSize, inputSize);
-			input.name = "LSTMStep_INPUT_" + i;
-			steps[i] = previousStep.wireNextStep(input);
-			if(!singleLoss || i == stepsToUnwind-1) {
-				Node target = new InputNode(batchSize, hiddenSize);
-				/*
-				Node diff = new SubtractNode(steps[i].out, target);
-				Node abs = new AbsNode(diff);
-				*/
-				Node loss = new SoftmaxLossNode(steps[i].out, target);
-
-				target.name = "LSTMStep_TARGET_" + i;
-				//abs.name = "LSTMStep_LOSS_" + i;
-
-				steps[i].target = target;
-				steps[i].loss = loss;
-			}
-			previousStep = steps[i];
+	// The graph for a stream of at least this many steps and rows, added to runGraph the first time it comes up.
+	// Like unroll, the stacked inputs are steps*rows tall, so each shape needs its own nodes.  To keep runGraph from
+	// growing with every new length, both are rounded up to a bucket (see bucketSize) and the stream is zero padded:
+	// extra steps come after the real ones and extra rows are separate examples, so neither changes the real outputs.
+	private RunSequence getRunSequence(int steps, int rows) {
+		steps = bucketSize(steps);
+		rows = bucketSize(rows);
+		List<Integer> key = Arrays.asList(steps, rows);
+		RunSequence sequence = runSequences.get(key);
+		if(sequence == null) {
+			sequence = new RunSequence();
+			sequence.steps = steps;
+			sequence.rows = rows;
+			sequence.initialState = new InputNode(rows, 3*hiddenSize);
+			sequence.inputs = new InputNode(steps*rows, inputSize);
+			sequence.outputs = new ColumnSliceNode(wireSequence(sequence.inputs, sequence.initialState), 2*hiddenSize, hiddenSize);
+			runGraph.addNode(sequence.outputs);
+			runSequences.put(key, sequence);
 		}
+		return sequence;
+	}
 
-		// Add up the graph losses.
-		Node lossAccumulator = null;
-		if(singleLoss) {
-			lossAccumulator = steps[steps.length-1].loss;
-		} else {
-			for(LSTMStep step : steps) {
-				if (lossAccumulator == null) {
-					lossAccumulator = step.loss;
-				} else {
-					// trainingGraph.addNode(step.hidden);
-					lossAccumulator = new AddNode(lossAccumulator, step.loss);
-				}
-			}
-		}
-		trainingGraph.addNode(lossAccumulator);
-		trainingLoss = lossAccumulator;
+	// n rounded up to a multiple of a quarter of its highest power of two.  That's at most four sizes per doubling,
+	// and never more than 25% padding.
+	static int bucketSize(int n) {
+		if(n <= 4) { return n; }
+		int quantum = Integer.highestOneBit(n) >> 2;
+		return ((n + quantum - 1)/quantum)*quantum;
+	}
+
+	// Every step's state for a stack of inputs, one block of rows per step.
+	// None of the input projections depend on the recurrence, so they're all one GEMM up front.  Only h_t-1*Wh is
+	// left inside the LSTMSequenceNode's loop.
+	private Node wireSequence(Node stackedInputs, Node initial) {
+		Node projection = new MatrixMultiplyNode(stackedInputs, weight_x);
+		return new LSTMSequenceNode(projection, initial, weight_h, bias);
+	}
+
+	private void unroll(int batchSize, int stepsToUnwind) {
+		// See unrollAndTrain for the real shape of these things.
+		trainingGraph = new Graph();
+		trainingInitialState = new InputNode(batchSize, 3*hiddenSize);
+		trainingInputs = new InputNode(stepsToUnwind*batchSize, inputSize);
+		trainingTargets = new InputNode(stepsToUnwind*batchSize, hiddenSize);
+		trainingInputs.name = "LSTM_INPUTS";
+		trainingTargets.name = "LSTM_TARGETS";
+
+		// The output gate of every step, stacked.  One loss over all the rows is the sum of a loss per step.
+		Node out = new ColumnSliceNode(wireSequence(trainingInputs, trainingInitialState), 2*hiddenSize, hiddenSize);
+		trainingLoss = trainingGraph.addNode(new SoftmaxLossNode(out, trainingTargets));
 	}
 
 	/*** unrollAndTrain
@@ -211,21 +162,26 @@ public class LSTM {
 	 * @return
 	 */
 	public void unrollAndTrain(Matrix[] inputs, Matrix[] outputs, int stepsToUnwind, double learningRate) {
+		int batchSize = inputs[0].rows;
 		if(trainingGraph == null) {
-			unroll(inputs[0].rows, stepsToUnwind, false);
+			unroll(batchSize, stepsToUnwind);
 		}
 		optimizer = new SGD(trainingGraph, collectTrainingVariables(), learningRate);
 
+		Matrix stackedInputs = new Matrix(stepsToUnwind*batchSize, inputSize);
+		Matrix stackedTargets = new Matrix(stepsToUnwind*batchSize, outputs[0].columns);
+
 		// If inputs is length k, we have to do k/stepsToUnwind 'leaps'.
 		for(int leap=0; leap < inputs.length-stepsToUnwind; leap += stepsToUnwind) {
-			// Assign a value to every input and every output.
-			Map<Node, Matrix> feedDict = new HashMap<>();
-			feedDict.put(initialMemory, new Matrix(outputs[0].rows, outputs[0].columns));
-			feedDict.put(initialHidden, new Matrix(outputs[0].rows, outputs[0].columns));
+			// Stack the window a step at a time.
 			for (int i = 0; i < stepsToUnwind; i++) {
-				feedDict.put(steps[i].input, inputs[i + leap]);
-				feedDict.put(steps[i].target, outputs[i + leap]);
+				stackedInputs.setSlice(i*batchSize, 0, inputs[i + leap]);
+				stackedTargets.setSlice(i*batchSize, 0, outputs[i + leap]);
 			}
+			Map<Node, Matrix> feedDict = new HashMap<>();
+			feedDict.put(trainingInitialState, new Matrix(batchSize, 3*hiddenSize));
+			feedDict.put(trainingInputs, stackedInputs);
+			feedDict.put(trainingTargets, stackedTargets);
 
 			// Apply every step?
 			//optimizer.minimize(trainingLoss, feedDict);
@@ -257,24 +213,25 @@ public class LSTM {
 
 	// Perform a series of predictions, returning the output value from each step.  Uses the input value given.
 	public Matrix[] predictStream(Matrix[] inputs) {
-		Matrix[] outputs = new Matrix[inputs.length];
-
-		Matrix previousHiddenValue = new Matrix(1, hiddenSize);
-		Matrix previousMemoryValue = new Matrix(1, hiddenSize);
+		if(runGraph == null) {
+			makeSingleRunStep();
+		}
+		// All the inputs are known, so run them as one sequence and do every input projection in one GEMM.
+		int rows = inputs[0].rows;
+		RunSequence sequence = getRunSequence(inputs.length, rows);
+		Matrix stackedInputs = new Matrix(sequence.steps*sequence.rows, inputSize);
+		for(int i=0; i < inputs.length; i++) {
+			stackedInputs.setSlice(i*sequence.rows, 0, inputs[i]);
+		}
 		Map<Node, Matrix> feedDict = new HashMap<>();
+		feedDict.put(sequence.inputs, stackedInputs);
+		feedDict.put(sequence.initialState, new Matrix(sequence.rows, 3*hiddenSize));
+		Matrix stackedOutputs = runGraph.getPlan(sequence.outputs).forward(feedDict)[sequence.outputs.id];
 
+		Matrix[] outputs = new Matrix[inputs.length];
 		for(int i=0; i < inputs.length; i++) {
-			Matrix input = inputs[i];
-			feedDict.put(nextStep.input, input);
-			feedDict.put(initialHidden, previousHiddenValue);
-			feedDict.put(initialMemory, previousMemoryValue);
-			Matrix[] results = runGraph.forward(feedDict);
-
-			previousHiddenValue = results[nextStep.hidden.id];
-			previousMemoryValue = results[nextStep.memory.id];
-			outputs[i] = results[nextStep.out.id];
+			outputs[i] = stackedOutputs.getSlice(i*sequence.rows, i*sequence.rows + rows, 0, hiddenSize);
 		}
-
 		return outputs;
 	}
 
@@ -287,20 +244,17 @@ public class LSTM {
 		Matrix[] outputs = new Matrix[steps];
 
 		Matrix previousInput = start;
-		Matrix previousHiddenValue = new Matrix(1, hiddenSize);
-		Matrix previousMemoryValue = new Matrix(1, hiddenSize);
+		Matrix previousState = new Matrix(1, 3*hiddenSize);
 		Map<Node, Matrix> feedDict = new HashMap<>();
 
 
 		for(int i=0; i < steps; i++) {
 			feedDict.put(nextStep.input, previousInput);
-			feedDict.put(initialHidden, previousHiddenValue);
-			feedDict.put(initialMemory, previousMemoryValue);
+			feedDict.put(initialState, previousState);
 
-			Matrix[] results = runGraph.forward(feedDict);
+			Matrix[] results = runGraph.getPlan(nextStep.out).forward(feedDict);
 
-			previousHiddenValue = results[nextStep.hidden.id];
-			previousMemoryValue = results[nextStep.memory.id];
+			previousState = results[nextStep.state.id];
 			outputs[i] = results[nextStep.out.id];
 			previousInput = results[nextStep.out.id];
 		}
@@ -308,20 +262,24 @@ public class LSTM {
 		return outputs;
 	}
 
+	// The nodes predictStream feeds and reads for one bucket of stream shapes.
+	static class RunSequence {
+		int steps; // The bucket, which the real stream may be shorter than.
+		int rows;
+		Node inputs; // Every step's input, stacked, steps*rows x inputSize.
+		Node initialState; // rows x 3*hiddenSize.
+		Node outputs; // Every step's output gate, stacked like the inputs.
+	}
+
 	class LSTMStep {
 		LSTM parent;
 
 		// These aren't actually part of the network, but they're useful to track here.
 		Node input;
-		Node target = null;
-		Node loss = null;
 
 		// Taken from Siamese Recurrent Architectures by Muller & Thyagarajan (2016).
-		Node gate;
-		Node forget;
-		Node memory;
-		Node out;
-		Node hidden;
+		Node state; // [h | c | o], from one LSTMCellNode.
+		Node out; // The output gate, which is what we train and predict with.
 
 		LSTMStep(LSTM parentLSTM) {
 			// i_c = sigmoid(Wixt + uiht-1 + bi)
@@ -331,25 +289,14 @@ public class LSTM {
 		LSTMStep wireNextStep(Node input) {
 			LSTMStep next = new LSTMStep(this.parent);
 
-			// We need to broadcast the biases so they match the shape of the input count.
-			Node bg = new BroadcastNode(parent.bias_g, 1, input.rows);
-			Node bf = new BroadcastNode(parent.bias_f, 1, input.rows);
-			Node bc = new BroadcastNode(parent.bias_c, 1, input.rows);
-			Node bo = new BroadcastNode(parent.bias_o, 1, input.rows);
-
+			// The whole step is one node.  See LSTMCellNode for the math.
+			int h = parent.hiddenSize;
 			next.input = input;
-			next.gate = new SigmoidNode(new AddNode(new AddNode(new MatrixMultiplyNode(input, parent.weight_ig), new MatrixMultiplyNode(this.hidden, parent.weight_hg)), bg));
-			next.forget = new SigmoidNode(new AddNode(new AddNode(new MatrixMultiplyNode(input, parent.weight_if), new MatrixMultiplyNode(this.hidden, parent.weight_hf)), bf));
-			Node memoryHat = new TanhNode(new AddNode(new AddNode(new MatrixMultiplyNode(input, parent.weight_ic), new MatrixMultiplyNode(this.hidden, parent.weight_hc)), bc));
-			next.memory = new AddNode(new MultiplyNode(next.gate, memoryHat), new MultiplyNode(next.forget, this.memory));
-			next.out = new SigmoidNode(new AddNode(new AddNode(new MatrixMultiplyNode(input, parent.weight_io), new MatrixMultiplyNode(this.hidden, parent.weight_ho)), bo));
-			next.hidden = new MultiplyNode(next.out, new TanhNode(next.memory));
-
-			next.gate.name = "LSTMStep_GATE";
-			next.forget.name = "LSTMStep_FORGET";
-			next.memory.name = "LSTMStep_MEMORY";
+			next.state = new LSTMCellNode(input, this.state, parent.weight_x, parent.weight_h, parent.bias);
+			next.out = new ColumnSliceNode(next.state, 2*h, h);
+
+			next.state.name = "LSTMStep_STATE";
 			next.out.name = "LSTMStep_OUT";
-			next.hidden.name = "LSTMStep_HIDDEN";
 
 			return next;
 		}
@@ -1,16 +1,16 @@
 package com.josephcatrambone.aij.models;
 
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.ExecutionPlan;
 import com.josephcatrambone.aij.Graph;
 import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.data.Batch;
 import com.josephcatrambone.aij.nodes.*;
 import com.josephcatrambone.aij.optimizers.Momentum;
 import com.josephcatrambone.aij.optimizers.Optimizer;
 import com.josephcatrambone.aij.optimizers.SGD;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Random;
+import java.util.*;
 import java.util.stream.IntStream;
 
 /**
@@ -28,17 +28,31 @@ public class Sequential extends Graph {
 	private Node outputNode; // Keeps track of the last later.
 
 	// Used for training.
-	private List<DropoutNode> dropoutNodes;
 	private Node targetNode;
 	private Node lossNode;
 	private List<VariableNode> trainableVariables;
+	private ExecutionContext trainingContext = new ExecutionContext(); // Buffers reused from one fit call to the next.
+	private SGD batchOptimizer; // Kept between fit calls so its gradient accumulators are only allocated once.
+
+	// Node types which treat each row of their input independently (or broadcast a single row).
+	// If the whole network is built from these, a batch can be stacked into one matrix and run as a single pass.
+	private static final Set<Class<? extends Node>> ROW_WISE_NODES = new HashSet<>(Arrays.asList(
+		InputNode.class, VariableNode.class, ConstantNode.class, MatrixMultiplyNode.class,
+		AddNode.class, SubtractNode.class, MultiplyNode.class, NegateNode.class, InverseNode.class, PowerNode.class,
+		AbsNode.class, ExpNode.class, LogNode.class, TanhNode.class, SigmoidNode.class, ReLUNode.class,
+		SoftmaxRowNode.class, DropoutNode.class
+	));
+	private int batchableCheckedSize = -1; // nodes.size() when batchable was last worked out.
+	private boolean batchable = false;
+	private Matrix batchInput; // Stacked examples, reused while the batch size stays the same.
+	private Matrix batchTarget;
+	private VariableNode[] batchVariableArray; // trainableVariables as an array, for getGradient.
 
 	public Sequential(int inputRows, int inputColumns) {
 		super();
 		random = new Random();
 		inputNode = new InputNode(inputRows, inputColumns); // Gotta' resize.
 		outputNode = inputNode;
-		dropoutNodes = new ArrayList<>();
 		trainableVariables = new ArrayList<>();
 	}
 
@@ -84,6 +98,13 @@ public class Sequential extends Graph {
 		return outputNode;
 	}
 
+	/***
+	 * The number of values in one example, as predict(double[]) takes it.
+	 */
+	public int getInputSize() {
+		return inputNode.rows*inputNode.columns;
+	}
+
 	private void finalizeNetwork(Loss loss) {
 		// If this is the first time we've run fit, we'll need to make our loss node.
 		if(targetNode == null || lossNode == null) {
@@ -129,6 +150,7 @@ public class Sequential extends Graph {
 
 		// Minimize loss
 		Optimizer optimizer = new Momentum(this, this.trainableVariables.toArray(new VariableNode[0]), learningRate, 0.5);
+		optimizer.context = trainingContext;
 		optimizer.minimize(lossNode, inputFeed);
 	}
 
@@ -136,7 +158,12 @@ public class Sequential extends Graph {
 		finalizeNetwork(loss);
 		assert(x[0].length == this.inputNode.rows*this.inputNode.columns);
 
-		Optimizer optimizer = new SGD(this, this.trainableVariables.toArray(new VariableNode[0]), learningRate);
+		if(batchOptimizer == null || batchOptimizer.variables.length != trainableVariables.size()) {
+			batchOptimizer = new SGD(this, this.trainableVariables.toArray(new VariableNode[0]), learningRate);
+			batchOptimizer.context = trainingContext;
+		}
+		SGD optimizer = batchOptimizer;
+		optimizer.learningRate = learningRate;
 
 		for(int i=0; i < x.length; i++) {
 			// Calculate the difference and apply the gradient.
@@ -152,7 +179,11 @@ public class Sequential extends Graph {
 	}
 
 	/***
-	 * fitBatch, unlike fit, calculates the gradient for all examples in parallel.
+	 * fitBatch computes the gradient for the whole batch at once.
+	 * If every layer is row-wise (dense, dropout, activations) the examples are stacked into one batch x n matrix
+	 * and the network runs once, so each dense layer is a single matrix-matrix product.
+	 * Otherwise it falls back to computing the gradient for each example in parallel.
+	 * Either way the update is the average gradient over the batch.
 	 * @param x
 	 * @param y
 	 * @param learningRate
@@ -161,49 +192,137 @@ public class Sequential extends Graph {
 	public void fitBatch(double[][] x, double[][] y, double learningRate, Loss loss) {
 		finalizeNetwork(loss);
 
+		if(isBatchable()) {
+			fitStackedBatch(x, y, learningRate);
+			return;
+		}
+
 		// This will accumulate our gradients below.
 		Matrix[][] grads = new Matrix[x.length][nodes.size()];
 
 		// Calculate all the gradients in parallel.
+		// Each example gets its own unpooled context, so dropout masks and random draws never cross between examples
+		// and the gradients outlive the run.
+		ExecutionPlan plan = getFusedPlan(lossNode);
+		VariableNode[] variables = batchVariables();
 		IntStream.range(0, x.length).parallel().forEach(i -> {
 			HashMap<Node, Matrix> inputFeed = new HashMap<>();
 			inputFeed.put(inputNode, new Matrix(inputNode.rows, inputNode.columns, x[i]));
 			inputFeed.put(targetNode, new Matrix(targetNode.rows, targetNode.columns, y[i]));
-			grads[i] = getGradient(inputFeed, null, lossNode);
+			grads[i] = plan.getGradient(new ExecutionContext(null), inputFeed, null, lossNode, variables);
 		});
 
 		// Apply the gradients, scaled, to each of the learning variables.
 		// Dividing by x.length will average our gradients.
 		for(VariableNode n : trainableVariables) {
 			Matrix accumulator = grads[0][n.id];
+			if(accumulator == null) { continue; } // Doesn't affect the loss.
 			for(int j=1; j < x.length; j++) {
-				accumulator.elementOp_i(grads[j][n.id], (a,b) -> a+b);
+				accumulator.add_i(grads[j][n.id]);
+			}
+			n.axpy_i(-learningRate/x.length, accumulator);
+		}
+	}
+
+	/***
+	 * fitBatch on every batch from an iterator, usually a BatchLoader streaming an epoch from disk.
+	 * @return Returns the number of examples trained on.
+	 */
+	public long fitBatches(Iterator<Batch> batches, double learningRate, Loss loss) {
+		long examples = 0;
+		while(batches.hasNext()) {
+			Batch b = batches.next();
+			fitBatch(b.x, b.y, learningRate, loss);
+			examples += b.size();
+		}
+		return examples;
+	}
+
+	private VariableNode[] batchVariables() {
+		if(batchVariableArray == null || batchVariableArray.length != trainableVariables.size()) {
+			batchVariableArray = trainableVariables.toArray(new VariableNode[0]);
+		}
+		return batchVariableArray;
+	}
+
+	private boolean isBatchable() {
+		if(batchableCheckedSize != nodes.size()) {
+			batchable = checkBatchable();
+			batchableCheckedSize = nodes.size();
+		}
+		return batchable;
+	}
+
+	private boolean checkBatchable() {
+		if(inputNode.rows != 1) { return false; }
+		for(Node n : nodes) {
+			if(n == lossNode && n instanceof CollapseSumNode) { continue; } // Summing the batch is what we want.
+			if(!ROW_WISE_NODES.contains(n.getClass())) { return false; }
+			// Every value that varies per example is a single row.  Only weights may be bigger.
+			if(n instanceof VariableNode) { continue; }
+			if(n.rows != 1) { return false; }
+			// x*W is row-wise, W*x is not.
+			if(n instanceof MatrixMultiplyNode && !(n.inputs[1] instanceof VariableNode)) { return false; }
+		}
+		return true;
+	}
+
+	private void fitStackedBatch(double[][] x, double[][] y, double learningRate) {
+		if(batchInput == null || batchInput.rows != x.length) {
+			batchInput = new Matrix(x.length, inputNode.columns);
+			batchTarget = new Matrix(y.length, targetNode.columns);
+		}
+		for(int i=0; i < x.length; i++) {
+			batchInput.setRow(i, x[i]);
+			batchTarget.setRow(i, y[i]);
+		}
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(inputNode, batchInput);
+		inputFeed.put(targetNode, batchTarget);
+
+		// The loss sums over every row, so the variable gradients are already summed over the batch.
+		ExecutionPlan plan = getFusedPlan(lossNode);
+		Matrix[] fwd = plan.forward(trainingContext, inputFeed);
+		Matrix[] grads = plan.getGradient(trainingContext, inputFeed, fwd, lossNode, batchVariables());
+		for(VariableNode n : trainableVariables) {
+			if(grads[n.id] != null) {
+				n.axpy_i(-learningRate/x.length, grads[n.id]);
 			}
-			n.getVariable().elementOp_i(accumulator, (w, dw) -> w - learningRate*dw/((float)x.length));
 		}
 	}
 
+	/***
+	 * Run the network on one example with dropout off.
+	 * Safe to call from many threads at once, and alongside training.  See Graph.getInferenceSession.
+	 */
 	public double[] predict(double[] x) {
 		HashMap<Node, double[]> inputMap = new HashMap<>();
 		inputMap.put(inputNode, x);
-		return getOutput(inputMap, outputNode);
+		return getInferenceSession(outputNode).getOutput(inputMap);
 	}
 
 	public double[][] predict(double[][] x) {
-		// Turn off all the dropout nodes so we don't drop anything.
-		double[] oldDropoutRates = new double[dropoutNodes.size()];
-		for(int i=0; i < dropoutNodes.size(); i++) {
-			oldDropoutRates[i] = dropoutNodes.get(i).dropoutRate;
-			dropoutNodes.get(i).dropoutRate = 0.0;
-		}
-		// Run the forward pass.
+		// Dropout is turned off by the session's inference context, not by touching the nodes, so this is thread safe.
 		double[][] result = new double[x.length][outputNode.rows*outputNode.columns];
-		for(int i=0; i < x.length; i++) {
-			result[i] = predict(x[i]);
-		}
-		// Restore the values.
-		for(int i=0; i < dropoutNodes.size(); i++) {
-			dropoutNodes.get(i).dropoutRate = oldDropoutRates[i];
+		if(isBatchable() && x.length > 1) {
+			// One stacked pass instead of x.length vector-matrix passes.
+			Matrix stacked = new Matrix(x.length, inputNode.columns);
+			for(int i=0; i < x.length; i++) {
+				if(x[i].length != inputNode.columns) {
+					throw new IllegalArgumentException("Example " + i + " has " + x[i].length + " values but the model takes " + inputNode.columns + ".");
+				}
+				stacked.setRow(i, x[i]);
+			}
+			HashMap<Node, Matrix> inputFeed = new HashMap<>();
+			inputFeed.put(inputNode, stacked);
+			Matrix output = getInferenceSession(outputNode).evaluate(inputFeed)[0];
+			for(int i=0; i < x.length; i++) {
+				result[i] = output.getRow(i);
+			}
+		} else {
+			for(int i=0; i < x.length; i++) {
+				result[i] = predict(x[i]);
+			}
 		}
 		return result;
 	}
@@ -250,7 +369,6 @@ public class Sequential extends Graph {
 	public void addDropoutLayer(double rate) {
 		DropoutNode dn = new DropoutNode(outputNode, rate);
 		outputNode = dn;
-		dropoutNodes.add(dn);
 		addNode(dn);
 	}
 
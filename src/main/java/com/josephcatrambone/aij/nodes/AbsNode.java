@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class AbsNode extends Node {
+public class AbsNode extends Node implements ElementwiseNode {
 	public AbsNode() { super(); }
 
 	public AbsNode(Node inputNode) {
@@ -10,11 +11,29 @@ public class AbsNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(v -> Math.abs(v));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[]{adjoint.elementOp(forward[0], (a, b) -> a*Math.signum(b))};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return Math.abs(x);
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return adjoint*Math.signum(x);
 	}
 
 	// Used to augment serialization.
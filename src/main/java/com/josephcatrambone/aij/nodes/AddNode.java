@@ -1,10 +1,16 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 /**
  * Created by josephcatrambone on 1/13/17.
  */
+/**
+ * Element-wise sum of the inputs.
+ * An input with a single row is broadcast down the rows of the others, which is how a 1 x n bias gets added to a
+ * batch of examples stacked as rows.
+ */
 public class AddNode extends Node {
 
 	public AddNode() { super(); } // Need empty constructor.
@@ -15,18 +21,41 @@ public class AddNode extends Node {
 
 	@Override
 	public Matrix forward(Matrix[] args) {
-		Matrix result = new Matrix(args[0].rows, args[0].columns);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		int rows = 0;
 		for(Matrix m : args) {
-			result.elementOp_i(m, (a,b) -> a+b);
+			rows = Math.max(rows, m.rows);
+		}
+		Matrix result = context.allocate(rows, args[0].columns);
+		for(Matrix m : args) {
+			if(m.rows == rows) {
+				result.add_i(m);
+			} else {
+				result.addRowVector_i(m);
+			}
 		}
 		return result;
 	}
 
 	@Override
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
 		Matrix[] result = new Matrix[forward.length];
 		for(int i=0; i < forward.length; i++) {
-			result[i] = adjoint;
+			if(forward[i].rows == adjoint.rows) {
+				result[i] = adjoint;
+			} else {
+				// Broadcast input, so its adjoint is the sum over all the rows it was copied to.
+				result[i] = adjoint.columnSums(context.allocate(1, adjoint.columns));
+			}
 		}
 		return result;
 	}
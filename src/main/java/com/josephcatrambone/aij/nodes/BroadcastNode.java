@@ -46,7 +46,7 @@ public class BroadcastNode extends Node {
 				int startColumn = c*forward[0].columns;
 				int endRow = startRow+forward[0].rows;
 				int endColumn = startColumn+forward[0].columns;
-				newAdjoint.elementOp_i(adjoint.getSlice(startRow, endRow, startColumn, endColumn), (a,b) -> a+b);
+				newAdjoint.add_i(adjoint.getSlice(startRow, endRow, startColumn, endColumn));
 			}
 		}
 		return new Matrix[]{newAdjoint};
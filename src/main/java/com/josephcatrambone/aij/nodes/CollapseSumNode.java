@@ -1,5 +1,7 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.Kernels;
 import com.josephcatrambone.aij.Matrix;
 
 public class CollapseSumNode extends Node {
@@ -13,16 +15,23 @@ public class CollapseSumNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		double accumulator = 0;
-		for(int i=0; i < args[0].data.length; i++) {
-			accumulator += args[0].data[i];
-		}
-		return new Matrix(1, 1, new double[]{accumulator});
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix result = context.allocate(1, 1);
+		result.data[0] = Kernels.get().sum(args[0].data, 0, args[0].data.length);
+		return result;
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
 		// Have to sum up the adjoints from all the rows, taking slices.
-		Matrix newAdjoint = new Matrix(forward[0].rows, forward[0].columns, (i,j) -> adjoint.data[0]);
+		Matrix newAdjoint = context.allocate(forward[0].rows, forward[0].columns);
+		newAdjoint.fill(adjoint.data[0]);
 		return new Matrix[]{newAdjoint};
 	}
 
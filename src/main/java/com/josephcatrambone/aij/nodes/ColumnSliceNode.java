@@ -0,0 +1,52 @@
+package com.josephcatrambone.aij.nodes;
+
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.Matrix;
+
+/**
+ * A run of whole columns from the input: columns [firstColumn, firstColumn+columns), every row.
+ */
+public class ColumnSliceNode extends Node {
+	int firstColumn;
+
+	public ColumnSliceNode() { super(); }
+
+	public ColumnSliceNode(Node input, int firstColumn, int columns) {
+		super(input.rows, columns, input);
+		assert(firstColumn >= 0 && firstColumn+columns <= input.columns);
+		this.firstColumn = firstColumn;
+	}
+
+	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix x = args[0];
+		Matrix result = context.allocate(x.rows, this.columns);
+		for(int r=0; r < x.rows; r++) {
+			System.arraycopy(x.data, r*x.columns + firstColumn, result.data, r*this.columns, this.columns);
+		}
+		return result;
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	// The adjoint goes back into the columns it came from.  Everything else gets zero.
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix x = forward[0];
+		Matrix result = context.allocate(x.rows, x.columns);
+		for(int r=0; r < adjoint.rows; r++) {
+			System.arraycopy(adjoint.data, r*adjoint.columns, result.data, r*x.columns + firstColumn, adjoint.columns);
+		}
+		return new Matrix[]{result};
+	}
+
+	// Used to augment serialization.
+	public String extraDataToString() { return ""+firstColumn; };
+	public void extraDataFromString(String s) {
+		firstColumn = Integer.parseInt(s);
+	}
+}
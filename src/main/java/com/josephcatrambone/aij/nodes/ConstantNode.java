@@ -22,8 +22,7 @@ public class ConstantNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		Matrix m = new Matrix(this.rows, this.columns, (i, j) -> value );
-		return m;
+		return Matrix.full(this.rows, this.columns, value);
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
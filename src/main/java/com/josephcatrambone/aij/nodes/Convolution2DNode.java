@@ -1,10 +1,29 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ComputePool;
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.FFT;
 import com.josephcatrambone.aij.Matrix;
 
 public class Convolution2DNode extends Node {
+	/***
+	 * How the convolution is computed.  They all give the same answer up to rounding.
+	 * DIRECT is im2col plus GEMM, WINOGRAD is F(2x2,3x3) and only applies to 3x3 kernels at stride 1,
+	 * FFT multiplies spectra and costs the same regardless of kernel size.  AUTO picks by kernel size and stride.
+	 */
+	public enum Algorithm { AUTO, DIRECT, WINOGRAD, FFT }
+
+	// AUTO switches to FFT once kernelRows*kernelColumns/(rowStride*columnStride) reaches this for a single kernel.
+	// The im2col GEMM gets more efficient per kernel up to four kernels (its register tile width), so the bar is
+	// raised by up to 4x for banks of kernels.  ConvolutionBenchmark puts the crossover at 11x11 for one kernel.
+	// The FFT computes every stride-1 output and throws the rest away, which is why the stride divides the area:
+	// 21x21 at stride 2 breaks even and 31x31 at stride 3 just favours FFT.  Strided rectangular kernels like
+	// ConversationalConvnet's (3x41 at 2x20, 32x64 at 16x32) come out around 3-4 and DIRECT is 100x faster there.
+	private static final int FFT_KERNEL_AREA_THRESHOLD = 100;
+
 	int rowStride = 0;
 	int columnStride = 0;
+	public Algorithm algorithm = Algorithm.AUTO;
 
 	public Convolution2DNode() { super(); }
 
@@ -26,92 +45,428 @@ public class Convolution2DNode extends Node {
 		this.inputs = new Node[1 + kernels.length];
 		this.inputs[0] = input;
 		for(int i=0; i < kernels.length; i++) {
+			assert(kernels[i].rows == kernels[0].rows && kernels[i].columns == kernels[0].columns);
 			this.inputs[1+i] = kernels[i];
 		}
 	}
 
 	public Matrix forward(Matrix[] args) {
-		// TODO: Should we add 'tocolumn' and 'torow'?
-		// Something to do both so we can get packed filters?
-		Matrix output = new Matrix(this.rows, this.columns);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		switch(selectAlgorithm(args[1].rows, args[1].columns, args.length-1)) {
+			case WINOGRAD:
+				return forwardWinograd(args, context);
+			case FFT:
+				return forwardFFT(args, context);
+			default:
+				return forwardIm2col(args, context);
+		}
+	}
+
+	/***
+	 * The algorithm forward and reverse will use for kernels of this size.
+	 * An explicit choice that can't handle the kernel (Winograd on a 5x5, say) falls back to DIRECT.
+	 */
+	public Algorithm selectAlgorithm(int kernelRows, int kernelColumns, int kernelCount) {
+		boolean winogradApplies = kernelRows == 3 && kernelColumns == 3 && rowStride == 1 && columnStride == 1;
+		switch(algorithm) {
+			case WINOGRAD:
+				return winogradApplies ? Algorithm.WINOGRAD : Algorithm.DIRECT;
+			case AUTO:
+				if(winogradApplies) {
+					return Algorithm.WINOGRAD;
+				}
+				if(kernelRows*kernelColumns >= FFT_KERNEL_AREA_THRESHOLD*rowStride*columnStride*Math.min(kernelCount, 4)) {
+					return Algorithm.FFT;
+				}
+				return Algorithm.DIRECT;
+			default:
+				return algorithm;
+		}
+	}
+
+	private Matrix forwardIm2col(Matrix[] args, ExecutionContext context) {
+		// Unroll every kernel-sized patch of the input into one row of 'columns', then all the kernels are a single
+		// (patches x kernelSize) * (kernelSize x kernels) matmul.
+		// The product is laid out patch-major with the kernels interleaved, which is exactly (r, c*kernels + k).
+		Matrix input = args[0];
+		int kernelCount = args.length-1;
+		int kernelRows = args[1].rows;
+		int kernelColumns = args[1].columns;
+		int outputRows = input.rows/rowStride;
+		int outputColumns = input.columns/columnStride;
+
+		Matrix columns = context.allocate(outputRows*outputColumns, kernelRows*kernelColumns);
+		im2col(input, kernelRows, kernelColumns, rowStride, columnStride, outputRows, outputColumns, columns.data);
+		Matrix kernels = packKernels(args, context);
+		Matrix product = columns.matmul(kernels, context.allocate(outputRows*outputColumns, kernelCount));
+		return new Matrix(outputRows, outputColumns*kernelCount, product.data);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		// Winograd only pays off going forward.  Its reverse is just as well served by the GEMMs.
+		if(selectAlgorithm(forward[1].rows, forward[1].columns, forward.length-1) == Algorithm.FFT) {
+			return reverseFFT(forward, adjoint, context);
+		}
+		return reverseIm2col(forward, adjoint, context);
+	}
+
+	private Matrix[] reverseIm2col(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		// Forward was out = columns * kernels, so adj(kernels) = columnsT * adj(out) and adj(columns) = adj(out) * kernelsT.
+		// adj(columns) gets folded back onto the input with col2im, summing wherever patches overlapped.
+		Matrix input = forward[0];
+		int kernelCount = forward.length-1;
+		int kernelRows = forward[1].rows;
+		int kernelColumns = forward[1].columns;
+		int kernelSize = kernelRows*kernelColumns;
+		int outputRows = input.rows/rowStride;
+		int outputColumns = input.columns/columnStride;
+		int patches = outputRows*outputColumns;
+		Matrix outputAdjoint = new Matrix(patches, kernelCount, adjoint.data);
+
+		Matrix columns = context.allocate(patches, kernelSize);
+		im2col(input, kernelRows, kernelColumns, rowStride, columnStride, outputRows, outputColumns, columns.data);
+		Matrix packedKernelAdjoint = columns.matmulTransposeLeft(outputAdjoint, context.allocate(kernelSize, kernelCount));
+
+		Matrix kernels = packKernels(forward, context);
+		Matrix columnAdjoint = outputAdjoint.matmulTransposeRight(kernels, context.allocate(patches, kernelSize));
+		Matrix inputAdjoint = context.allocate(input.rows, input.columns);
+		col2im(columnAdjoint.data, kernelRows, kernelColumns, rowStride, columnStride, outputRows, outputColumns, inputAdjoint);
+
+		Matrix[] results = new Matrix[1+kernelCount];
+		results[0] = inputAdjoint;
+		for(int k=0; k < kernelCount; k++) {
+			Matrix kernelAdjoint = context.allocate(kernelRows, kernelColumns);
+			for(int i=0; i < kernelSize; i++) {
+				kernelAdjoint.data[i] = packedKernelAdjoint.data[i*kernelCount + k];
+			}
+			results[1+k] = kernelAdjoint;
+		}
+		return results;
+	}
+
+	private Matrix forwardWinograd(Matrix[] args, ExecutionContext context) {
+		// F(2x2,3x3): each 4x4 input tile gives a 2x2 output tile for 16 multiplies instead of 36.
+		// Y = AT[(G g GT) . (BT d B)]A.  The kernel transforms are done once, the input transform once per tile.
 		Matrix input = args[0];
-		// If we have multiple kernels, copy all of them.
-		Matrix[] kernels = new Matrix[args.length-1];
-		for(int i=1; i < args.length; i++) {
-			kernels[i-1] = args[i];
-		}
-
-		// For each filter, sum the element-wise product with the input volume and assign it to the output.
-		for(int r=0; r < this.rows; r++) {
-			for(int c=0; c < this.columns/kernels.length; c++) {
-				// Should add padding.
-				int inRCenter = r*rowStride;
-				int inCCenter = c*columnStride;
-				for(int k=0; k < kernels.length; k++) {
-					Matrix kernel = kernels[k];
-					double accumulator = 0;
-					// Center kernel at r,c
-					for (int rk = 0; rk < kernel.rows; rk++) {
-						for (int ck = 0; ck < kernel.columns; ck++) {
-							// Delta position
-							int inR = rk - (kernel.rows / 2) + inRCenter;
-							int inC = ck - (kernel.columns / 2) + inCCenter;
-							if (inR >= 0 && inR < input.rows && inC >= 0 && inC < input.columns) {
-								accumulator += input.get(inR, inC) * kernel.get(rk, ck);
-							}
+		int kernelCount = args.length-1;
+		double[][] transformedKernels = new double[kernelCount][16];
+		for(int k=0; k < kernelCount; k++) {
+			winogradKernel(args[1+k].data, transformedKernels[k]);
+		}
+		Matrix output = context.allocate(input.rows, input.columns*kernelCount);
+		int tileColumns = (input.columns+1)/2;
+		ComputePool.parallelFor(0, (input.rows+1)/2, ComputePool.grainFor(16L*tileColumns*kernelCount), (tileStart, tileEnd) -> {
+			double[] tile = new double[16];
+			double[] transformed = new double[16];
+			double[] product = new double[16];
+			for(int tr=tileStart; tr < tileEnd; tr++) {
+				for(int tc=0; tc < tileColumns; tc++) {
+					// The kernel is centered, so output (r,c) reads input rows r-1 to r+1.
+					int r0 = 2*tr;
+					int c0 = 2*tc;
+					for(int i=0; i < 4; i++) {
+						int inR = r0 - 1 + i;
+						for(int j=0; j < 4; j++) {
+							int inC = c0 - 1 + j;
+							boolean inside = inR >= 0 && inR < input.rows && inC >= 0 && inC < input.columns;
+							tile[i*4 + j] = inside ? input.data[inR*input.columns + inC] : 0.0;
+						}
+					}
+					winogradInput(tile, transformed);
+					for(int k=0; k < kernelCount; k++) {
+						double[] u = transformedKernels[k];
+						for(int i=0; i < 16; i++) {
+							product[i] = u[i]*transformed[i];
 						}
+						winogradOutput(product, output, r0, c0, k, kernelCount, input.columns);
 					}
-					output.set(r, (c*kernels.length)+k, accumulator);
 				}
 			}
+		});
+		return output;
+	}
+
+	/***
+	 * u = G g GT for a 3x3 kernel g.
+	 */
+	private static void winogradKernel(double[] g, double[] u) {
+		double[] t = new double[12];
+		for(int j=0; j < 3; j++) {
+			double g0 = g[j], g1 = g[3+j], g2 = g[6+j];
+			t[j] = g0;
+			t[3+j] = 0.5*(g0 + g1 + g2);
+			t[6+j] = 0.5*(g0 - g1 + g2);
+			t[9+j] = g2;
+		}
+		for(int i=0; i < 4; i++) {
+			double t0 = t[i*3], t1 = t[i*3+1], t2 = t[i*3+2];
+			u[i*4] = t0;
+			u[i*4+1] = 0.5*(t0 + t1 + t2);
+			u[i*4+2] = 0.5*(t0 - t1 + t2);
+			u[i*4+3] = t2;
+		}
+	}
+
+	/***
+	 * v = BT d B for a 4x4 tile d.
+	 */
+	private static void winogradInput(double[] d, double[] v) {
+		for(int j=0; j < 4; j++) {
+			double d0 = d[j], d1 = d[4+j], d2 = d[8+j], d3 = d[12+j];
+			v[j] = d0 - d2;
+			v[4+j] = d1 + d2;
+			v[8+j] = d2 - d1;
+			v[12+j] = d1 - d3;
+		}
+		for(int i=0; i < 4; i++) {
+			double t0 = v[i*4], t1 = v[i*4+1], t2 = v[i*4+2], t3 = v[i*4+3];
+			v[i*4] = t0 - t2;
+			v[i*4+1] = t1 + t2;
+			v[i*4+2] = t2 - t1;
+			v[i*4+3] = t1 - t3;
 		}
+	}
+
+	/***
+	 * Write AT m A, a 2x2 tile, to output rows r0 and r0+1, clipped to the image.
+	 */
+	private static void winogradOutput(double[] m, Matrix output, int r0, int c0, int k, int kernelCount, int imageColumns) {
+		for(int i=0; i < 2 && r0+i < output.rows; i++) {
+			// Row i of AT m, then its two column outputs.
+			double s0, s1, s2, s3;
+			if(i == 0) {
+				s0 = m[0] + m[4] + m[8];
+				s1 = m[1] + m[5] + m[9];
+				s2 = m[2] + m[6] + m[10];
+				s3 = m[3] + m[7] + m[11];
+			} else {
+				s0 = m[4] - m[8] - m[12];
+				s1 = m[5] - m[9] - m[13];
+				s2 = m[6] - m[10] - m[14];
+				s3 = m[7] - m[11] - m[15];
+			}
+			int row = (r0+i)*output.columns;
+			output.data[row + c0*kernelCount + k] = s0 + s1 + s2;
+			if(c0+1 < imageColumns) {
+				output.data[row + (c0+1)*kernelCount + k] = s1 - s2 - s3;
+			}
+		}
+	}
+
+	private Matrix forwardFFT(Matrix[] args, ExecutionContext context) {
+		// out(r,c) = sum_a,b kernel(a,b) input(r*rowStride - h + a, c*columnStride - w + b), which is the
+		// cross-correlation of the input against the kernel sampled at shift (r*rowStride - h, c*columnStride - w).
+		// Correlation is IFFT(F(input) * conj(F(kernel))).  The grid is big enough that nothing wraps around.
+		Matrix input = args[0];
+		int kernelCount = args.length-1;
+		int kernelRows = args[1].rows;
+		int kernelColumns = args[1].columns;
+		int outputRows = input.rows/rowStride;
+		int outputColumns = input.columns/columnStride;
+		int gridRows = FFT.nextPowerOfTwo(input.rows + kernelRows);
+		int gridColumns = FFT.nextPowerOfTwo(input.columns + kernelColumns);
+
+		double[][] inputSpectrum = FFT.spectrum(input, gridRows, gridColumns);
+		Matrix output = context.allocate(outputRows, outputColumns*kernelCount);
+		ComputePool.parallelFor(0, kernelCount, 1, (kernelStart, kernelEnd) -> {
+			for(int k=kernelStart; k < kernelEnd; k++) {
+				double[][] correlation = new double[2][gridRows*gridColumns];
+				FFT.multiplyAccumulate(inputSpectrum, FFT.spectrum(args[1+k], gridRows, gridColumns), true, correlation);
+				FFT.inverse2D(correlation[0], correlation[1], gridRows, gridColumns, -(kernelRows/2), (outputRows-1)*rowStride + 1);
+				for(int r=0; r < outputRows; r++) {
+					int shiftRow = Math.floorMod(r*rowStride - kernelRows/2, gridRows);
+					for(int c=0; c < outputColumns; c++) {
+						int shiftColumn = Math.floorMod(c*columnStride - kernelColumns/2, gridColumns);
+						output.data[(r*outputColumns + c)*kernelCount + k] = correlation[0][shiftRow*gridColumns + shiftColumn];
+					}
+				}
+			}
+		});
 		return output;
 	}
 
-	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		// If this were c = i*k, then i_adj = c_adj*k and k_adj = c_adj*i
-		// Instead, treat this as much bigger and apply the region in question for each adjoint.
-		Matrix inputAdjoint = new Matrix(forward[0].rows, forward[0].columns);
+	private Matrix[] reverseFFT(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		// Spread each kernel's output adjoint back out to input resolution (zeros between strides) as D_k.  Then
+		// adj(input)(x,y) = sum_k (D_k conv kernel_k)(x + h, y + w)
+		// adj(kernel_k)(a,b) = (input corr D_k)(a - h, b - w)
 		Matrix input = forward[0];
-		Matrix[] kernelAdjoints = new Matrix[forward.length-1];
-		Matrix[] kernels = new Matrix[forward.length-1];
-		for(int i=0; i < kernelAdjoints.length; i++) {
-			Matrix kernelAdjoint = new Matrix(forward[1+i].rows, forward[1+i].columns);
-			kernelAdjoints[i] = kernelAdjoint;
-			kernels[i] = forward[i+1];
-		}
-		// For each filter, sum the element-wise product with the input volume and assign it to the output.
-		for(int r=0; r < this.rows; r++) {
-			for(int c=0; c < this.columns; c++) {
-				for(int k=0; k < kernels.length; k++) {
-					Matrix kernel = kernels[k];
-					// Center kernel at r,c
-					for (int rk = 0; rk < kernel.rows; rk++) {
-						for (int ck = 0; ck < kernel.columns; ck++) {
-							int outRow = rk - (kernel.rows / 2) + (r * rowStride);
-							int outColumn = ck - (kernel.columns / 2) + (c * columnStride);
-							if (outRow >= 0 && outRow < inputAdjoint.rows && outColumn >= 0 && outColumn < inputAdjoint.columns) {
-								inputAdjoint.set(outRow, outColumn, inputAdjoint.get(outRow, outColumn) + adjoint.get(r, c+k) * kernel.get(rk, ck));
-								kernelAdjoints[k].set(rk, ck, kernelAdjoints[k].get(rk, ck) + adjoint.get(r, c+k) * input.get(outRow, outColumn));
-							}
-						}
+		int kernelCount = forward.length-1;
+		int kernelRows = forward[1].rows;
+		int kernelColumns = forward[1].columns;
+		int outputRows = input.rows/rowStride;
+		int outputColumns = input.columns/columnStride;
+		int gridRows = FFT.nextPowerOfTwo(input.rows + kernelRows);
+		int gridColumns = FFT.nextPowerOfTwo(input.columns + kernelColumns);
+		int gridSize = gridRows*gridColumns;
+
+		double[][] inputSpectrum = FFT.spectrum(input, gridRows, gridColumns);
+		double[][][] inputAdjointParts = new double[kernelCount][][];
+		Matrix[] results = new Matrix[1+kernelCount];
+		for(int k=0; k < kernelCount; k++) {
+			results[1+k] = context.allocate(kernelRows, kernelColumns);
+		}
+		ComputePool.parallelFor(0, kernelCount, 1, (kernelStart, kernelEnd) -> {
+			for(int k=kernelStart; k < kernelEnd; k++) {
+				double[] spread = new double[gridSize];
+				for(int r=0; r < outputRows; r++) {
+					for(int c=0; c < outputColumns; c++) {
+						spread[(r*rowStride)*gridColumns + c*columnStride] = adjoint.data[(r*outputColumns + c)*kernelCount + k];
+					}
+				}
+				double[][] adjointSpectrum = new double[][]{spread, new double[gridSize]};
+				FFT.forward2D(adjointSpectrum[0], adjointSpectrum[1], gridRows, gridColumns, (outputRows-1)*rowStride + 1);
+
+				double[][] kernelCorrelation = new double[2][gridSize];
+				FFT.multiplyAccumulate(inputSpectrum, adjointSpectrum, true, kernelCorrelation);
+				FFT.inverse2D(kernelCorrelation[0], kernelCorrelation[1], gridRows, gridColumns, -(kernelRows/2), kernelRows);
+				Matrix kernelAdjoint = results[1+k];
+				for(int a=0; a < kernelRows; a++) {
+					int shiftRow = Math.floorMod(a - kernelRows/2, gridRows);
+					for(int b=0; b < kernelColumns; b++) {
+						kernelAdjoint.data[a*kernelColumns + b] = kernelCorrelation[0][shiftRow*gridColumns + Math.floorMod(b - kernelColumns/2, gridColumns)];
 					}
 				}
+
+				// Each kernel keeps its own product so the threads don't share an accumulator.  Summed below.
+				double[][] convolution = new double[2][gridSize];
+				FFT.multiplyAccumulate(adjointSpectrum, FFT.spectrum(forward[1+k], gridRows, gridColumns), false, convolution);
+				inputAdjointParts[k] = convolution;
+			}
+		});
+
+		// The transform is linear, so sum the spectra and invert once.
+		double[][] inputConvolution = inputAdjointParts[0];
+		for(int k=1; k < kernelCount; k++) {
+			for(int i=0; i < gridSize; i++) {
+				inputConvolution[0][i] += inputAdjointParts[k][0][i];
+				inputConvolution[1][i] += inputAdjointParts[k][1][i];
 			}
 		}
-		Matrix[] results = new Matrix[1+kernelAdjoints.length];
-		results[0] = inputAdjoint;
-		for(int k=0; k < kernelAdjoints.length; k++) {
-			results[1+k] = kernelAdjoints[k];
+		FFT.inverse2D(inputConvolution[0], inputConvolution[1], gridRows, gridColumns, kernelRows/2, input.rows);
+		Matrix inputAdjoint = context.allocate(input.rows, input.columns);
+		for(int x=0; x < input.rows; x++) {
+			int row = (x + kernelRows/2)*gridColumns + kernelColumns/2;
+			System.arraycopy(inputConvolution[0], row, inputAdjoint.data, x*input.columns, input.columns);
 		}
+		results[0] = inputAdjoint;
 		return results;
 	}
 
+	/***
+	 * Lay the kernels in args[1...] out as the columns of one (kernelRows*kernelColumns) x kernels matrix.
+	 */
+	private static Matrix packKernels(Matrix[] args, ExecutionContext context) {
+		int kernelCount = args.length-1;
+		int kernelSize = args[1].rows*args[1].columns;
+		Matrix packed = context.allocate(kernelSize, kernelCount);
+		for(int k=0; k < kernelCount; k++) {
+			Matrix kernel = args[1+k];
+			if(kernel.rows*kernel.columns != kernelSize || kernel.rows != args[1].rows) {
+				throw new IllegalArgumentException("All kernels in a convolution must be the same size.  Kernel " + k + " is " + kernel.rows + "x" + kernel.columns + " but kernel 0 is " + args[1].rows + "x" + args[1].columns);
+			}
+			for(int i=0; i < kernelSize; i++) {
+				packed.data[i*kernelCount + k] = kernel.data[i];
+			}
+		}
+		return packed;
+	}
+
+	/***
+	 * Copy every kernel-sized patch of the input into a row of dest, which must be zeroed and have
+	 * outputRows*outputColumns rows of kernelRows*kernelColumns.
+	 * Patch (r,c) is centered on input (r*rowStride, c*columnStride).  Anything hanging off the edge stays zero.
+	 * Bands of output rows write disjoint rows of dest, so they're filled in parallel.
+	 */
+	static void im2col(Matrix input, int kernelRows, int kernelColumns, int rowStride, int columnStride, int outputRows, int outputColumns, double[] dest) {
+		int grain = ComputePool.grainFor((long)outputColumns*kernelRows*kernelColumns);
+		ComputePool.parallelFor(0, outputRows, grain, (rowStart, rowEnd) ->
+			im2col(input, kernelRows, kernelColumns, rowStride, columnStride, rowStart, rowEnd, outputColumns, dest)
+		);
+	}
+
+	private static void im2col(Matrix input, int kernelRows, int kernelColumns, int rowStride, int columnStride, int rowStart, int rowEnd, int outputColumns, double[] dest) {
+		int kernelSize = kernelRows*kernelColumns;
+		for(int r=rowStart; r < rowEnd; r++) {
+			for(int c=0; c < outputColumns; c++) {
+				int patch = (r*outputColumns + c)*kernelSize;
+				int inCStart = c*columnStride - (kernelColumns/2);
+				// Clip the kernel's columns to the input once per patch so each kernel row is one arraycopy.
+				int ckStart = Math.max(0, -inCStart);
+				int ckEnd = Math.min(kernelColumns, input.columns - inCStart);
+				if(ckEnd <= ckStart) { continue; }
+				for(int rk=0; rk < kernelRows; rk++) {
+					int inR = r*rowStride - (kernelRows/2) + rk;
+					if(inR < 0 || inR >= input.rows) { continue; }
+					System.arraycopy(input.data, inR*input.columns + inCStart + ckStart, dest, patch + rk*kernelColumns + ckStart, ckEnd-ckStart);
+				}
+			}
+		}
+	}
+
+	/***
+	 * The adjoint of im2col.  Adds each row of columns back onto the input positions its patch was copied from.
+	 * Neighbouring patches overlap, so rather than splitting by patch (and racing on the overlap) each band of
+	 * destination rows is owned by one task, which pulls in every patch row that touches it.
+	 */
+	static void col2im(double[] columns, int kernelRows, int kernelColumns, int rowStride, int columnStride, int outputRows, int outputColumns, Matrix dest) {
+		int grain = ComputePool.grainFor(((long)outputColumns*kernelRows*kernelColumns)/Math.max(1, rowStride));
+		ComputePool.parallelFor(0, dest.rows, grain, (destStart, destEnd) ->
+			col2im(columns, kernelRows, kernelColumns, rowStride, columnStride, outputRows, outputColumns, dest, destStart, destEnd)
+		);
+	}
+
+	private static void col2im(double[] columns, int kernelRows, int kernelColumns, int rowStride, int columnStride, int outputRows, int outputColumns, Matrix dest, int destStart, int destEnd) {
+		int kernelSize = kernelRows*kernelColumns;
+		int rowStart = Math.max(0, firstSource(destStart, kernelRows, rowStride));
+		int rowEnd = Math.min(outputRows, lastSource(destEnd, kernelRows, rowStride));
+		for(int r=rowStart; r < rowEnd; r++) {
+			for(int c=0; c < outputColumns; c++) {
+				int patch = (r*outputColumns + c)*kernelSize;
+				int inCStart = c*columnStride - (kernelColumns/2);
+				int ckStart = Math.max(0, -inCStart);
+				int ckEnd = Math.min(kernelColumns, dest.columns - inCStart);
+				for(int rk=0; rk < kernelRows; rk++) {
+					int inR = r*rowStride - (kernelRows/2) + rk;
+					if(inR < destStart || inR >= destEnd) { continue; }
+					int src = patch + rk*kernelColumns;
+					int dst = inR*dest.columns + inCStart;
+					for(int ck=ckStart; ck < ckEnd; ck++) {
+						dest.data[dst + ck] += columns[src + ck];
+					}
+				}
+			}
+		}
+	}
+
+	/***
+	 * A kernel of the given size centered at source*stride covers rows source*stride - size/2 ... + size-1.
+	 * Returns the first source index whose footprint reaches row destStart.  May be negative.
+	 */
+	static int firstSource(int destStart, int kernelSize, int stride) {
+		return -Math.floorDiv(-(destStart + (kernelSize/2) - (kernelSize-1)), stride);
+	}
+
+	/***
+	 * One past the last source index whose footprint starts before row destEnd.
+	 */
+	static int lastSource(int destEnd, int kernelSize, int stride) {
+		return Math.floorDiv(destEnd - 1 + (kernelSize/2), stride) + 1;
+	}
+
 	// Used to augment serialization.
-	public String extraDataToString() { return rowStride + "," + columnStride; };
+	// The algorithm is only written when it was forced, so AUTO graphs still load in older versions.
+	public String extraDataToString() { return rowStride + "," + columnStride + (algorithm == Algorithm.AUTO ? "" : "," + algorithm.name()); };
 	public void extraDataFromString(String s) {
 		String[] tokens = s.split(",");
 		this.rowStride = Integer.parseInt(tokens[0]);
 		this.columnStride = Integer.parseInt(tokens[1]);
+		this.algorithm = tokens.length > 2 ? Algorithm.valueOf(tokens[2]) : Algorithm.AUTO;
 	}
 }
@@ -1,11 +1,21 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ComputePool;
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.FFT;
 import com.josephcatrambone.aij.Matrix;
 
 public class Deconvolution2DNode extends Node {
+	// AUTO switches to FFT once kernelRows*kernelColumns/(rowStride*columnStride) reaches this.
+	// The FFT runs on the strided-out output grid, hence the stride factor.  DeconvolutionBenchmark has the crossover.
+	// ConversationalConvnet's decoder (32x64 at 16x32, 3x41 at 2x20) is nowhere near it and the FFT takes seconds there.
+	private static final int FFT_KERNEL_AREA_THRESHOLD = 256;
+
 	int padding = 0;
 	int rowStride = 0;
 	int columnStride = 0;
+	// WINOGRAD doesn't apply to the transposed convolution and is treated as DIRECT.
+	public Convolution2DNode.Algorithm algorithm = Convolution2DNode.Algorithm.AUTO;
 
 	public Deconvolution2DNode() { super(); }
 
@@ -49,87 +59,273 @@ public class Deconvolution2DNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		Matrix output = new Matrix(this.rows, this.columns);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		if(selectAlgorithm(args[1].rows, args[1].columns) == Convolution2DNode.Algorithm.FFT) {
+			return forwardFFT(args, context);
+		}
+		Matrix output = context.allocate(this.rows, this.columns);
 		Matrix input = args[0];
-		for(int k=0; k < args.length-1; k++) {
-			Matrix kernel = args[1+k];
-			for (int inRow = 0; inRow < input.rows; inRow++) {
-				for (int inCol = 0; inCol < input.columns; inCol++) {
-					// inRow/Col gives us our position on the convolution object.
-					// Calculate the center on our output image from our position on the convoluted input.
-					int outcenterRow = (inRow * rowStride);
-					int outcenterCol = (inCol * columnStride)+k;
+		// Every input pixel scatters a kernel onto the output, so neighbouring input rows write overlapping output rows.
+		// Give each task a band of output rows and have it gather the input rows that land there instead.
+		long workPerRow = ((long)input.rows*input.columns*args[1].rows*args[1].columns*(args.length-1))/Math.max(1, output.rows);
+		ComputePool.parallelFor(0, output.rows, ComputePool.grainFor(workPerRow), (outStart, outEnd) -> {
+			for(int k=0; k < args.length-1; k++) {
+				scatter(input, args[1+k], k, output, outStart, outEnd);
+			}
+		});
+		return output;
+	}
 
-					// Iterate over the kernel and use that to apply our output.
-					for (int kRow = 0; kRow < kernel.rows; kRow++) {
-						for (int kCol = 0; kCol < kernel.columns; kCol++) {
-							int outRow = outcenterRow - (kernel.rows / 2) + kRow;
-							int outCol = outcenterCol - (kernel.columns / 2) + kCol;
+	/***
+	 * The algorithm forward and reverse will use for kernels of this size.  Either DIRECT or FFT.
+	 */
+	public Convolution2DNode.Algorithm selectAlgorithm(int kernelRows, int kernelColumns) {
+		switch(algorithm) {
+			case FFT:
+				return Convolution2DNode.Algorithm.FFT;
+			case AUTO:
+				if(kernelRows*kernelColumns >= FFT_KERNEL_AREA_THRESHOLD*rowStride*columnStride) {
+					return Convolution2DNode.Algorithm.FFT;
+				}
+				return Convolution2DNode.Algorithm.DIRECT;
+			default:
+				return Convolution2DNode.Algorithm.DIRECT;
+		}
+	}
 
-							if (outRow >= 0 && outRow < output.rows && outCol >= 0 && outCol < output.columns) {
-								output.set(outRow, outCol, output.get(outRow, outCol) + kernel.get(kRow, kCol) * input.get(inRow, inCol));
-							}
+	/***
+	 * Add input convolved with kernel into the rows [outStart, outEnd) of output.
+	 */
+	private void scatter(Matrix input, Matrix kernel, int k, Matrix output, int outStart, int outEnd) {
+		int inRowStart = Math.max(0, Convolution2DNode.firstSource(outStart, kernel.rows, rowStride));
+		int inRowEnd = Math.min(input.rows, Convolution2DNode.lastSource(outEnd, kernel.rows, rowStride));
+		for (int inRow = inRowStart; inRow < inRowEnd; inRow++) {
+			// inRow/Col gives us our position on the convolution object.
+			// Calculate the center on our output image from our position on the convoluted input.
+			int outcenterRow = (inRow * rowStride);
+			for (int kRow = 0; kRow < kernel.rows; kRow++) {
+				int outRow = outcenterRow - (kernel.rows / 2) + kRow;
+				if (outRow < outStart || outRow >= outEnd) { continue; }
+				for (int inCol = 0; inCol < input.columns; inCol++) {
+					int outcenterCol = (inCol * columnStride)+k;
+					double value = input.data[inRow*input.columns + inCol];
+					for (int kCol = 0; kCol < kernel.columns; kCol++) {
+						int outCol = outcenterCol - (kernel.columns / 2) + kCol;
+						if (outCol >= 0 && outCol < output.columns) {
+							output.data[outRow*output.columns + outCol] += kernel.data[kRow*kernel.columns + kCol] * value;
 						}
 					}
 				}
 			}
 		}
-		return output;
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		if(selectAlgorithm(forward[1].rows, forward[1].columns) == Convolution2DNode.Algorithm.FFT) {
+			return reverseFFT(forward, adjoint, context);
+		}
 		// If this were c = i*k, then i_adj = c_adj*k and k_adj = c_adj*i
 		// Instead, treat this as much bigger and apply the region in question for each adjoint.
-		Matrix inputAdjoint = new Matrix(forward[0].rows, forward[0].columns);
-		Matrix[] kernelAdjoints = new Matrix[forward.length-1];
 		Matrix input = forward[0];
+		int kernelCount = forward.length-1;
+		Matrix inputAdjoint = context.allocate(input.rows, input.columns);
+		Matrix[] kernelAdjoints = new Matrix[kernelCount];
+		for(int k=0; k < kernelCount; k++) {
+			kernelAdjoints[k] = context.allocate(forward[1+k].rows, forward[1+k].columns);
+		}
 
-		for(int k=0; k < forward.length-1; k++) {
-			Matrix kernel = forward[1];
-			kernelAdjoints[k] = new Matrix(kernel.rows, kernel.columns);
+		// Each input row owns its row of inputAdjoint, so bands of input rows never collide there.
+		// Every band touches every kernel adjoint though, so each band sums into its own copy and we reduce at the end.
+		long work = (long)input.rows*input.columns*forward[1].rows*forward[1].columns*kernelCount;
+		int bands = 1;
+		if(ComputePool.shouldParallelize()) {
+			bands = (int)Math.max(1, Math.min(Math.min(input.rows, 4L*ComputePool.getThreadCount()), work/ComputePool.MIN_CHUNK_WORK));
+		}
+		if(bands == 1) {
+			gather(forward, adjoint, inputAdjoint, kernelAdjoints, 0, input.rows);
+		} else {
+			Matrix[][] partials = new Matrix[bands][kernelCount];
+			for(int b=0; b < bands; b++) {
+				for(int k=0; k < kernelCount; k++) {
+					partials[b][k] = new Matrix(forward[1+k].rows, forward[1+k].columns);
+				}
+			}
+			final int bandCount = bands;
+			ComputePool.parallelFor(0, bands, 1, (bandStart, bandEnd) -> {
+				for(int b=bandStart; b < bandEnd; b++) {
+					gather(forward, adjoint, inputAdjoint, partials[b], (b*input.rows)/bandCount, ((b+1)*input.rows)/bandCount);
+				}
+			});
+			for(int b=0; b < bands; b++) {
+				for(int k=0; k < kernelCount; k++) {
+					kernelAdjoints[k].add_i(partials[b][k]);
+				}
+			}
+		}
+
+		// For each filter, sum the element-wise product with the input volume and assign it to the output.
+		Matrix[] results = new Matrix[forward.length];
+		results[0] = inputAdjoint;
+		for(int k=0; k < kernelAdjoints.length; k++) {
+			results[k+1] = kernelAdjoints[k];
+		}
+		return results;
+	}
 
-			for (int inRow = 0; inRow < input.rows; inRow++) {
+	/***
+	 * Accumulate the adjoints for input rows [inStart, inEnd) into inputAdjoint and kernelAdjoints.
+	 */
+	private void gather(Matrix[] forward, Matrix adjoint, Matrix inputAdjoint, Matrix[] kernelAdjoints, int inStart, int inEnd) {
+		Matrix input = forward[0];
+		for(int k=0; k < forward.length-1; k++) {
+			Matrix kernel = forward[1+k];
+			Matrix kernelAdjoint = kernelAdjoints[k];
+			for (int inRow = inStart; inRow < inEnd; inRow++) {
 				for (int inCol = 0; inCol < input.columns; inCol++) {
 					// inRow/Col gives us our position on the convolution object.
 					// Calculate the center on our output image from our position on the convoluted input.
 					int outcenterRow = (inRow * rowStride);
 					int outcenterCol = (inCol * columnStride)+k;
+					int inIndex = inRow*input.columns + inCol;
 
 					// Iterate over the kernel and use that to apply our output.
 					for (int kRow = 0; kRow < kernel.rows; kRow++) {
+						int outRow = outcenterRow - kernel.rows / 2 + kRow;
+						if (outRow < 0 || outRow >= adjoint.rows) { continue; }
 						for (int kCol = 0; kCol < kernel.columns; kCol++) {
-							int outRow = outcenterRow - kernel.rows / 2 + kRow;
 							int outCol = outcenterCol - kernel.columns / 2 + kCol;
-
-							if (outRow >= 0 && outRow < adjoint.rows && outCol >= 0 && outCol < adjoint.columns) {
-								// output.set(outRow, outCol, output.get(outRow, outCol) + kernel.get(kRow, kCol)*input.get(inRow, inCol));
+							if (outCol >= 0 && outCol < adjoint.columns) {
 								// Given ourput = input * kernel, and our adjoint applies to the output,
 								// adj(input) += adj(output)*kernel
 								// adj(kernel) += adj(output)*input
-								inputAdjoint.set(inRow, inCol, inputAdjoint.get(inRow, inCol) + (adjoint.get(outRow, outCol) * kernel.get(kRow, kCol)));
-								kernelAdjoints[k].set(kRow, kCol, kernelAdjoints[k].get(kRow, kCol) + (adjoint.get(outRow, outCol) * input.get(inRow, inCol)));
+								double outAdjoint = adjoint.data[outRow*adjoint.columns + outCol];
+								int kIndex = kRow*kernel.columns + kCol;
+								inputAdjoint.data[inIndex] += outAdjoint * kernel.data[kIndex];
+								kernelAdjoint.data[kIndex] += outAdjoint * input.data[inIndex];
 							}
 						}
 					}
 				}
 			}
 		}
+	}
 
-		// For each filter, sum the element-wise product with the input volume and assign it to the output.
-		Matrix[] results = new Matrix[forward.length];
-		results[0] = inputAdjoint;
-		for(int k=0; k < kernelAdjoints.length; k++) {
-			results[k+1] = kernelAdjoints[k];
+	// Kernel k scatters input (r,c) around output (r*rowStride, c*columnStride + k).  Write that as U_k, the input spread
+	// out onto the output grid with zeros between.  Then output = sum_k (U_k conv kernel_k) shifted back by (h, w), and
+	// adj(input)(r,c) = sum_k (adjoint corr kernel_k)(r*rowStride - h, c*columnStride + k - w)
+	// adj(kernel_k)(a,b) = (adjoint corr U_k)(a - h, b - w)
+	// The grids are sized so that none of those circular products wrap onto anything we read.
+
+	private int[] fftGrid(Matrix input, Matrix kernel, int kernelCount) {
+		int spreadRows = (input.rows-1)*rowStride + 1;
+		int spreadColumns = (input.columns-1)*columnStride + kernelCount;
+		return new int[]{
+			FFT.nextPowerOfTwo(Math.max(spreadRows, this.rows) + kernel.rows),
+			FFT.nextPowerOfTwo(Math.max(spreadColumns, this.columns) + kernel.columns)
+		};
+	}
+
+	private Matrix forwardFFT(Matrix[] args, ExecutionContext context) {
+		Matrix input = args[0];
+		int kernelCount = args.length-1;
+		int kernelRows = args[1].rows;
+		int kernelColumns = args[1].columns;
+		int[] grid = fftGrid(input, args[1], kernelCount);
+		int gridRows = grid[0];
+		int gridColumns = grid[1];
+
+		double[][][] parts = new double[kernelCount][][];
+		ComputePool.parallelFor(0, kernelCount, 1, (kernelStart, kernelEnd) -> {
+			for(int k=kernelStart; k < kernelEnd; k++) {
+				double[][] product = new double[2][gridRows*gridColumns];
+				FFT.multiplyAccumulate(
+					FFT.spectrum(input, gridRows, gridColumns, k, rowStride, columnStride),
+					FFT.spectrum(args[1+k], gridRows, gridColumns),
+					false, product
+				);
+				parts[k] = product;
+			}
+		});
+		double[][] sum = parts[0];
+		for(int k=1; k < kernelCount; k++) {
+			for(int i=0; i < sum[0].length; i++) {
+				sum[0][i] += parts[k][0][i];
+				sum[1][i] += parts[k][1][i];
+			}
+		}
+		FFT.inverse2D(sum[0], sum[1], gridRows, gridColumns, kernelRows/2, this.rows);
+
+		Matrix output = context.allocate(this.rows, this.columns);
+		for(int r=0; r < output.rows; r++) {
+			System.arraycopy(sum[0], (r + kernelRows/2)*gridColumns + kernelColumns/2, output.data, r*output.columns, output.columns);
+		}
+		return output;
+	}
+
+	private Matrix[] reverseFFT(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix input = forward[0];
+		int kernelCount = forward.length-1;
+		int kernelRows = forward[1].rows;
+		int kernelColumns = forward[1].columns;
+		int[] grid = fftGrid(input, forward[1], kernelCount);
+		int gridRows = grid[0];
+		int gridColumns = grid[1];
+
+		double[][] adjointSpectrum = FFT.spectrum(adjoint, gridRows, gridColumns);
+		double[][] inputCorrelations = new double[kernelCount][];
+		Matrix[] results = new Matrix[1+kernelCount];
+		for(int k=0; k < kernelCount; k++) {
+			results[1+k] = context.allocate(kernelRows, kernelColumns);
 		}
+		ComputePool.parallelFor(0, kernelCount, 1, (kernelStart, kernelEnd) -> {
+			for(int k=kernelStart; k < kernelEnd; k++) {
+				double[][] kernelCorrelation = new double[2][gridRows*gridColumns];
+				FFT.multiplyAccumulate(adjointSpectrum, FFT.spectrum(input, gridRows, gridColumns, k, rowStride, columnStride), true, kernelCorrelation);
+				FFT.inverse2D(kernelCorrelation[0], kernelCorrelation[1], gridRows, gridColumns, -(kernelRows/2), kernelRows);
+				Matrix kernelAdjoint = results[1+k];
+				for(int a=0; a < kernelRows; a++) {
+					int shiftRow = Math.floorMod(a - kernelRows/2, gridRows);
+					for(int b=0; b < kernelColumns; b++) {
+						kernelAdjoint.data[a*kernelColumns + b] = kernelCorrelation[0][shiftRow*gridColumns + Math.floorMod(b - kernelColumns/2, gridColumns)];
+					}
+				}
+
+				double[][] inputCorrelation = new double[2][gridRows*gridColumns];
+				FFT.multiplyAccumulate(adjointSpectrum, FFT.spectrum(forward[1+k], gridRows, gridColumns), true, inputCorrelation);
+				FFT.inverse2D(inputCorrelation[0], inputCorrelation[1], gridRows, gridColumns, -(kernelRows/2), (input.rows-1)*rowStride + 1);
+				inputCorrelations[k] = inputCorrelation[0];
+			}
+		});
+
+		// Every kernel samples the grid at different columns, so these can't be summed before inverting.
+		Matrix inputAdjoint = context.allocate(input.rows, input.columns);
+		for(int k=0; k < kernelCount; k++) {
+			double[] correlation = inputCorrelations[k];
+			for(int r=0; r < input.rows; r++) {
+				int shiftRow = Math.floorMod(r*rowStride - kernelRows/2, gridRows);
+				for(int c=0; c < input.columns; c++) {
+					inputAdjoint.data[r*input.columns + c] += correlation[shiftRow*gridColumns + Math.floorMod(c*columnStride + k - kernelColumns/2, gridColumns)];
+				}
+			}
+		}
+		results[0] = inputAdjoint;
 		return results;
 	}
 
 	// Used to augment serialization.
-	public String extraDataToString() { return padding + "," + rowStride + "," + columnStride; };
+	public String extraDataToString() { return padding + "," + rowStride + "," + columnStride + (algorithm == Convolution2DNode.Algorithm.AUTO ? "" : "," + algorithm.name()); };
 	public void extraDataFromString(String s) {
 		String[] tokens = s.split(",");
 		this.padding = Integer.parseInt(tokens[0]);
 		this.rowStride = Integer.parseInt(tokens[1]);
-		this.rowStride = Integer.parseInt(tokens[2]);
+		this.columnStride = Integer.parseInt(tokens[2]);
+		this.algorithm = tokens.length > 3 ? Convolution2DNode.Algorithm.valueOf(tokens[3]) : Convolution2DNode.Algorithm.AUTO;
 	}
 }
@@ -1,15 +1,16 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 import java.util.Random;
 
 /**
  * Created by josephcatrambone on 2017/01/13.
+ * The noise mask is kept in the ExecutionContext between forward and reverse, so concurrent runs each keep their own.
+ * On an inference context (setTraining(false)) this is the identity.
  */
 public class DropoutNode extends Node {
-	Random random = new Random();
-	Matrix lastNoiseVectorOutput = null;
 	public double dropoutRate = 0.5;
 
 	public DropoutNode() { super(); } // Need empty constructor.
@@ -21,26 +22,36 @@ public class DropoutNode extends Node {
 
 	@Override
 	public Matrix forward(Matrix[] args) {
-		// TODO: This will cause issues when multithreading.  Find a better way to parallelize.
-		if(dropoutRate == 0) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		if(dropoutRate == 0 || !context.isTraining()) {
 			return args[0];
 		} else {
-			lastNoiseVectorOutput = new Matrix(args[0].rows, args[0].columns, (i, j) -> {
+			Random random = context.getRandom();
+			Matrix mask = context.allocate(args[0].rows, args[0].columns);
+			for(int i=0; i < mask.data.length; i++) {
 				if (random.nextDouble() > dropoutRate) {
-					return 1.0;
-				} else {
-					return 0.0;
+					mask.data[i] = 1.0;
 				}
-			});
-			Matrix result = args[0].elementOp(lastNoiseVectorOutput, (a, b) -> a * b);
-			return result;
+			}
+			context.setState(this, mask);
+			return args[0].mul(mask, context.allocate(args[0].rows, args[0].columns));
 		}
 	}
 
 	@Override
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		if(dropoutRate > 0 && lastNoiseVectorOutput != null) {
-			return new Matrix[]{ new Matrix(forward[0].rows, forward[0].columns, (i,j) -> adjoint.get(i,j)*lastNoiseVectorOutput.get(i,j)) };
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix mask = context.getState(this);
+		if(dropoutRate > 0 && mask != null) {
+			return new Matrix[]{ adjoint.mul(mask, context.allocate(adjoint.rows, adjoint.columns)) };
 		} else {
 			return new Matrix[]{ adjoint };
 		}
@@ -0,0 +1,15 @@
+package com.josephcatrambone.aij.nodes;
+
+/**
+ * A node which applies the same function to each element of its one input, independently of the others.
+ * The execution plan's fusion pass uses this to run a chain of them (or a dense layer's activation) in a single sweep
+ * with no intermediate matrices.  Both methods must give exactly what the node's own forward and reverse would for
+ * that element, so fused and unfused plans agree to the bit.
+ */
+public interface ElementwiseNode {
+	/*** The output for an input element x. */
+	double apply(double x);
+
+	/*** The adjoint for an input element x, given the adjoint of the matching output element. */
+	double backward(double adjoint, double x);
+}
@@ -0,0 +1,113 @@
+package com.josephcatrambone.aij.nodes;
+
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.Matrix;
+
+/**
+ * activation(x*W + bias) as one node: what a dense layer is as MatrixMultiplyNode -> AddNode -> activation.
+ * The bias add and the activation happen in a single sweep over the product right after the matmul, instead of the
+ * add and the activation each writing a matrix of their own.  On an inference context the sweep is in place, so the
+ * layer writes one matrix in total.  Training keeps the pre-activation values for reverse.
+ *
+ * Inputs are (x, W) or (x, W, bias).  bias is either the same shape as the product or a single row, broadcast.
+ * Results and gradients are exactly what the unfused chain gives.
+ *
+ * The execution plan's fusion pass builds these in place of the original chain.  They're never added to a graph.
+ */
+public final class FusedDenseNode extends Node {
+	public final ElementwiseNode activation; // Null for no activation.
+
+	/***
+	 * @param tail The last node of the chain being replaced.  Its id, name and shape are taken over.
+	 */
+	public FusedDenseNode(Node x, Node w, Node bias, ElementwiseNode activation, Node tail) {
+		super(tail.rows, tail.columns, bias == null ? new Node[]{x, w} : new Node[]{x, w, bias});
+		this.activation = activation;
+		this.id = tail.id;
+		this.name = tail.name;
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix z = args[0].matmul(args[1], context.allocate(args[0].rows, args[1].columns));
+		if(activation == null) {
+			addBias(z, args);
+			return z;
+		}
+		// Training keeps z for reverse, so the activation goes to a new matrix.  Inference overwrites z.
+		Matrix y = context.isTraining() ? context.allocate(z.rows, z.columns) : z;
+		if(args.length > 2) {
+			Matrix bias = args[2];
+			boolean broadcast = bias.rows != z.rows;
+			assert(!broadcast || bias.rows == 1);
+			for(int r=0; r < z.rows; r++) {
+				int offset = r*z.columns;
+				int biasOffset = broadcast ? 0 : offset;
+				for(int c=0; c < z.columns; c++) {
+					double v = z.data[offset+c] + bias.data[biasOffset+c];
+					z.data[offset+c] = v;
+					y.data[offset+c] = activation.apply(v);
+				}
+			}
+		} else {
+			for(int i=0; i < z.data.length; i++) {
+				y.data[i] = activation.apply(z.data[i]);
+			}
+		}
+		if(y != z) {
+			context.setState(this, z);
+		}
+		return y;
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix delta = adjoint;
+		if(activation != null) {
+			Matrix z = context.getState(this);
+			if(z == null) {
+				// Reverse without a forward on this context.  Recompute.
+				z = forward[0].matmul(forward[1], context.allocate(forward[0].rows, forward[1].columns));
+				addBias(z, forward);
+			}
+			delta = context.allocate(adjoint.rows, adjoint.columns);
+			for(int i=0; i < delta.data.length; i++) {
+				delta.data[i] = activation.backward(adjoint.data[i], z.data[i]);
+			}
+		}
+		Matrix[] result = new Matrix[inputs.length];
+		result[0] = delta.matmulTransposeRight(forward[1], context.allocate(delta.rows, forward[1].rows));
+		result[1] = forward[0].matmulTransposeLeft(delta, context.allocate(forward[0].columns, delta.columns));
+		if(inputs.length > 2) {
+			// A broadcast bias gets the sum over every row it was added to.
+			result[2] = forward[2].rows == delta.rows ? delta : delta.columnSums(context.allocate(1, delta.columns));
+		}
+		return result;
+	}
+
+	private static void addBias(Matrix z, Matrix[] args) {
+		if(args.length < 3) { return; }
+		Matrix bias = args[2];
+		if(bias.rows == z.rows) {
+			z.add_i(bias);
+		} else {
+			z.addRowVector_i(bias);
+		}
+	}
+
+	// x and W only go through matmul, which reads any storage.  The bias is read directly.
+	@Override
+	public boolean acceptsAnyStorage(int argumentIndex) {
+		return argumentIndex < 2;
+	}
+}
@@ -0,0 +1,70 @@
+package com.josephcatrambone.aij.nodes;
+
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.Matrix;
+
+/**
+ * A chain of element-wise nodes (say Tanh -> Negate -> Exp) run as one.
+ * Forward pushes each element through the whole chain in one sweep.  Reverse recomputes the chain per element, which
+ * is cheaper than the memory traffic of keeping the intermediate matrices around.
+ * Results and gradients are exactly what the unfused chain gives.
+ *
+ * The execution plan's fusion pass builds these in place of the original chain.  They're never added to a graph.
+ */
+public final class FusedElementwiseNode extends Node {
+	public final ElementwiseNode[] ops; // In the order they're applied.
+
+	/***
+	 * @param tail The last node of the chain being replaced.  Its id, name and shape are taken over.
+	 */
+	public FusedElementwiseNode(Node input, ElementwiseNode[] ops, Node tail) {
+		super(tail.rows, tail.columns, input);
+		this.ops = ops;
+		this.id = tail.id;
+		this.name = tail.name;
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix x = args[0];
+		Matrix result = context.allocate(x.rows, x.columns);
+		for(int i=0; i < x.data.length; i++) {
+			double v = x.data[i];
+			for(ElementwiseNode op : ops) {
+				v = op.apply(v);
+			}
+			result.data[i] = v;
+		}
+		return result;
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix x = forward[0];
+		Matrix result = context.allocate(x.rows, x.columns);
+		double[] opInputs = new double[ops.length]; // The input to each op, for the current element.
+		for(int i=0; i < x.data.length; i++) {
+			double v = x.data[i];
+			for(int j=0; j < ops.length; j++) {
+				opInputs[j] = v;
+				v = ops[j].apply(v);
+			}
+			double adj = adjoint.data[i];
+			for(int j=ops.length-1; j >= 0; j--) {
+				adj = ops[j].backward(adj, opInputs[j]);
+			}
+			result.data[i] = adj;
+		}
+		return new Matrix[]{result};
+	}
+}
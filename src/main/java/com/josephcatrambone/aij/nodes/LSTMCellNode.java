@@ -0,0 +1,174 @@
+package com.josephcatrambone.aij.nodes;
+
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.GEMM;
+import com.josephcatrambone.aij.Matrix;
+
+/**
+ * One whole LSTM step as a single node, with a hand-written reverse.
+ *
+ *     [i|f|g|o] = [sigmoid|sigmoid|tanh|sigmoid](x*Wx + h_prev*Wh + bias)
+ *     c = i*g + f*c_prev
+ *     h = o*tanh(c)
+ *
+ * Inputs are (x, previousState, Wx, Wh, bias).  Wx is inputSize x 4*hiddenSize and Wh is hiddenSize x 4*hiddenSize,
+ * both packed as [input gate | forget gate | candidate | output gate], and bias is 1 x 4*hiddenSize or one row per
+ * example.
+ * The output is the state, [h | c | o], rows x 3*hiddenSize.  The output gate is there because LSTM reads it as its
+ * prediction.  previousState is the previous cell's output, or zeros of the same shape to start from.  Only its h and
+ * c are read.
+ *
+ * The only intermediate kept for reverse is [i|f|g|o|tanh(c)], and only while training.
+ */
+public class LSTMCellNode extends Node {
+
+	public LSTMCellNode() { super(); }
+
+	public LSTMCellNode(Node x, Node previousState, Node wx, Node wh, Node bias) {
+		super(x.rows, 3*wh.rows, x, previousState, wx, wh, bias);
+		assert(wx.columns == 4*wh.rows && wh.columns == 4*wh.rows && bias.columns == 4*wh.rows);
+		assert(previousState.columns == this.columns);
+	}
+
+	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix saved = activate(args, context);
+		Matrix previous = args[1];
+		int rows = args[0].rows;
+		int h = this.columns/3;
+		Matrix result = context.allocate(rows, 3*h);
+		for(int r=0; r < rows; r++) {
+			int s = r*5*h;
+			int p = r*previous.columns;
+			int out = r*3*h;
+			for(int j=0; j < h; j++) {
+				double o = saved.data[s+3*h+j];
+				result.data[out+j] = o*saved.data[s+4*h+j];
+				result.data[out+h+j] = saved.data[s+j]*saved.data[s+2*h+j] + saved.data[s+h+j]*previous.data[p+h+j];
+				result.data[out+2*h+j] = o;
+			}
+		}
+		if(context.isTraining()) {
+			context.setState(this, saved);
+		}
+		return result;
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix x = forward[0];
+		Matrix previous = forward[1];
+		Matrix wx = forward[2];
+		Matrix wh = forward[3];
+		int rows = x.rows;
+		int h = this.columns/3;
+		Matrix saved = context.getState(this);
+		if(saved == null) {
+			saved = activate(forward, context); // Reverse without a forward on this context.
+		}
+
+		// Adjoint of the pre-activations, and the direct part of the previous state's adjoint (dc_prev = dc*f).
+		Matrix delta = context.allocate(rows, 4*h);
+		Matrix previousAdjoint = context.allocate(previous.rows, previous.columns);
+		for(int r=0; r < rows; r++) {
+			int s = r*5*h;
+			int a = r*3*h;
+			int d = r*4*h;
+			int p = r*previous.columns;
+			for(int j=0; j < h; j++) {
+				double i = saved.data[s+j];
+				double f = saved.data[s+h+j];
+				double g = saved.data[s+2*h+j];
+				double o = saved.data[s+3*h+j];
+				double tc = saved.data[s+4*h+j];
+				double dh = adjoint.data[a+j];
+				double dc = adjoint.data[a+h+j] + dh*o*(1.0 - tc*tc);
+				double dOut = adjoint.data[a+2*h+j] + dh*tc;
+				delta.data[d+j] = dc*g*i*(1.0 - i);
+				delta.data[d+h+j] = dc*previous.data[p+h+j]*f*(1.0 - f);
+				delta.data[d+2*h+j] = dc*i*(1.0 - g*g);
+				delta.data[d+3*h+j] = dOut*o*(1.0 - o);
+				previousAdjoint.data[p+h+j] = dc*f;
+			}
+		}
+
+		Matrix[] result = new Matrix[5];
+		result[0] = delta.matmulTransposeRight(wx, context.allocate(rows, wx.rows));
+		// dh_prev = delta * Wh^T, straight into the h columns of the previous state's adjoint.
+		GEMM.multiplyMixed(
+			rows, h, 4*h,
+			delta, 0, 4*h, 1,
+			wh, 0, 1, wh.columns,
+			previousAdjoint.data, 0, previous.columns
+		);
+		result[1] = previousAdjoint;
+		result[2] = x.matmulTransposeLeft(delta, context.allocate(x.columns, 4*h));
+		// dWh = h_prev^T * delta, reading h_prev in place from the previous state.
+		Matrix dwh = context.allocate(h, 4*h);
+		GEMM.multiplyMixed(
+			h, 4*h, rows,
+			previous, 0, 1, previous.columns,
+			delta, 0, 4*h, 1,
+			dwh.data, 0, 4*h
+		);
+		result[3] = dwh;
+		// A broadcast bias gets the sum over every row it was added to.
+		result[4] = forward[4].rows == rows ? delta : delta.columnSums(context.allocate(1, 4*h));
+		return result;
+	}
+
+	// Compute [i|f|g|o|tanh(c)] for every row.  Both matmuls accumulate into the first four blocks in place.
+	private Matrix activate(Matrix[] args, ExecutionContext context) {
+		Matrix x = args[0];
+		Matrix previous = args[1];
+		Matrix wx = args[2];
+		Matrix wh = args[3];
+		Matrix bias = args[4];
+		int rows = x.rows;
+		int h = this.columns/3;
+		Matrix saved = context.allocate(rows, 5*h);
+		GEMM.multiplyMixed(
+			rows, 4*h, x.columns,
+			x, 0, x.columns, 1,
+			wx, 0, wx.columns, 1,
+			saved.data, 0, 5*h
+		);
+		GEMM.multiplyMixed(
+			rows, 4*h, h,
+			previous, 0, previous.columns, 1,
+			wh, 0, wh.columns, 1,
+			saved.data, 0, 5*h
+		);
+		boolean broadcast = bias.rows != rows;
+		for(int r=0; r < rows; r++) {
+			int s = r*5*h;
+			int b = broadcast ? 0 : r*4*h;
+			int p = r*previous.columns;
+			for(int j=0; j < 4*h; j++) {
+				double v = saved.data[s+j] + bias.data[b+j];
+				saved.data[s+j] = j >= 2*h && j < 3*h ? Math.tanh(v) : 1.0/(1.0+Math.exp(-v));
+			}
+			for(int j=0; j < h; j++) {
+				double c = saved.data[s+j]*saved.data[s+2*h+j] + saved.data[s+h+j]*previous.data[p+h+j];
+				saved.data[s+4*h+j] = Math.tanh(c);
+			}
+		}
+		return saved;
+	}
+
+	// x and the weights only go through GEMM, which reads any storage.  The state and bias are read directly.
+	@Override
+	public boolean acceptsAnyStorage(int argumentIndex) {
+		return argumentIndex == 0 || argumentIndex == 2 || argumentIndex == 3;
+	}
+
+	// Used to augment serialization.
+	public String extraDataToString() { return ""; };
+	public void extraDataFromString(String s) {}
+}
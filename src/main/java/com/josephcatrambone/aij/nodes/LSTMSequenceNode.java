@@ -0,0 +1,193 @@
+package com.josephcatrambone.aij.nodes;
+
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.GEMM;
+import com.josephcatrambone.aij.Matrix;
+
+/**
+ * The recurrent part of an LSTM over a whole window of steps, for when the input projections x_t*Wx are computed up
+ * front.  Stack the window's inputs, one block of rows per step, and a single MatrixMultiplyNode by Wx gives every
+ * step's projection in one large GEMM.  Only h_t-1*Wh is left to do step by step, here.
+ *
+ * Inputs are (projection, initialState, Wh, bias).  projection is steps*batch x 4*hiddenSize, packed the same way as
+ * for LSTMCellNode.  initialState is batch x 3*hiddenSize, in LSTMCellNode's [h | c | o] layout, and sets the batch
+ * size.  bias is 1 x 4*hiddenSize.
+ * The output is every step's state, [h | c | o], stacked the same way as the projection.  Each step is exactly what
+ * LSTMCellNode computes.
+ *
+ * Reverse walks the steps backwards, and does the Wh and bias gradients over the whole window at once.  Only
+ * [i|f|g|o|tanh(c)|c] for each step is kept, and only while training.
+ */
+public class LSTMSequenceNode extends Node {
+
+	public LSTMSequenceNode() { super(); }
+
+	public LSTMSequenceNode(Node projection, Node initialState, Node wh, Node bias) {
+		super(projection.rows, 3*wh.rows, projection, initialState, wh, bias);
+		assert(projection.columns == 4*wh.rows && wh.columns == 4*wh.rows && bias.columns == 4*wh.rows);
+		assert(initialState.columns == this.columns);
+	}
+
+	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix states = context.allocate(args[0].rows, this.columns);
+		Matrix saved = run(args, states, context);
+		if(context.isTraining()) {
+			context.setState(this, saved);
+		}
+		return states;
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		Matrix projection = forward[0];
+		Matrix initial = forward[1];
+		Matrix wh = forward[2];
+		int h = this.columns/3;
+		int batch = initial.rows;
+		int steps = projection.rows/batch;
+		Matrix saved = context.getState(this);
+		if(saved == null) {
+			// Reverse without a forward on this context.  Recompute.
+			saved = run(forward, context.allocate(projection.rows, this.columns), context);
+		}
+
+		// Every step's h_t-1, stacked, so the Wh gradient is one GEMM at the end.
+		Matrix previousH = context.allocate(projection.rows, h);
+		for(int r=0; r < projection.rows; r++) {
+			int p = r*h;
+			if(r < batch) {
+				System.arraycopy(initial.data, r*initial.columns, previousH.data, p, h);
+			} else {
+				int s = (r-batch)*6*h;
+				for(int j=0; j < h; j++) {
+					previousH.data[p+j] = saved.data[s+3*h+j]*saved.data[s+4*h+j];
+				}
+			}
+		}
+
+		// carry is the adjoint flowing into step t's state from step t+1.  It ends up as the initial state's.
+		Matrix delta = context.allocate(projection.rows, 4*h);
+		Matrix carry = context.allocate(batch, 3*h);
+		Matrix nextCarry = context.allocate(batch, 3*h);
+		for(int t=steps-1; t >= 0; t--) {
+			for(int b=0; b < batch; b++) {
+				int r = t*batch + b;
+				int s = r*6*h;
+				int a = r*3*h;
+				int k = b*3*h;
+				int d = r*4*h;
+				for(int j=0; j < h; j++) {
+					double i = saved.data[s+j];
+					double f = saved.data[s+h+j];
+					double g = saved.data[s+2*h+j];
+					double o = saved.data[s+3*h+j];
+					double tc = saved.data[s+4*h+j];
+					double previousC = t == 0 ? initial.data[b*initial.columns+h+j] : saved.data[s-6*h*batch+5*h+j];
+					double dh = adjoint.data[a+j] + carry.data[k+j];
+					double dc = adjoint.data[a+h+j] + carry.data[k+h+j] + dh*o*(1.0 - tc*tc);
+					double dOut = adjoint.data[a+2*h+j] + carry.data[k+2*h+j] + dh*tc;
+					delta.data[d+j] = dc*g*i*(1.0 - i);
+					delta.data[d+h+j] = dc*previousC*f*(1.0 - f);
+					delta.data[d+2*h+j] = dc*i*(1.0 - g*g);
+					delta.data[d+3*h+j] = dOut*o*(1.0 - o);
+					nextCarry.data[k+j] = 0.0;
+					nextCarry.data[k+h+j] = dc*f;
+					nextCarry.data[k+2*h+j] = 0.0;
+				}
+			}
+			// dh_t-1 = delta_t * Wh^T, into the h columns of the carry.
+			GEMM.multiplyMixed(
+				batch, h, 4*h,
+				delta, t*batch*4*h, 4*h, 1,
+				wh, 0, 1, wh.columns,
+				nextCarry.data, 0, 3*h
+			);
+			Matrix temp = carry;
+			carry = nextCarry;
+			nextCarry = temp;
+		}
+
+		Matrix[] result = new Matrix[4];
+		result[0] = delta;
+		result[1] = carry; // Zero in the o columns, which were never read.
+		result[2] = previousH.matmulTransposeLeft(delta, context.allocate(h, 4*h));
+		result[3] = delta.columnSums(context.allocate(1, 4*h));
+		return result;
+	}
+
+	// Run every step, writing the states and returning [i|f|g|o|tanh(c)|c] for each.
+	private Matrix run(Matrix[] args, Matrix states, ExecutionContext context) {
+		Matrix projection = args[0];
+		Matrix initial = args[1];
+		Matrix wh = args[2];
+		Matrix bias = args[3];
+		int h = this.columns/3;
+		int batch = initial.rows;
+		int steps = projection.rows/batch;
+		assert(steps*batch == projection.rows);
+		assert(bias.rows == 1);
+
+		Matrix saved = context.allocate(projection.rows, 6*h);
+		for(int t=0; t < steps; t++) {
+			// The gates start as this step's share of the projection, plus h_t-1*Wh.
+			for(int b=0; b < batch; b++) {
+				int r = t*batch + b;
+				System.arraycopy(projection.data, r*4*h, saved.data, r*6*h, 4*h);
+			}
+			if(t == 0) {
+				GEMM.multiplyMixed(
+					batch, 4*h, h,
+					initial, 0, initial.columns, 1,
+					wh, 0, wh.columns, 1,
+					saved.data, 0, 6*h
+				);
+			} else {
+				GEMM.multiplyMixed(
+					batch, 4*h, h,
+					states, (t-1)*batch*3*h, 3*h, 1,
+					wh, 0, wh.columns, 1,
+					saved.data, t*batch*6*h, 6*h
+				);
+			}
+
+			for(int b=0; b < batch; b++) {
+				int r = t*batch + b;
+				int s = r*6*h;
+				int out = r*3*h;
+				for(int j=0; j < 4*h; j++) {
+					double v = saved.data[s+j] + bias.data[j];
+					saved.data[s+j] = j >= 2*h && j < 3*h ? Math.tanh(v) : 1.0/(1.0+Math.exp(-v));
+				}
+				for(int j=0; j < h; j++) {
+					double previousC = t == 0 ? initial.data[b*initial.columns+h+j] : states.data[out-3*h*batch+h+j];
+					double c = saved.data[s+j]*saved.data[s+2*h+j] + saved.data[s+h+j]*previousC;
+					double tc = Math.tanh(c);
+					double o = saved.data[s+3*h+j];
+					saved.data[s+4*h+j] = tc;
+					saved.data[s+5*h+j] = c;
+					states.data[out+j] = o*tc;
+					states.data[out+h+j] = c;
+					states.data[out+2*h+j] = o;
+				}
+			}
+		}
+		return saved;
+	}
+
+	// Wh only goes through GEMM, which reads any storage.  Everything else is read directly.
+	@Override
+	public boolean acceptsAnyStorage(int argumentIndex) {
+		return argumentIndex == 2;
+	}
+
+	// Used to augment serialization.
+	public String extraDataToString() { return ""; };
+	public void extraDataFromString(String s) {}
+}
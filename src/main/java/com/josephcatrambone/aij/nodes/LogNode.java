@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class LogNode extends Node {
+public class LogNode extends Node implements ElementwiseNode {
 
 	public LogNode() { super(); }
 
@@ -13,12 +14,29 @@ public class LogNode extends Node {
 	// z := elem(x, op)
 	// x_adj += z_adj (dot) elem(x, delta op)
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp((a) -> (double)Math.log(a));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		// elem x and delta op.
-		return new Matrix[]{adjoint.elementOp(forward[0], (a, b) -> a/b)};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return Math.log(x);
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return adjoint/x;
 	}
 
 	// Used to augment serialization.
@@ -1,5 +1,6 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 public class MatrixMultiplyNode extends Node {
@@ -14,18 +15,30 @@ public class MatrixMultiplyNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].matmul(args[1]);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].matmul(args[1], context.allocate(args[0].rows, args[1].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
 
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
 		return new Matrix[]{
 				// Left adjoint. If C=AB, adj(a) = adj(c)*bT
-				adjoint.matmul(forward[1].transpose()),
+				adjoint.matmulTransposeRight(forward[1], context.allocate(adjoint.rows, forward[1].rows)),
 				// Right adjoint.  adj(b) = aT*adj(c)
-				forward[0].transpose().matmul(adjoint)
+				forward[0].matmulTransposeLeft(adjoint, context.allocate(forward[0].columns, adjoint.columns))
 		};
+	}
 
+	// Both operands are only ever used through the matmul family, which reads float storage directly.
+	@Override
+	public boolean acceptsAnyStorage(int argumentIndex) {
+		return true;
 	}
 
 	// Used to augment serialization.
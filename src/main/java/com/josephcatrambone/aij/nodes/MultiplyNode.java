@@ -1,7 +1,11 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
+/**
+ * Element-wise (Hadamard) product.  Either side may be a single row, which is broadcast down the rows of the other.
+ */
 public class MultiplyNode extends Node {
 
 	public MultiplyNode() { super(); }
@@ -13,16 +17,55 @@ public class MultiplyNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(args[1], (a,b) -> a*b);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix left = args[0];
+		Matrix right = args[1];
+		if(left.rows == right.rows) {
+			return left.mul(right, context.allocate(left.rows, left.columns));
+		}
+		Matrix full = left.rows > right.rows ? left : right;
+		Matrix row = left.rows > right.rows ? right : left;
+		Matrix result = context.allocate(full.rows, full.columns);
+		result.add_i(full);
+		result.mulRowVector_i(row);
+		return result;
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		if(forward[0].rows == forward[1].rows) {
+			return new Matrix[]{
+				adjoint.mul(forward[1], context.allocate(adjoint.rows, adjoint.columns)),
+				adjoint.mul(forward[0], context.allocate(adjoint.rows, adjoint.columns))
+			};
+		}
 		return new Matrix[]{
-			adjoint.elementOp(forward[1], (a, b) -> a*b),
-			adjoint.elementOp(forward[0], (a, b) -> a*b)
+			broadcastAdjoint(adjoint, forward[0], forward[1], context),
+			broadcastAdjoint(adjoint, forward[1], forward[0], context)
 		};
 	}
 
+	// Adjoint of 'self' when one side was broadcast: adjoint*other, summed down the rows if self was the row vector.
+	private static Matrix broadcastAdjoint(Matrix adjoint, Matrix self, Matrix other, ExecutionContext context) {
+		Matrix product = context.allocate(adjoint.rows, adjoint.columns);
+		product.add_i(adjoint);
+		if(other.rows == adjoint.rows) {
+			product.mul_i(other);
+		} else {
+			product.mulRowVector_i(other);
+		}
+		if(self.rows == adjoint.rows) {
+			return product;
+		}
+		return product.columnSums(context.allocate(1, adjoint.columns));
+	}
+
 	// Used to augment serialization.
 	public String extraDataToString() { return ""; };
 	public void extraDataFromString(String s) {}
@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class NegateNode extends Node {
+public class NegateNode extends Node implements ElementwiseNode {
 
 	public NegateNode() { super(); }
 
@@ -11,15 +12,33 @@ public class NegateNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(a -> -a);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].scale(-1.0, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
 		return new Matrix[]{
-			adjoint.elementOp(a -> -a)
+			adjoint.scale(-1.0, context.allocate(adjoint.rows, adjoint.columns))
 		};
 	}
 
+	@Override
+	public double apply(double x) {
+		return -1.0*x;
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return -1.0*adjoint;
+	}
+
 	// Used to augment serialization.
 	public String extraDataToString() { return ""; };
 	public void extraDataFromString(String s) {}
@@ -1,5 +1,6 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 import java.util.ArrayList;
@@ -31,7 +32,41 @@ public abstract class Node {
 	public abstract Matrix forward(Matrix[] args);
 	public abstract Matrix[] reverse(Matrix[] forward, Matrix adjoint);
 
+	/***
+	 * Forward pass that takes its output storage from the context instead of the heap.
+	 * Nodes which override this should build their result in context.allocate(...) and leave the args untouched.
+	 * The default falls back to forward(args), which is always correct, just not pooled.
+	 */
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return forward(args);
+	}
+
+	/***
+	 * Reverse pass that takes its output storage from the context.
+	 * The returned adjoints only need to live until the caller has accumulated them.
+	 */
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return reverse(forward, adjoint);
+	}
+
+	/***
+	 * True if forward and reverse can take args[argumentIndex] in any storage (a FloatMatrix, say) because they only
+	 * touch it through Matrix methods which understand it, like matmul.  Otherwise the execution plan hands the node a
+	 * plain double copy.
+	 */
+	public boolean acceptsAnyStorage(int argumentIndex) {
+		return false;
+	}
+
 	public String toString() {
+		return toString(extraDataToString());
+	}
+
+	/***
+	 * Serialize this node with the given string in place of extraDataToString().
+	 * Binary checkpoints use this to leave the weights out of the topology.
+	 */
+	public String toString(String extraData) {
 		StringJoiner sj = new StringJoiner(STRING_DELIMITER);
 		sj.add(this.getClass().getCanonicalName());
 		sj.add(""+this.id);
@@ -45,7 +80,7 @@ public abstract class Node {
 		}
 		sj.add(sj2.toString());
 
-		sj.add(extraDataToString());
+		sj.add(extraData);
 		return sj.toString();
 	}
 
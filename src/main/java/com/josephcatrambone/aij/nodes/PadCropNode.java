@@ -14,25 +14,22 @@ public class PadCropNode extends Node {
 
 	@Override
 	public Matrix forward(Matrix[] args) {
-		Matrix result = new Matrix(this.rows, this.columns, (i,j) -> {
-			if(i < args[0].rows && j < args[0].columns) {
-				return args[0].get(i, j);
-			} else {
-				return 0.0;
-			}
-		});
-		return result;
+		return padCrop(args[0], this.rows, this.columns);
 	}
 
 	@Override
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		Matrix res = new Matrix(forward[0].rows, forward[0].columns, (i,j) -> {
-			if(i < forward[0].rows && i < adjoint.rows && j < forward[0].columns && j < adjoint.columns) {
-				return adjoint.get(i,j);
-			} else {
-				return 0.0;
-			}
-		});
-		return new Matrix[]{res};
+		return new Matrix[]{padCrop(adjoint, forward[0].rows, forward[0].columns)};
+	}
+
+	// Copy the overlapping top-left region of src into a zeroed rows x columns matrix.
+	private static Matrix padCrop(Matrix src, int rows, int columns) {
+		Matrix result = new Matrix(rows, columns);
+		int copyRows = Math.min(rows, src.rows);
+		int copyColumns = Math.min(columns, src.columns);
+		for(int r=0; r < copyRows; r++) {
+			System.arraycopy(src.data, r*src.columns, result.data, r*columns, copyColumns);
+		}
+		return result;
 	}
 }
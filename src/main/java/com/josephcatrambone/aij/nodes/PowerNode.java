@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class PowerNode extends Node {
+public class PowerNode extends Node implements ElementwiseNode {
 	double exponent;
 
 	public PowerNode() { super(); }
@@ -13,20 +14,31 @@ public class PowerNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(a -> (double)Math.pow(a, exponent));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	// z := elem(x, op)
 	// x_adj += z_adj (dot) elem(x, delta op)
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[]{
-			adjoint.elementOp(
-				forward[0].elementOp(
-					a -> exponent*Math.pow(a, exponent-1.0f)
-				),
-				(adj,x)->adj*x
-			)
-		};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return Math.pow(x, exponent);
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return adjoint*exponent*Math.pow(x, exponent-1.0f);
 	}
 
 	// Used to augment serialization.
@@ -1,12 +1,11 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 import java.util.Random;
 
 public class RandomNode extends Node {
-	Random random = new Random();
-
 	public RandomNode() { super(); }
 
 	public RandomNode(Node mean, Node stddev) {
@@ -16,11 +15,16 @@ public class RandomNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Random random = context.getRandom();
 		return args[0].elementOp(args[1], (m,s) -> m*2.0f*(0.5f-random.nextGaussian()) + Math.exp(random.nextGaussian()*s) );
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[]{adjoint.elementOp(forward[0], (a, b) -> a*b), adjoint.elementOp(forward[1], (a,b) -> a*b)};
+		return new Matrix[]{adjoint.mul(forward[0]), adjoint.mul(forward[1])};
 	}
 
 	// Used to augment serialization.
@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class ReLUNode extends Node {
+public class ReLUNode extends Node implements ElementwiseNode {
 
 	public ReLUNode() { super(); }
 
@@ -11,13 +12,29 @@ public class ReLUNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(a -> (double)Math.max(0.001*a, a));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[] {
-			adjoint.elementOp(forward[0], (adj, x) -> { if(x < 0) { return 0.001f*adj; } else { return adj; } } )
-		};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return Math.max(0.001*x, x);
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return x < 0 ? 0.001f*adjoint : adjoint;
 	}
 
 	// Used to augment serialization.
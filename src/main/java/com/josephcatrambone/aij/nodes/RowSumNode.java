@@ -1,5 +1,6 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.Kernels;
 import com.josephcatrambone.aij.Matrix;
 
 public class RowSumNode extends Node {
@@ -14,12 +15,9 @@ public class RowSumNode extends Node {
 
 	public Matrix forward(Matrix[] args) {
 		Matrix m = new Matrix(this.rows, this.columns);
+		Kernels kernels = Kernels.get();
 		for(int r = 0; r < this.rows; r++) {
-			double accumulator = 0;
-			for(int c = 0; c < args[0].columns; c++) {
-				accumulator += args[0].get(r, c);
-			}
-			m.set(r, 0, accumulator);
+			m.data[r] = kernels.sum(args[0].data, r*args[0].columns, args[0].columns);
 		}
 		return m;
 	}
@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class SigmoidNode extends Node {
+public class SigmoidNode extends Node implements ElementwiseNode {
 
 	public SigmoidNode() { super(); }
 
@@ -11,17 +12,31 @@ public class SigmoidNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(x -> 1.0f/(1.0f+(double)Math.exp(-x)));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[]{
-			adjoint.elementOp(forward[0], (adj, x) ->
-				// We use the long-form of the sigmoid derivative instead of sig(x)*(1.0f-sig(x)).
-				// Fewer multiplies.
-				(double)(adj*(Math.exp(-x)/(1.0f+Math.pow(1.0f + Math.exp(-x), 2.0f))))
-			)
-		};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return 1.0f/(1.0f+Math.exp(-x));
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		// We use the long-form of the sigmoid derivative instead of sig(x)*(1.0f-sig(x)).
+		// Fewer multiplies.
+		return adjoint*(Math.exp(-x)/(1.0f+Math.pow(1.0f + Math.exp(-x), 2.0f)));
 	}
 
 	// Used to augment serialization.
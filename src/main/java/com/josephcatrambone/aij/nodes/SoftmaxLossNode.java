@@ -1,5 +1,6 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 /**
@@ -8,8 +9,6 @@ import com.josephcatrambone.aij.Matrix;
  * IT WILL IGNORE THE ADJOINT MATRIX INPUT AND CALCULATE ONE FROM FORWARD VALUES!
  */
 public class SoftmaxLossNode extends Node {
-	Matrix lastOutput = null;
-
 	/*** SoftmaxLossNode
 	 *
 	 * @param input
@@ -21,7 +20,18 @@ public class SoftmaxLossNode extends Node {
 
 	@Override
 	public Matrix forward(Matrix[] args) {
-		Matrix m = new Matrix(this.rows, this.columns);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix m = softmax(args, context);
+		context.setState(this, m); // Reverse needs it again.
+		return m;
+	}
+
+	private Matrix softmax(Matrix[] args, ExecutionContext context) {
+		Matrix m = context.allocate(this.rows, this.columns);
 		for(int r = 0; r < this.rows; r++) {
 			// Do this max thing to improve the numerical stability.
 			double max = 0;
@@ -38,20 +48,24 @@ public class SoftmaxLossNode extends Node {
 				m.set(r, c, Math.exp(args[0].get(r, c)-max)/accumulator);
 			}
 		}
-		lastOutput = m;
 		return m;
 	}
 
 	@Override
 	public Matrix[] reverse(Matrix[] args, Matrix adjoint) {
-		// Assume we've already gotten out forward pass set.
-		// TODO: Might introduce a bug if used in parallel.
+		return reverse(args, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] args, Matrix adjoint, ExecutionContext context) {
+		// Use the output from this run's forward pass if there was one.
 		// The loss for a 'softmax loss' node is softmaxout - [1 for the correct answer and zero everywhere else].
 		// We assume that the target node (should be forward[1]) is set like this.
+		Matrix lastOutput = context.getState(this);
 		if(lastOutput == null) {
-			lastOutput = forward(args);
+			lastOutput = softmax(args, context);
 		}
-		Matrix inputAdjoint = lastOutput.elementOp(args[1], (sm, lab) -> sm - lab);
-		return new Matrix[]{inputAdjoint, new Matrix(args[1].rows, args[1].columns)}; // Should NOT be using the gradients on the labels.
+		Matrix inputAdjoint = lastOutput.sub(args[1], context.allocate(args[0].rows, args[0].columns));
+		return new Matrix[]{inputAdjoint, context.allocate(args[1].rows, args[1].columns)}; // Should NOT be using the gradients on the labels.
 	}
 }
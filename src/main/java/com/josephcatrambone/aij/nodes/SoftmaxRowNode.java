@@ -11,8 +11,8 @@ public class SoftmaxRowNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		Matrix m = new Matrix(this.rows, this.columns);
-		for(int r = 0; r < this.rows; r++) {
+		Matrix m = new Matrix(args[0].rows, args[0].columns);
+		for(int r = 0; r < args[0].rows; r++) {
 			// Do this max thing to improve the numerical stability.
 			double max = 0;
 			for(int c=0; c < args[0].columns; c++) {
@@ -36,20 +36,22 @@ public class SoftmaxRowNode extends Node {
 		Matrix newAdjoint = new Matrix(fwd[0].rows, fwd[0].columns);
 		Matrix x = this.forward(fwd);
 
-		for(int r = 0; r < this.rows; r++) {
+		for(int r = 0; r < fwd[0].rows; r++) {
 			// Compute the jacobian from the derivative, then multiply the adjoint of each row by the transpose.
 			// W/ Kronecker Delta, dhi/dzj = h_i*(d_ij-h_j)
 			// p_j = x^_j / sum(e^x for all x)
 			// dp_j/dx_i = p_i*(1-p_i) for i == j or -p_i*p_j for i != j
 			
-			final int rCap = r; // Capture for lambda.
-			Matrix jacobian = new Matrix(adjoint.columns, adjoint.columns, (i, j) -> {
-				if(i == j) { return x.get(rCap,i)*(1.0f-x.get(rCap,i)); }
-				else { return -x.get(rCap,i)*x.get(rCap,j); }
-			}); // Square matrix.
+			Matrix jacobian = new Matrix(adjoint.columns, adjoint.columns); // Square matrix.
+			for(int i=0; i < jacobian.rows; i++) {
+				for(int j=0; j < jacobian.columns; j++) {
+					if(i == j) { jacobian.set(i, j, x.get(r,i)*(1.0f-x.get(r,i))); }
+					else { jacobian.set(i, j, -x.get(r,i)*x.get(r,j)); }
+				}
+			}
 
 			//newAdjoint.setRow(r, adjoint.matmul(jacobian.transpose()).data);
-			newAdjoint.setRow(r, adjoint.matmul(jacobian).data);
+			newAdjoint.setRow(r, adjoint.getSlice(r, r+1, 0, adjoint.columns).matmul(jacobian).data);
 
 			//for(int c = 0; c < adjoint.columns; c++) {
 				//newAdjoint.set(r, c, (adjoint.get(r,c)-x.get(r,c)*fwd[0].get(r,c))); // Goes to NaN.
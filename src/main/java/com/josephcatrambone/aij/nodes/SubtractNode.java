@@ -1,7 +1,11 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
+/**
+ * left - right.  Either side may be a single row, which is broadcast down the rows of the other like AddNode.
+ */
 public class SubtractNode extends Node {
 
 	public SubtractNode() { super(); }
@@ -12,14 +16,42 @@ public class SubtractNode extends Node {
 
 	@Override
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(args[1], (a,b) -> a-b);
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Matrix left = args[0];
+		Matrix right = args[1];
+		if(left.rows == right.rows) {
+			return left.sub(right, context.allocate(left.rows, left.columns));
+		}
+		int rows = Math.max(left.rows, right.rows);
+		Matrix result = context.allocate(rows, left.columns);
+		if(left.rows == rows) { result.add_i(left); } else { result.addRowVector_i(left); }
+		if(right.rows == rows) { result.sub_i(right); } else { result.subRowVector_i(right); }
+		return result;
 	}
 
 	@Override
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	@Override
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
 		Matrix[] result = new Matrix[forward.length];
-		result[0] = adjoint;
-		result[1] = adjoint.elementOp(a -> -a);
+		if(forward[0].rows == adjoint.rows) {
+			result[0] = adjoint;
+		} else {
+			result[0] = adjoint.columnSums(context.allocate(1, adjoint.columns));
+		}
+		if(forward[1].rows == adjoint.rows) {
+			result[1] = adjoint.scale(-1.0, context.allocate(adjoint.rows, adjoint.columns));
+		} else {
+			result[1] = adjoint.columnSums(context.allocate(1, adjoint.columns));
+			result[1].scale_i(-1.0);
+		}
 		return result;
 	}
 }
\ No newline at end of file
@@ -1,8 +1,9 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
-public class TanhNode extends Node {
+public class TanhNode extends Node implements ElementwiseNode {
 
 	public TanhNode() { super(); }
 
@@ -11,13 +12,29 @@ public class TanhNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
-		return args[0].elementOp(a -> (double)Math.tanh(a));
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		return args[0].elementOp(this::apply, context.allocate(args[0].rows, args[0].columns));
 	}
 
 	public Matrix[] reverse(Matrix[] forward, Matrix adjoint) {
-		return new Matrix[] {
-			adjoint.elementOp(forward[0], (adj, x) -> adj*(1.0f - (double)(Math.tanh(x)*Math.tanh(x))) )
-		};
+		return reverse(forward, adjoint, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix[] reverse(Matrix[] forward, Matrix adjoint, ExecutionContext context) {
+		return new Matrix[]{adjoint.elementOp(forward[0], this::backward, context.allocate(adjoint.rows, adjoint.columns))};
+	}
+
+	@Override
+	public double apply(double x) {
+		return Math.tanh(x);
+	}
+
+	@Override
+	public double backward(double adjoint, double x) {
+		return adjoint*(1.0f - Math.tanh(x)*Math.tanh(x));
 	}
 
 	// Used to augment serialization.
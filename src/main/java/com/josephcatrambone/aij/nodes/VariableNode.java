@@ -1,9 +1,18 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.FloatMatrix;
 import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.Precision;
 
 public class VariableNode extends Node {
+	// Marks a FLOAT32 variable in the serialized form.  Doubles have no prefix, so old graphs load unchanged.
+	public static final String FLOAT32_PREFIX = "float32:";
+
+	// A FloatMatrix when the precision is FLOAT32, or an OffHeapMatrix in either precision.
+	// Null for a variable read from a checkpoint topology, until the checkpoint fills it in.
 	Matrix variable;
+	// The precision to store a value in once it's set, while variable is null.
+	private Precision pendingPrecision = Precision.FLOAT64;
 
 	public VariableNode() { super(); }
 
@@ -22,6 +31,9 @@ public class VariableNode extends Node {
 	}
 
 	public Matrix forward(Matrix[] args) {
+		if(variable == null) {
+			throw new IllegalStateException("VariableNode '" + name + "' has no value.  Was its checkpoint restored?");
+		}
 		return variable;
 	}
 
@@ -30,16 +42,63 @@ public class VariableNode extends Node {
 	}
 
 	public void setVariable(Matrix newmat) {
-		variable = newmat;
+		variable = getPrecision() == Precision.FLOAT32 && newmat.getPrecision() != Precision.FLOAT32 ? new FloatMatrix(newmat) : newmat;
 	}
 
+	/***
+	 * The value in whatever storage it's kept in: a Matrix, a FloatMatrix for FLOAT32 variables, or an OffHeapMatrix.
+	 * This is the live value, so writes to it stick.  Only a plain Matrix has a data array, though.
+	 */
 	public Matrix getVariable() {
 		return variable;
 	}
 
+	/***
+	 * The value as a double matrix.  The live value for a FLOAT64 variable on the heap, and a widened copy for anything
+	 * else, so writes to it won't stick.  Use setVariable or axpy_i to change the value.
+	 */
+	public Matrix getVariableAsDouble() {
+		return variable.toDouble();
+	}
+
+	public Precision getPrecision() {
+		// A variable restored from a checkpoint topology has no value until the weights are read.
+		return variable == null ? pendingPrecision : variable.getPrecision();
+	}
+
+	/***
+	 * Convert the stored value.  Going to FLOAT32 rounds every weight and halves the memory used.
+	 * The converted value is always on the heap.
+	 */
+	public void setPrecision(Precision precision) {
+		if(precision == getPrecision()) { return; }
+		if(variable == null) {
+			pendingPrecision = precision;
+			return;
+		}
+		variable = precision == Precision.FLOAT32 ? new FloatMatrix(variable) : variable.toDouble();
+	}
+
+	/***
+	 * variable += alpha*x, in place, in the variable's own precision.  This is how the optimizers apply updates.
+	 */
+	public void axpy_i(double alpha, Matrix x) {
+		variable.axpy_i(alpha, x);
+	}
+
 	// Used to augment serialization.
-	public String extraDataToString() { return variable.toString(); };
+	public String extraDataToString() { return (getPrecision() == Precision.FLOAT32 ? FLOAT32_PREFIX : "") + (variable == null ? "" : variable.toString()); };
 	public void extraDataFromString(String s) {
-		variable = Matrix.fromString(s);
+		boolean isFloat = s.startsWith(FLOAT32_PREFIX);
+		if(isFloat) {
+			s = s.substring(FLOAT32_PREFIX.length());
+		}
+		pendingPrecision = isFloat ? Precision.FLOAT32 : Precision.FLOAT64;
+		// Checkpoint topologies leave the values out.  They're filled in by setVariable afterwards, straight into
+		// whatever storage the checkpoint picks, so nothing the size of the weights is allocated here.
+		variable = s.isEmpty() ? null : Matrix.fromString(s);
+		if(isFloat && variable != null) {
+			variable = new FloatMatrix(variable);
+		}
 	}
 }
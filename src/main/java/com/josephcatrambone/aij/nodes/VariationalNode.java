@@ -1,22 +1,25 @@
 package com.josephcatrambone.aij.nodes;
 
+import com.josephcatrambone.aij.ExecutionContext;
 import com.josephcatrambone.aij.Matrix;
 
 import java.util.Random;
 
 public class VariationalNode extends Node {
-	Random random;
-
 	public VariationalNode() { super(); }
 
 	public VariationalNode(Node mean, Node exp) {
-		random = new Random();
 		this.rows = mean.rows;
 		this.columns = mean.columns;
 		this.inputs = new Node[]{mean, exp};
 	}
 
 	public Matrix forward(Matrix[] args) {
+		return forward(args, ExecutionContext.UNPOOLED);
+	}
+
+	public Matrix forward(Matrix[] args, ExecutionContext context) {
+		Random random = context.getRandom();
 		return args[0].elementOp(args[1], (mu, exp) -> mu + Math.exp(exp)*random.nextGaussian());
 	}
 
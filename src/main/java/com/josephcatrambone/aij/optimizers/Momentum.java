@@ -33,16 +33,7 @@ public class Momentum extends Optimizer {
 
 	@Override
 	public void accumulateGradients(Node loss, Map<Node, Matrix> inputFeed) {
-		Matrix[] fwd = graph.forward(inputFeed);
-		Matrix[] grads = graph.getGradient(inputFeed, fwd, loss);
-
-		if(accumulatedGradients == null) {
-			accumulatedGradients = grads;
-		} else {
-			for(VariableNode n : variables) {
-				accumulatedGradients[n.id].elementOp_i(grads[n.id], (a, b) -> a+b);
-			}
-		}
+		addGradients(loss, inputFeed);
 	}
 
 	@Override
@@ -50,17 +41,19 @@ public class Momentum extends Optimizer {
 		// Apply the gradients, scaled, to each of the learning variables.
 		for(VariableNode n : variables) {
 			if(previousUpdate[n.id] == null) {
-				previousUpdate[n.id] = accumulatedGradients[n.id];
+				previousUpdate[n.id] = accumulatedGradients[n.id].copy(); // The accumulator is zeroed and reused.
 			} else {
-				previousUpdate[n.id].elementOp_i(accumulatedGradients[n.id], (oldGrad, newGrad) -> (1.0 - momentum) * newGrad + (momentum) * oldGrad);
+				// (1.0 - momentum) * newGrad + (momentum) * oldGrad
+				previousUpdate[n.id].scale_i(momentum);
+				previousUpdate[n.id].axpy_i(1.0 - momentum, accumulatedGradients[n.id]);
 			}
-			n.getVariable().elementOp_i(previousUpdate[n.id], (w, dw) -> w - learningRate*dw);
+			n.axpy_i(-learningRate, previousUpdate[n.id]);
 		}
 	}
 
 	@Override
 	public void clearGradients() {
-		accumulatedGradients = null;
+		zeroGradients();
 	}
 
 	@Override
@@ -1,5 +1,7 @@
 package com.josephcatrambone.aij.optimizers;
 
+import com.josephcatrambone.aij.ExecutionContext;
+import com.josephcatrambone.aij.ExecutionPlan;
 import com.josephcatrambone.aij.Graph;
 import com.josephcatrambone.aij.Matrix;
 import com.josephcatrambone.aij.nodes.Node;
@@ -13,7 +15,8 @@ import java.util.Map;
 public abstract class Optimizer {
 	public Graph graph;
 	public VariableNode[] variables;
-	public Matrix[] accumulatedGradients = null;
+	public Matrix[] accumulatedGradients = null; // Indexed by variable id.  Owned by the optimizer and reused.
+	public ExecutionContext context = new ExecutionContext(); // Pooled buffers for the forward/backward passes.
 
 	public Optimizer(Graph g, VariableNode[] variables) {
 		this.graph = g;
@@ -25,4 +28,42 @@ public abstract class Optimizer {
 	public abstract void clearGradients();
 
 	public abstract double minimize(Node loss, Map<Node, Matrix> inputFeed);
+
+	/***
+	 * Run forward and backward on the optimizer's context and add the variable gradients into accumulatedGradients.
+	 * The context's buffers are recycled on the next call, so the gradients are copied into storage we own.
+	 * @return Returns the value of the loss for this feed.
+	 */
+	protected double addGradients(Node loss, Map<Node, Matrix> inputFeed) {
+		ExecutionPlan plan = graph.getPlan(loss);
+		Matrix[] fwd = plan.forward(context, inputFeed);
+		Matrix[] grads = plan.getGradient(context, inputFeed, fwd, loss, variables);
+
+		if(accumulatedGradients == null) {
+			int maxId = -1;
+			for(VariableNode v : variables) {
+				maxId = Math.max(maxId, v.id);
+			}
+			accumulatedGradients = new Matrix[maxId+1];
+			for(VariableNode v : variables) {
+				accumulatedGradients[v.id] = new Matrix(v.rows, v.columns);
+			}
+		}
+		for(VariableNode v : variables) {
+			if(grads[v.id] != null) { // Null if the variable doesn't affect the loss.
+				accumulatedGradients[v.id].add_i(grads[v.id]);
+			}
+		}
+		return fwd[loss.id].data[0];
+	}
+
+	/***
+	 * Zero the accumulated gradients, keeping the storage for the next batch.
+	 */
+	protected void zeroGradients() {
+		if(accumulatedGradients == null) { return; }
+		for(VariableNode v : variables) {
+			accumulatedGradients[v.id].fill(0.0);
+		}
+	}
 }
@@ -1,5 +1,6 @@
 package com.josephcatrambone.aij.optimizers;
 
+import com.josephcatrambone.aij.ExecutionPlan;
 import com.josephcatrambone.aij.Graph;
 import com.josephcatrambone.aij.Matrix;
 import com.josephcatrambone.aij.nodes.Node;
@@ -22,40 +23,34 @@ public class SGD extends Optimizer {
 
 	@Override
 	public void accumulateGradients(Node loss, Map<Node, Matrix> inputFeed) {
-		Matrix[] fwd = graph.forward(inputFeed);
-		Matrix[] grads = graph.getGradient(inputFeed, fwd, loss);
-
-		if(accumulatedGradients == null) {
-			gradCount = 1;
-			accumulatedGradients = grads;
-		} else {
-			gradCount++;
-			for(VariableNode n : variables) {
-				accumulatedGradients[n.id].elementOp_i(grads[n.id], (w1, w2) -> w1 + w2);
-			}
-		}
+		addGradients(loss, inputFeed);
+		gradCount++;
 	}
 
 	@Override
 	public void applyGradients() {
 		for(VariableNode n : variables) {
-			n.getVariable().elementOp_i(accumulatedGradients[n.id], (w, dw) -> w - learningRate*(dw/((float)gradCount)));
+			n.axpy_i(-learningRate/gradCount, accumulatedGradients[n.id]);
 		}
 	}
 
 	@Override
 	public void clearGradients() {
-		accumulatedGradients = null;
+		zeroGradients();
+		gradCount = 0;
 	}
 
 	@Override
 	public double minimize(Node loss, Map<Node, Matrix> inputFeed) {
-		Matrix[] fwd = graph.forward(inputFeed);
-		Matrix[] grads = graph.getGradient(inputFeed, fwd, loss);
+		ExecutionPlan plan = graph.getPlan(loss);
+		Matrix[] fwd = plan.forward(context, inputFeed);
+		Matrix[] grads = plan.getGradient(context, inputFeed, fwd, loss, variables);
 
 		// Apply the gradients, scaled, to each of the learning variables.
 		for(VariableNode n : variables) {
-			n.getVariable().elementOp_i(grads[n.id], (w, dw) -> w - learningRate*dw);
+			if(grads[n.id] != null) {
+				n.axpy_i(-learningRate, grads[n.id]);
+			}
 		}
 		return fwd[loss.id].data[0];
 	}
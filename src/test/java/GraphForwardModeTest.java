@@ -30,7 +30,7 @@ public class GraphForwardModeTest {
 			inputs.replace(x, new Matrix(1, 3, new double[]{xIn-xStep, xIn, xIn+xStep})); // Two steps.
 			Matrix[] fwd = g.forward(inputs);
 			double[] res = fwd[op.id].data;
-			double[] grads = g.getGradient(inputs, fwd, op)[x.id].data;
+			double[] grads = g.getGradient(inputs, fwd, op, x)[x.id].data;
 			double approxGrad = (res[2]-res[0])/(2.0f*xStep);
 			double gradientDiff = Math.abs(approxGrad - grads[1]); // / Math.abs(Math.max(approxGrad, grads[1]) + 1e-6f);
 			// Gradient magnitude = abs(p - q) / max(p, q).
@@ -54,6 +54,77 @@ public class GraphForwardModeTest {
 		org.junit.Assert.assertArrayEquals(new double[]{1, 1, 1, 1, 1, 1, 1, 1, 1}, g.getOutput(inputFeed, out), TOLERANCE);
 	}
 
+	@Test
+	public void testCompiledPlanPrunes() {
+		Graph g = new Graph();
+		Node x = g.addNode(new InputNode(1, 3));
+		Node unused = g.addNode(new InputNode(1, 3));
+		Node out = g.addNode(new TanhNode(x));
+		g.addNode(new AddNode(x, unused)); // Off the path to 'out'.
+
+		ExecutionPlan plan = g.compile(out);
+		org.junit.Assert.assertArrayEquals(new Node[]{x}, plan.getInputs());
+
+		// Running repeatedly on the same plan should give the same results, without the unused input fed.
+		Matrix xValue = new Matrix(1, 3, new double[]{-1, 0, 1});
+		for(int i=0; i < 3; i++) {
+			Matrix[] results = plan.forward(xValue);
+			org.junit.Assert.assertNull(results[unused.id]);
+			org.junit.Assert.assertArrayEquals(new double[]{Math.tanh(-1), 0, Math.tanh(1)}, results[out.id].data, TOLERANCE);
+		}
+	}
+
+	@Test
+	public void testDeepGraphBuildsInOneAdd() {
+		// Only the last node is added, so addNode has to pull in a 50,000 deep chain without recursing.
+		final int depth = 50000;
+		Graph g = new Graph();
+		InputNode x = new InputNode(1, 2);
+		Node n = x;
+		for(int i=0; i < depth; i++) {
+			n = new AddNode(n, new ConstantNode(1.0, n));
+		}
+		g.addNode(n);
+		org.junit.Assert.assertEquals(2*depth+1, g.nodes.size());
+		g.validate();
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(1, 2, new double[]{0, 1}));
+		org.junit.Assert.assertArrayEquals(new double[]{depth, depth+1}, g.compile(n).forward(inputFeed)[n.id].data, 1e-9);
+
+		// Strict graphs refuse a node whose input belongs to some other graph.
+		Graph strict = new Graph();
+		strict.strict = true;
+		try {
+			strict.addNode(new NegateNode(n));
+			org.junit.Assert.fail("Expected a foreign input to be rejected.");
+		} catch(IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testFloat32VariableForward() {
+		Graph g = new Graph();
+		InputNode x = new InputNode(1, 2);
+		VariableNode v = new VariableNode(new Matrix(1, 2, new double[]{0.5, 2.0}));
+		v.setPrecision(Precision.FLOAT32);
+		Node sum = g.addNode(new AddNode(x, v));
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(1, 2, new double[]{1, 1}));
+		// Graph.forward hands back plain doubles, even for the float storage.
+		Matrix[] fwd = g.forward(inputFeed);
+		org.junit.Assert.assertArrayEquals(new double[]{0.5, 2.0}, fwd[v.id].data, 0.0);
+		org.junit.Assert.assertArrayEquals(new double[]{1.5, 3.0}, fwd[sum.id].data, 0.0);
+
+		// getVariable is the live storage, so writes through it stick.
+		v.getVariable().set(0, 1, 4.0);
+		org.junit.Assert.assertEquals(Precision.FLOAT32, v.getVariable().getPrecision());
+		org.junit.Assert.assertArrayEquals(new double[]{1.5, 5.0}, g.forward(inputFeed)[sum.id].data, 0.0);
+		org.junit.Assert.assertArrayEquals(new double[]{0.5, 4.0}, v.getVariableAsDouble().data, 0.0);
+	}
+
 	@Test
 	public void testBigMatMul() {
 		Graph g = new Graph();
@@ -57,6 +57,47 @@ public class GraphReverseModeTest {
 		);
 	}
 
+	@Test
+	public void testMultiKernelConvolutionGradient() {
+		// Check the analytic gradient of a strided, multi-kernel convolution against finite differences.
+		Random random = new Random(2468);
+		InputNode x = new InputNode(7, 6);
+		VariableNode k0 = new VariableNode(new Matrix(3, 3, (i,j) -> random.nextGaussian()));
+		VariableNode k1 = new VariableNode(new Matrix(3, 3, (i,j) -> random.nextGaussian()));
+		Node conv = new Convolution2DNode(x, new Node[]{k0, k1}, 2, 1);
+		// Weight the outputs unevenly so a mixed-up kernel index shows up in the gradient.
+		Node loss = new CollapseSumNode(new MultiplyNode(conv, new VariableNode(new Matrix(conv.rows, conv.columns, (i,j) -> (double)(1+i+2*j)))));
+		Graph g = new Graph();
+		g.addNode(loss);
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(7, 6, (i,j) -> random.nextGaussian()));
+		Matrix[] grad = g.getGradient(inputFeed, null, loss, x, k0, k1);
+
+		final double EPSILON = 1e-5;
+		for(VariableNode k : new VariableNode[]{k0, k1}) {
+			for(int i=0; i < 9; i++) {
+				double original = k.getVariable().data[i];
+				k.getVariable().data[i] = original + EPSILON;
+				double high = g.forward(inputFeed)[loss.id].data[0];
+				k.getVariable().data[i] = original - EPSILON;
+				double low = g.forward(inputFeed)[loss.id].data[0];
+				k.getVariable().data[i] = original;
+				org.junit.Assert.assertEquals((high-low)/(2*EPSILON), grad[k.id].data[i], 1e-4);
+			}
+		}
+		Matrix input = inputFeed.get(x);
+		for(int i=0; i < input.data.length; i++) {
+			double original = input.data[i];
+			input.data[i] = original + EPSILON;
+			double high = g.forward(inputFeed)[loss.id].data[0];
+			input.data[i] = original - EPSILON;
+			double low = g.forward(inputFeed)[loss.id].data[0];
+			input.data[i] = original;
+			org.junit.Assert.assertEquals((high-low)/(2*EPSILON), grad[x.id].data[i], 1e-4);
+		}
+	}
+
 	@Test
 	public void testConvShape() {
 		InputNode x = new InputNode(60, 60);
@@ -153,6 +194,205 @@ public class GraphReverseModeTest {
 		}
 	}
 
+	@Test
+	public void testPooledGradientMatchesUnpooled() {
+		Graph g = new Graph();
+		InputNode x = new InputNode(4, 5);
+		VariableNode w = new VariableNode(new Matrix(5, 3, (i,j) -> Math.sin(i+2*j)));
+		VariableNode b = new VariableNode(new Matrix(4, 3, (i,j) -> 0.1*j));
+		Node hidden = new TanhNode(new AddNode(new MatrixMultiplyNode(x, w), b));
+		Node loss = new CollapseSumNode(new PowerNode(new SubtractNode(hidden, new SigmoidNode(new MatrixMultiplyNode(x, w))), 2.0));
+		g.addNode(loss);
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(4, 5, (i,j) -> Math.cos(i*j)));
+
+		Matrix[] expected = g.getGradient(inputFeed, null, loss, w, b, x);
+		ExecutionPlan plan = g.compile(loss);
+		ExecutionContext context = new ExecutionContext();
+		long warmBytes = 0;
+		for(int i=0; i < 5; i++) {
+			Matrix[] fwd = plan.forward(context, inputFeed);
+			Matrix[] grads = plan.getGradient(context, inputFeed, fwd, loss);
+			org.junit.Assert.assertArrayEquals(expected[w.id].data, grads[w.id].data, 1e-10);
+			org.junit.Assert.assertArrayEquals(expected[b.id].data, grads[b.id].data, 1e-10);
+			org.junit.Assert.assertArrayEquals(expected[x.id].data, grads[x.id].data, 1e-10);
+			// After the first step the arena should have everything it needs.
+			if(i == 1) {
+				warmBytes = context.getArena().getAllocatedBytes();
+			} else if(i > 1) {
+				org.junit.Assert.assertEquals(warmBytes, context.getArena().getAllocatedBytes());
+			}
+		}
+
+		// Inference frees intermediates along the way but must still get the same answer.
+		Matrix[] results = plan.evaluate(context, inputFeed);
+		org.junit.Assert.assertArrayEquals(g.forward(inputFeed)[loss.id].data, results[loss.id].data, 1e-10);
+	}
+
+	@Test
+	public void testStackedBatchMatchesPerExample() {
+		// One row per example, 1 x n bias broadcast down the batch.
+		final int batchSize = 6;
+		Graph g = new Graph();
+		InputNode x = new InputNode(1, 4);
+		InputNode y = new InputNode(1, 2);
+		VariableNode w = new VariableNode(new Matrix(4, 2, (i,j) -> Math.sin(1+i*j)));
+		VariableNode b = new VariableNode(new Matrix(1, 2, (i,j) -> 0.3 - j));
+		Node out = new SigmoidNode(new AddNode(new MatrixMultiplyNode(x, w), b));
+		Node loss = new CollapseSumNode(new PowerNode(new SubtractNode(out, y), 2.0));
+		g.addNode(loss);
+
+		Matrix xBatch = new Matrix(batchSize, 4, (i,j) -> Math.cos(i+3*j));
+		Matrix yBatch = new Matrix(batchSize, 2, (i,j) -> (double)((i+j)%2));
+
+		// Sum of per-example gradients through the old path.
+		Matrix expectedW = new Matrix(4, 2);
+		Matrix expectedB = new Matrix(1, 2);
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		for(int i=0; i < batchSize; i++) {
+			inputFeed.put(x, new Matrix(1, 4, xBatch.getRow(i)));
+			inputFeed.put(y, new Matrix(1, 2, yBatch.getRow(i)));
+			Matrix[] grads = g.getGradient(inputFeed, null, loss);
+			expectedW.add_i(grads[w.id]);
+			expectedB.add_i(grads[b.id]);
+		}
+
+		inputFeed.put(x, xBatch);
+		inputFeed.put(y, yBatch);
+		Matrix[] grads = g.compile(loss).getGradient(new ExecutionContext(), inputFeed, null, loss);
+		org.junit.Assert.assertArrayEquals(expectedW.data, grads[w.id].data, 1e-10);
+		org.junit.Assert.assertArrayEquals(expectedB.data, grads[b.id].data, 1e-10);
+	}
+
+	@Test
+	public void testGradientPathSkipsSideBranches() {
+		Graph g = new Graph();
+		InputNode x = new InputNode(1, 3);
+		InputNode y = new InputNode(1, 2);
+		VariableNode w = new VariableNode(new Matrix(3, 2, (i,j) -> 0.1*(i-j)));
+		VariableNode unused = new VariableNode(new Matrix(1, 2, (i,j) -> 1.0));
+		Node out = new TanhNode(new MatrixMultiplyNode(x, w));
+		Node sideBranch = g.addNode(new SoftmaxRowNode(new AddNode(out, unused))); // A prediction head.
+		Node loss = g.addNode(new CollapseSumNode(new PowerNode(new SubtractNode(out, new MultiplyNode(y, new ConstantNode(0.5, y))), 2.0)));
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(1, 3, new double[]{1, 2, 3}));
+		inputFeed.put(y, new Matrix(1, 2, new double[]{0, 1}));
+
+		ExecutionPlan.GradientPath path = g.getPlan(loss).getGradientPath(loss, w);
+		org.junit.Assert.assertTrue(path.isMaterialized(w));
+		org.junit.Assert.assertFalse(path.isMaterialized(x));
+		org.junit.Assert.assertFalse(path.isMaterialized(unused));
+		org.junit.Assert.assertFalse(path.isMaterialized(sideBranch));
+
+		Matrix[] full = g.getGradient(inputFeed, null, loss);
+		Matrix[] pruned = g.getGradient(inputFeed, null, loss, w);
+		org.junit.Assert.assertArrayEquals(full[w.id].data, pruned[w.id].data, 1e-12);
+		// The default only goes as far as the variables.
+		org.junit.Assert.assertNull(full[x.id]);
+		org.junit.Assert.assertNull(full[sideBranch.id]);
+		org.junit.Assert.assertNull(full[unused.id]);
+		org.junit.Assert.assertNull(pruned[x.id]);
+		org.junit.Assert.assertNull(pruned[y.id]);
+
+		// A variable that was never added to the graph is rejected up front.
+		try {
+			g.getGradient(inputFeed, null, loss, new VariableNode(new Matrix(3, 2)));
+			org.junit.Assert.fail("Took a gradient with respect to a node outside the graph.");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testFusedPlanMatchesUnfused() {
+		// Two dense layers, a broadcast bias, and an element-wise chain (tanh -> negate -> exp) before the loss.
+		Graph g = new Graph();
+		InputNode x = new InputNode(5, 4);
+		InputNode y = new InputNode(5, 2);
+		VariableNode w1 = new VariableNode(new Matrix(4, 3, (i,j) -> Math.sin(1+i+2*j)));
+		VariableNode b1 = new VariableNode(new Matrix(1, 3, (i,j) -> 0.1*j - 0.1));
+		VariableNode w2 = new VariableNode(new Matrix(3, 2, (i,j) -> Math.cos(i*j)));
+		VariableNode b2 = new VariableNode(new Matrix(5, 2, (i,j) -> 0.05*i));
+		Node hidden = new SigmoidNode(new AddNode(new MatrixMultiplyNode(x, w1), b1));
+		Node out = new ExpNode(new NegateNode(new TanhNode(new AddNode(b2, new MatrixMultiplyNode(hidden, w2)))));
+		Node loss = g.addNode(new CollapseSumNode(new PowerNode(new SubtractNode(out, y), 2.0)));
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(5, 4, (i,j) -> Math.cos(i+3*j)));
+		inputFeed.put(y, new Matrix(5, 2, (i,j) -> (double)((i+j)%2)));
+
+		ExecutionPlan plain = g.compile(loss);
+		ExecutionPlan fused = g.compileFused(loss);
+		org.junit.Assert.assertTrue(fused.getStepCount() < plain.getStepCount());
+
+		Matrix[] expected = plain.getGradient(new ExecutionContext(), inputFeed, null, loss, w1, b1, w2, b2);
+		Matrix[] expectedCopy = new Matrix[expected.length];
+		for(VariableNode v : new VariableNode[]{w1, b1, w2, b2}) {
+			expectedCopy[v.id] = expected[v.id].copy();
+		}
+		double expectedLoss = plain.forward(inputFeed)[loss.id].data[0];
+		ExecutionContext context = new ExecutionContext();
+		for(int i=0; i < 3; i++) {
+			Matrix[] pooled = fused.getGradient(context, inputFeed, null, loss, w1, b1, w2, b2);
+			Matrix[] unpooled = fused.getGradient(inputFeed, null, loss);
+			for(VariableNode v : new VariableNode[]{w1, b1, w2, b2}) {
+				org.junit.Assert.assertArrayEquals(expectedCopy[v.id].data, pooled[v.id].data, 1e-12);
+				org.junit.Assert.assertArrayEquals(expectedCopy[v.id].data, unpooled[v.id].data, 1e-12);
+			}
+		}
+		org.junit.Assert.assertEquals(expectedLoss, fused.forward(inputFeed)[loss.id].data[0], 1e-12);
+		org.junit.Assert.assertEquals(expectedLoss, g.getInferenceSession(loss).evaluate(inputFeed)[0].data[0], 1e-12);
+		// The first layer's pre-activation was fused away.  The layer's output is still there, under the sigmoid's id.
+		Matrix[] fwd = fused.forward(inputFeed);
+		org.junit.Assert.assertNull(fwd[hidden.inputs[0].id]);
+		org.junit.Assert.assertArrayEquals(plain.forward(inputFeed)[hidden.id].data, fwd[hidden.id].data, 1e-12);
+	}
+
+	@Test
+	public void testConcurrentDropoutKeepsOwnMask() throws InterruptedException {
+		// d(sum(dropout(x) * w))/dw is exactly dropout(x), so every run's gradient has to match its own forward value.
+		Graph g = new Graph();
+		InputNode x = new InputNode(1, 200);
+		VariableNode w = new VariableNode(new Matrix(1, 200, (i,j) -> 0.5));
+		DropoutNode dropout = new DropoutNode(x, 0.5);
+		Node loss = g.addNode(new CollapseSumNode(new MultiplyNode(dropout, w)));
+		ExecutionPlan plan = g.compile(loss, dropout);
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x, new Matrix(1, 200, (i,j) -> 1.0 + j));
+
+		Thread[] threads = new Thread[8];
+		boolean[] ok = new boolean[threads.length];
+		for(int t=0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread(() -> {
+				ExecutionContext context = new ExecutionContext();
+				boolean matched = true;
+				for(int i=0; i < 50; i++) {
+					Matrix[] fwd = plan.forward(context, inputFeed);
+					Matrix[] grads = plan.getGradient(context, inputFeed, fwd, loss, w);
+					matched &= Arrays.equals(fwd[dropout.id].data, grads[w.id].data);
+				}
+				ok[index] = matched;
+			});
+			threads[t].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		for(boolean b : ok) {
+			org.junit.Assert.assertTrue(b);
+		}
+
+		// Contexts with the same seed draw the same masks.
+		ExecutionContext a = new ExecutionContext();
+		ExecutionContext b = new ExecutionContext();
+		a.setSeed(1234);
+		b.setSeed(1234);
+		org.junit.Assert.assertArrayEquals(plan.forward(a, inputFeed)[dropout.id].data, plan.forward(b, inputFeed)[dropout.id].data, 0.0);
+	}
+
 	@Test
 	public void testMLP() {
 		Graph g = new Graph();
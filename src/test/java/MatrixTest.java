@@ -0,0 +1,222 @@
+import com.josephcatrambone.aij.ComputePool;
+import com.josephcatrambone.aij.FloatMatrix;
+import com.josephcatrambone.aij.GEMM;
+import com.josephcatrambone.aij.Kernels;
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.OffHeapArena;
+import com.josephcatrambone.aij.OffHeapMatrix;
+import com.josephcatrambone.aij.Precision;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class MatrixTest {
+	final double TOLERANCE = 1e-9;
+
+	// The original i-j-k matmul.  Everything else is checked against this.
+	private Matrix referenceMatmul(Matrix a, Matrix b) {
+		Matrix result = new Matrix(a.rows, b.columns);
+		for(int i=0; i < a.rows; i++) {
+			for(int j=0; j < b.columns; j++) {
+				double accumulator = 0;
+				for(int k=0; k < a.columns; k++) {
+					accumulator += a.get(i, k) * b.get(k, j);
+				}
+				result.set(i, j, accumulator);
+			}
+		}
+		return result;
+	}
+
+	private Matrix randomMatrix(Random random, int rows, int columns) {
+		return new Matrix(rows, columns, (i,j) -> random.nextGaussian());
+	}
+
+	@Test
+	public void testMatmulMatchesReference() {
+		Random random = new Random(1234);
+		// Cover the naive path, the blocked path, and ragged edges on every blocking dimension.
+		int[][] shapes = new int[][] {
+			{1, 1, 1},
+			{1, 784, 512},
+			{3, 5, 7},
+			{17, 33, 9},
+			{64, 64, 64},
+			{65, 257, 130},
+			{130, 70, 1030},
+			{301, 1, 45}
+		};
+		for(int[] shape : shapes) {
+			Matrix a = randomMatrix(random, shape[0], shape[1]);
+			Matrix b = randomMatrix(random, shape[1], shape[2]);
+			Matrix expected = referenceMatmul(a, b);
+			Matrix got = a.matmul(b);
+			org.junit.Assert.assertEquals(expected.rows, got.rows);
+			org.junit.Assert.assertEquals(expected.columns, got.columns);
+			org.junit.Assert.assertArrayEquals(expected.data, got.data, TOLERANCE*shape[1]);
+		}
+	}
+
+	@Test
+	public void testBlockedMatchesNaive() {
+		Random random = new Random(4321);
+		Matrix a = randomMatrix(random, 99, 300);
+		Matrix b = randomMatrix(random, 300, 41);
+		Matrix naive = new Matrix(99, 41);
+		Matrix blocked = new Matrix(99, 41);
+		GEMM.multiplyNaive(99, 41, 300, a.data, 0, 300, 1, b.data, 0, 41, 1, naive.data, 0, 41);
+		GEMM.multiplyBlocked(99, 41, 300, a.data, 0, 300, 1, b.data, 0, 41, 1, blocked.data, 0, 41);
+		org.junit.Assert.assertArrayEquals(naive.data, blocked.data, TOLERANCE*300);
+	}
+
+	@Test
+	public void testTransposedMatmul() {
+		Random random = new Random(8765);
+		int[][] shapes = new int[][] {
+			{1, 784, 512},
+			{7, 3, 5},
+			{70, 300, 90}
+		};
+		for(int[] shape : shapes) {
+			// A is m x k, B is k x n.
+			Matrix a = randomMatrix(random, shape[0], shape[1]);
+			Matrix b = randomMatrix(random, shape[1], shape[2]);
+			Matrix expected = referenceMatmul(a, b);
+			org.junit.Assert.assertArrayEquals(expected.data, a.transpose().matmulTransposeLeft(b).data, TOLERANCE*shape[1]);
+			org.junit.Assert.assertArrayEquals(expected.data, a.matmulTransposeRight(b.transpose()).data, TOLERANCE*shape[1]);
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		Random random = new Random(5678);
+		int oldThreadCount = ComputePool.getThreadCount();
+		ComputePool.setThreadCount(4);
+		try {
+			int[][] shapes = new int[][] {
+				{1, 784, 512},
+				{32, 784, 512},
+				{129, 200, 67}
+			};
+			for(int[] shape : shapes) {
+				Matrix a = randomMatrix(random, shape[0], shape[1]);
+				Matrix b = randomMatrix(random, shape[1], shape[2]);
+				Matrix serial = new Matrix(shape[0], shape[2]);
+				Matrix parallel = new Matrix(shape[0], shape[2]);
+				GEMM.multiplySerial(shape[0], shape[2], shape[1], a.data, 0, shape[1], 1, b.data, 0, shape[2], 1, serial.data, 0, shape[2]);
+				GEMM.multiplyParallel(shape[0], shape[2], shape[1], a.data, 0, shape[1], 1, b.data, 0, shape[2], 1, parallel.data, 0, shape[2]);
+				org.junit.Assert.assertArrayEquals(serial.data, parallel.data, TOLERANCE);
+			}
+
+			// Someone still holding the pool from before a resize can keep using it.
+			java.util.concurrent.ForkJoinPool held = ComputePool.getPool();
+			ComputePool.setThreadCount(2);
+			int[] ran = new int[1];
+			held.invoke(java.util.concurrent.ForkJoinTask.adapt(() -> ran[0]++));
+			org.junit.Assert.assertEquals(1, ran[0]);
+		} finally {
+			ComputePool.setThreadCount(oldThreadCount);
+		}
+	}
+
+	@Test
+	public void testOffHeapMatchesHeap() {
+		Random random = new Random(2468);
+		int[][] shapes = new int[][] {
+			{1, 784, 64},
+			{3, 5, 7},
+			{70, 300, 90}
+		};
+		OffHeapMatrix m;
+		try(OffHeapArena arena = new OffHeapArena()) {
+			for(Precision precision : Precision.values()) {
+				for(int[] shape : shapes) {
+					Matrix a = randomMatrix(random, shape[0], shape[1]);
+					Matrix b = randomMatrix(random, shape[1], shape[2]);
+					Matrix offA = arena.copyOf(precision == Precision.FLOAT32 ? new FloatMatrix(a) : a);
+					Matrix offB = arena.copyOf(precision == Precision.FLOAT32 ? new FloatMatrix(b) : b);
+					// Compare against the heap product of the same (possibly rounded) values.
+					Matrix expected = referenceMatmul(offA.toDouble(), offB.toDouble());
+					double tolerance = TOLERANCE*shape[1];
+					org.junit.Assert.assertArrayEquals(expected.data, offA.toDouble().matmul(offB).data, tolerance);
+					org.junit.Assert.assertArrayEquals(expected.data, offA.matmul(offB).data, tolerance);
+					org.junit.Assert.assertArrayEquals(expected.data, offA.toDouble().transpose().matmulTransposeLeft(offB).data, tolerance);
+					org.junit.Assert.assertArrayEquals(expected.data, offA.matmulTransposeRight(offB.toDouble().transpose()).data, tolerance);
+					org.junit.Assert.assertArrayEquals(expected.data, offA.toDouble().matmulTransposeRight(arena.copyOf(offB.toDouble().transpose())).data, tolerance);
+				}
+			}
+
+			m = arena.allocate(3, 4, Precision.FLOAT64);
+			m.fill(2.0);
+			m.axpy_i(0.5, Matrix.ones(3, 4));
+			m.elementOp_i(v -> v*v);
+			org.junit.Assert.assertEquals(6.25, m.get(2, 3), 0.0);
+			// 50000*50000*8 overflows an int.  It has to be refused, not wrapped around to a small buffer.
+			try {
+				arena.allocate(50000, 50000, Precision.FLOAT64);
+				org.junit.Assert.fail("Allocated a matrix bigger than one ByteBuffer.");
+			} catch(IllegalArgumentException expected) {
+			}
+		}
+		// Closing the arena closed everything it handed out.
+		org.junit.Assert.assertTrue(m.isClosed());
+		try {
+			m.get(0, 0);
+			org.junit.Assert.fail("Read from a closed OffHeapMatrix.");
+		} catch(IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void testKernelsMatchScalar() {
+		// Trivially true unless the vector kernels were picked up (JDK 16+ with --add-modules jdk.incubator.vector).
+		Kernels fast = Kernels.get();
+		Kernels scalar = Kernels.scalar();
+		Random random = new Random(1357);
+		for(int n : new int[]{1, 3, 4, 17, 1000}) {
+			double[] a = new double[n+3];
+			double[] b = new double[n+3];
+			for(int i=0; i < a.length; i++) {
+				a[i] = random.nextGaussian();
+				b[i] = random.nextGaussian();
+			}
+			double[] expected = new double[n];
+			double[] got = new double[n];
+			scalar.add(a, 1, b, 3, expected, 0, n);
+			fast.add(a, 1, b, 3, got, 0, n);
+			org.junit.Assert.assertArrayEquals(expected, got, 0.0);
+			scalar.sub(a, 1, b, 3, expected, 0, n);
+			fast.sub(a, 1, b, 3, got, 0, n);
+			org.junit.Assert.assertArrayEquals(expected, got, 0.0);
+			scalar.mul(a, 1, b, 3, expected, 0, n);
+			fast.mul(a, 1, b, 3, got, 0, n);
+			org.junit.Assert.assertArrayEquals(expected, got, 0.0);
+			scalar.scale(0.3, a, 2, expected, 0, n);
+			fast.scale(0.3, a, 2, got, 0, n);
+			org.junit.Assert.assertArrayEquals(expected, got, 0.0);
+			scalar.axpy(-1.5, b, 1, expected, 0, n);
+			fast.axpy(-1.5, b, 1, got, 0, n);
+			org.junit.Assert.assertArrayEquals(expected, got, 0.0);
+			org.junit.Assert.assertEquals(scalar.sum(a, 2, n), fast.sum(a, 2, n), TOLERANCE*n);
+			org.junit.Assert.assertEquals(scalar.dot(a, 3, b, 0, n), fast.dot(a, 3, b, 0, n), TOLERANCE*n);
+		}
+
+		// Every edge shape of the GEMM tile.
+		int kc = 37;
+		double[] pa = new double[4*kc];
+		double[] pb = new double[4*kc];
+		for(int i=0; i < pa.length; i++) {
+			pa[i] = random.nextGaussian();
+			pb[i] = random.nextGaussian();
+		}
+		for(int rows=1; rows <= 4; rows++) {
+			for(int columns=1; columns <= 4; columns++) {
+				double[] expected = new double[6*5];
+				double[] got = new double[6*5];
+				scalar.gemmTile(kc, pa, 0, pb, 0, expected, 6, 5, rows, columns);
+				fast.gemmTile(kc, pa, 0, pb, 0, got, 6, 5, rows, columns);
+				org.junit.Assert.assertArrayEquals(expected, got, TOLERANCE*kc);
+			}
+		}
+	}
+}
@@ -1,10 +1,23 @@
+import com.josephcatrambone.aij.Graph;
+import com.josephcatrambone.aij.Matrix;
+import com.josephcatrambone.aij.OffHeapArena;
+import com.josephcatrambone.aij.OffHeapMatrix;
+import com.josephcatrambone.aij.Precision;
+import com.josephcatrambone.aij.data.Batch;
+import com.josephcatrambone.aij.data.BatchLoader;
+import com.josephcatrambone.aij.data.MappedDataStream;
+import com.josephcatrambone.aij.models.BatchingPredictor;
 import com.josephcatrambone.aij.models.Sequential;
 import com.josephcatrambone.aij.nodes.PadCropNode;
+import com.josephcatrambone.aij.nodes.VariableNode;
 import org.junit.Test;
 import org.junit.Assume;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -27,6 +40,274 @@ public class ModelTest {
 		m2.restoreFromString(model);
 	}
 
+	@Test
+	public void saveRestoreCheckpointTest() throws IOException {
+		Sequential m = new Sequential(20, 20);
+		m.addConvLayer(1, 2, 2, 1, 1, Sequential.Activation.NONE);
+		m.addFlattenLayer();
+		m.addDenseLayer(10, Sequential.Activation.TANH);
+		m.addDenseLayer(3, Sequential.Activation.SIGMOID);
+
+		double[] x = new double[20*20];
+		for(int i=0; i < x.length; i++) {
+			x[i] = Math.sin(i);
+		}
+		m.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED); // Names the input and output for restore.
+
+		File checkpoint = File.createTempFile("aij", ".ckpt");
+		checkpoint.deleteOnExit();
+		m.saveCheckpoint(checkpoint.toPath());
+		Sequential m2 = new Sequential(20, 20);
+		m2.restoreCheckpoint(checkpoint.toPath());
+
+		org.junit.Assert.assertArrayEquals(m.predict(x), m2.predict(x), 0.0);
+	}
+
+	@Test
+	public void concurrentPredictTest() throws InterruptedException {
+		Sequential m = new Sequential(1, 8);
+		m.addDenseLayer(16, Sequential.Activation.TANH);
+		m.addDropoutLayer(0.5);
+		m.addDenseLayer(4, Sequential.Activation.SIGMOID);
+
+		double[][] x = new double[5][8];
+		for(int i=0; i < x.length; i++) {
+			for(int j=0; j < x[i].length; j++) {
+				x[i][j] = Math.sin(i*8+j);
+			}
+		}
+		// Inference is deterministic with dropout off, so every thread has to see exactly these.
+		double[][] expected = m.predict(x);
+		double[] expectedSingle = m.predict(x[2]);
+		org.junit.Assert.assertArrayEquals(expected[2], expectedSingle, 1e-12);
+
+		Thread[] threads = new Thread[8];
+		boolean[] ok = new boolean[threads.length];
+		for(int t=0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread(() -> {
+				boolean matched = true;
+				for(int i=0; i < 200; i++) {
+					double[][] batch = m.predict(x);
+					double[] single = m.predict(x[2]);
+					for(int j=0; j < x.length; j++) {
+						matched &= java.util.Arrays.equals(expected[j], batch[j]);
+					}
+					matched &= java.util.Arrays.equals(expectedSingle, single);
+				}
+				ok[index] = matched;
+			});
+			threads[t].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		for(boolean b : ok) {
+			org.junit.Assert.assertTrue(b);
+		}
+	}
+
+	@Test
+	public void batchingPredictorTest() throws Exception {
+		Sequential m = new Sequential(1, 8);
+		m.addDenseLayer(16, Sequential.Activation.TANH);
+		m.addDenseLayer(4, Sequential.Activation.SIGMOID);
+
+		double[][] x = new double[64][8];
+		for(int i=0; i < x.length; i++) {
+			for(int j=0; j < x[i].length; j++) {
+				x[i][j] = Math.cos(i+3*j);
+			}
+		}
+		double[][] expected = m.predict(x);
+
+		try(BatchingPredictor predictor = new BatchingPredictor(m, 16, 20, TimeUnit.MILLISECONDS)) {
+			ArrayList<CompletableFuture<double[]>> results = new ArrayList<>();
+			for(double[] row : x) {
+				results.add(predictor.submit(row));
+			}
+			for(int i=0; i < x.length; i++) {
+				org.junit.Assert.assertArrayEquals(expected[i], results.get(i).get(), 1e-12);
+			}
+			BatchingPredictor.Metrics metrics = predictor.getMetrics();
+			System.out.println(metrics);
+			org.junit.Assert.assertEquals(x.length, metrics.requests);
+			org.junit.Assert.assertTrue(metrics.meanBatchSize > 1.0); // Queued all at once, so they should have been batched.
+			org.junit.Assert.assertTrue(metrics.maxLatency >= metrics.p99Latency && metrics.p99Latency >= metrics.p50Latency);
+
+			// A wrong-sized example is refused before it can end up in someone else's batch.
+			try {
+				predictor.submit(new double[9]);
+				org.junit.Assert.fail("Queued an example of the wrong size.");
+			} catch(IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void streamingDataTest() throws IOException {
+		// y = [x0 + x1] for 100 examples, written out the way a big dataset would be.
+		double[][] x = new double[100][2];
+		double[][] y = new double[100][1];
+		for(int i=0; i < x.length; i++) {
+			x[i][0] = i;
+			x[i][1] = Math.sin(i);
+			y[i][0] = x[i][0] + x[i][1];
+		}
+		File inputFile = File.createTempFile("aij", ".x");
+		File targetFile = File.createTempFile("aij", ".y");
+		inputFile.deleteOnExit();
+		targetFile.deleteOnExit();
+		MappedDataStream.write(inputFile.toPath(), x, Precision.FLOAT64);
+		MappedDataStream.write(targetFile.toPath(), y, Precision.FLOAT64);
+
+		try(MappedDataStream stream = new MappedDataStream(inputFile.toPath(), targetFile.toPath(), 2, 1, Precision.FLOAT64)) {
+			org.junit.Assert.assertEquals(x.length, stream.size());
+			for(int prefetch=0; prefetch < 3; prefetch++) {
+				// Every example exactly once per epoch, still paired with its own target, and not in file order.
+				boolean[] seen = new boolean[x.length];
+				int count = 0;
+				boolean shuffled = false;
+				try(BatchLoader batches = new BatchLoader(stream, 16, 32, prefetch, 1234)) {
+					while(batches.hasNext()) {
+						Batch b = batches.next();
+						org.junit.Assert.assertTrue(b.size() <= 16);
+						for(int i=0; i < b.size(); i++) {
+							int index = (int)b.x[i][0];
+							org.junit.Assert.assertFalse(seen[index]);
+							seen[index] = true;
+							org.junit.Assert.assertEquals(y[index][0], b.y[i][0], 0.0);
+							shuffled |= index != count;
+							count++;
+						}
+					}
+				}
+				org.junit.Assert.assertEquals(x.length, count);
+				org.junit.Assert.assertTrue(shuffled);
+			}
+
+			// Closing mid-epoch stops the prefetch thread without breaking the stream for the next loader.
+			for(int i=0; i < 20; i++) {
+				try(BatchLoader batches = new BatchLoader(stream, 4, 0, 2, i)) {
+					batches.next();
+				}
+			}
+
+			Sequential m = new Sequential(1, 2);
+			m.addDenseLayer(1, Sequential.Activation.NONE);
+			try(BatchLoader batches = new BatchLoader(stream, 10)) {
+				org.junit.Assert.assertEquals(x.length, m.fitBatches(batches, 1e-4, Sequential.Loss.SQUARED));
+			}
+		}
+	}
+
+	@Test
+	public void float32CheckpointTest() throws IOException {
+		Sequential m = new Sequential(1, 20);
+		m.addDenseLayer(10, Sequential.Activation.TANH);
+		m.addDenseLayer(3, Sequential.Activation.SIGMOID);
+
+		double[] x = new double[20];
+		for(int i=0; i < x.length; i++) {
+			x[i] = Math.sin(i);
+		}
+		m.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED);
+		double[] full = m.predict(x);
+
+		m.setPrecision(Precision.FLOAT32);
+		double[] rounded = m.predict(x);
+		org.junit.Assert.assertArrayEquals(full, rounded, 1e-5);
+		m.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED); // Updates land in the float storage.
+		org.junit.Assert.assertTrue(rounded[1] != m.predict(x)[1]);
+
+		File checkpoint = File.createTempFile("aij", ".ckpt");
+		checkpoint.deleteOnExit();
+		m.saveCheckpoint(checkpoint.toPath());
+		Sequential m2 = new Sequential(1, 20);
+		m2.restoreCheckpoint(checkpoint.toPath());
+
+		org.junit.Assert.assertArrayEquals(m.predict(x), m2.predict(x), 0.0);
+	}
+
+	@Test
+	public void mappedCheckpointTest() throws IOException {
+		Sequential m = new Sequential(1, 20);
+		m.addDenseLayer(10, Sequential.Activation.TANH);
+		m.addDenseLayer(3, Sequential.Activation.SIGMOID);
+
+		double[] x = new double[20];
+		for(int i=0; i < x.length; i++) {
+			x[i] = Math.cos(i);
+		}
+		m.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED);
+
+		File checkpoint = File.createTempFile("aij", ".ckpt");
+		checkpoint.deleteOnExit();
+		m.saveCheckpoint(checkpoint.toPath());
+		try(OffHeapArena arena = new OffHeapArena()) {
+			Sequential m2 = new Sequential(1, 20);
+			m2.restoreCheckpoint(checkpoint.toPath(), arena);
+			org.junit.Assert.assertArrayEquals(m.predict(x), m2.predict(x), 0.0);
+
+			// Training writes to the private mapping, never back to the file.
+			m2.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED);
+			m.fit(x, new double[]{0, 1, 0}, 0.1, Sequential.Loss.SQUARED);
+			org.junit.Assert.assertArrayEquals(m.predict(x), m2.predict(x), 1e-12);
+			Sequential m3 = new Sequential(1, 20);
+			m3.restoreCheckpoint(checkpoint.toPath());
+			org.junit.Assert.assertTrue(m3.predict(x)[1] != m2.predict(x)[1]);
+		}
+	}
+
+	@Test
+	public void mappedCheckpointBiggerThanHeapTest() throws Exception {
+		// 96 MB of weights, restored through an arena by a JVM with a 24 MB heap.
+		final int rows = 2048;
+		final int columns = 4096;
+		File checkpoint = File.createTempFile("aij", ".ckpt");
+		checkpoint.deleteOnExit();
+		try(OffHeapArena arena = new OffHeapArena()) {
+			OffHeapMatrix doubles = arena.allocate(rows, columns, Precision.FLOAT64);
+			OffHeapMatrix floats = arena.allocate(rows, columns, Precision.FLOAT32);
+			doubles.fill(0.25);
+			doubles.set(rows-1, columns-1, 3.0);
+			floats.fill(-0.5);
+			Graph g = new Graph();
+			g.addNode(new VariableNode(doubles));
+			g.addNode(new VariableNode(floats));
+			g.saveCheckpoint(checkpoint.toPath());
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process restore = new ProcessBuilder(java, "-Xmx24m", "-cp", System.getProperty("java.class.path"), CappedHeapRestore.class.getName(), checkpoint.getPath())
+			.redirectErrorStream(true)
+			.start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = restore.getInputStream();
+		byte[] buffer = new byte[4096];
+		for(int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+			output.write(buffer, 0, read);
+		}
+		org.junit.Assert.assertTrue(restore.waitFor(60, TimeUnit.SECONDS));
+		org.junit.Assert.assertEquals(output.toString(), 0, restore.exitValue());
+	}
+
+	// Run in its own JVM by mappedCheckpointBiggerThanHeapTest.
+	public static class CappedHeapRestore {
+		public static void main(String[] args) throws IOException {
+			Graph g = new Graph();
+			try(OffHeapArena arena = new OffHeapArena()) {
+				g.restoreCheckpoint(new File(args[0]).toPath(), arena);
+				Matrix doubles = ((VariableNode)g.nodes.get(0)).getVariable();
+				Matrix floats = ((VariableNode)g.nodes.get(1)).getVariable();
+				if(doubles.getPrecision() != Precision.FLOAT64 || floats.getPrecision() != Precision.FLOAT32
+						|| doubles.get(0, 0) != 0.25 || doubles.get(doubles.rows-1, doubles.columns-1) != 3.0 || floats.get(5, 7) != -0.5) {
+					throw new AssertionError("Restored the wrong weights.");
+				}
+			}
+		}
+	}
+
 	@Test
 	public void testXORSerial() {
 		testXOR(false);
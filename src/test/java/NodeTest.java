@@ -83,6 +83,82 @@ public class NodeTest {
 		testGradient(new AbsNode(x), values, 0.01f, 0.2f);
 	}
 
+	@Test
+	public void testLSTMCellGradient() {
+		// Two chained cells, so the gradient has to flow back through the previous state too.
+		final int h = 3;
+		Graph g = new Graph();
+		InputNode x0 = new InputNode(2, 4);
+		InputNode x1 = new InputNode(2, 4);
+		InputNode state = new InputNode(2, 3*h);
+		VariableNode wx = new VariableNode(new Matrix(4, 4*h, (i,j) -> 0.3*Math.sin(i+2*j)));
+		VariableNode wh = new VariableNode(new Matrix(h, 4*h, (i,j) -> 0.3*Math.cos(3*i+j)));
+		VariableNode bias = new VariableNode(new Matrix(1, 4*h, (i,j) -> 0.1*j - 0.5));
+		Node first = new LSTMCellNode(x0, state, wx, wh, bias);
+		Node second = new LSTMCellNode(x1, first, wx, wh, bias);
+		Node loss = g.addNode(new CollapseSumNode(new MultiplyNode(second, new VariableNode(new Matrix(2, 3*h, (i,j) -> 1.0+i-0.3*j)))));
+
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(x0, new Matrix(2, 4, (i,j) -> Math.sin(i*j+1)));
+		inputFeed.put(x1, new Matrix(2, 4, (i,j) -> Math.cos(i+j)));
+		inputFeed.put(state, new Matrix(2, 3*h, (i,j) -> 0.2*(i-j)));
+		Matrix[] grads = g.getGradient(inputFeed, null, loss, x0, state, wx, wh, bias);
+
+		final double dx = 1e-5;
+		for(Node n : new Node[]{x0, state, wx, wh, bias}) {
+			Matrix value = n instanceof VariableNode ? ((VariableNode)n).getVariable() : inputFeed.get(n);
+			for(int i=0; i < value.data.length; i++) {
+				double original = value.data[i];
+				value.data[i] = original + dx;
+				double above = g.forward(inputFeed)[loss.id].data[0];
+				value.data[i] = original - dx;
+				double below = g.forward(inputFeed)[loss.id].data[0];
+				value.data[i] = original;
+				Assert.assertEquals((above-below)/(2*dx), grads[n.id].data[i], 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void testLSTMSequenceMatchesCells() {
+		// Three steps of two examples, once as chained cells and once as one sequence over the stacked inputs.
+		final int h = 3;
+		final int steps = 3;
+		Graph g = new Graph();
+		InputNode state = new InputNode(2, 3*h);
+		VariableNode wx = new VariableNode(new Matrix(4, 4*h, (i,j) -> 0.3*Math.sin(i+2*j)));
+		VariableNode wh = new VariableNode(new Matrix(h, 4*h, (i,j) -> 0.3*Math.cos(3*i+j)));
+		VariableNode bias = new VariableNode(new Matrix(1, 4*h, (i,j) -> 0.1*j - 0.5));
+		HashMap<Node, Matrix> inputFeed = new HashMap<>();
+		inputFeed.put(state, new Matrix(2, 3*h, (i,j) -> 0.2*(i-j)));
+
+		InputNode stacked = new InputNode(2*steps, 4);
+		inputFeed.put(stacked, new Matrix(2*steps, 4, (i,j) -> Math.sin(i*j+1)));
+		Node sequence = new LSTMSequenceNode(new MatrixMultiplyNode(stacked, wx), state, wh, bias);
+		Node weights = new VariableNode(new Matrix(2*steps, 3*h, (i,j) -> 1.0+i-0.3*j));
+		Node sequenceLoss = g.addNode(new CollapseSumNode(new MultiplyNode(sequence, weights)));
+
+		Node cellLoss = null;
+		Node previous = state;
+		for(int t=0; t < steps; t++) {
+			InputNode x = new InputNode(2, 4);
+			inputFeed.put(x, inputFeed.get(stacked).getSlice(2*t, 2*t+2, 0, 4));
+			previous = new LSTMCellNode(x, previous, wx, wh, bias);
+			Node stepWeights = new VariableNode(((VariableNode)weights).getVariable().getSlice(2*t, 2*t+2, 0, 3*h));
+			Node stepLoss = new CollapseSumNode(new MultiplyNode(previous, stepWeights));
+			cellLoss = cellLoss == null ? stepLoss : new AddNode(cellLoss, stepLoss);
+		}
+		g.addNode(cellLoss);
+
+		Matrix[] fwd = g.forward(inputFeed);
+		Assert.assertEquals(fwd[cellLoss.id].data[0], fwd[sequenceLoss.id].data[0], 1e-10);
+		Matrix[] sequenceGrads = g.getGradient(inputFeed, null, sequenceLoss, state, wx, wh, bias);
+		Matrix[] cellGrads = g.getGradient(inputFeed, null, cellLoss, state, wx, wh, bias);
+		for(Node n : new Node[]{state, wx, wh, bias}) {
+			Assert.assertArrayEquals(cellGrads[n.id].data, sequenceGrads[n.id].data, 1e-10);
+		}
+	}
+
 	@Test
 	public void testConvolution() {
 		Node x = new InputNode(5, 5);
@@ -157,6 +233,92 @@ public class NodeTest {
 		}
 	}
 
+	@Test
+	public void testParallelConvolutionMatchesSerial() {
+		Random random = new Random(1357);
+		Matrix image = new Matrix(96, 80, (i,j) -> random.nextGaussian());
+		Matrix[] kernels = new Matrix[4];
+		for(int k=0; k < kernels.length; k++) {
+			kernels[k] = new Matrix(5, 5, (i,j) -> random.nextGaussian());
+		}
+		Node x = new InputNode(96, 80);
+		VariableNode[] kernelNodes = new VariableNode[kernels.length];
+		for(int k=0; k < kernels.length; k++) {
+			kernelNodes[k] = new VariableNode(kernels[k]);
+		}
+		Node[] nodes = new Node[]{ new Convolution2DNode(x, kernelNodes, 2, 1), new Deconvolution2DNode(x, kernelNodes, 2, 1) };
+
+		int oldThreadCount = ComputePool.getThreadCount();
+		try {
+			for(Node node : nodes) {
+				Matrix[] args = new Matrix[1+kernels.length];
+				args[0] = image;
+				System.arraycopy(kernels, 0, args, 1, kernels.length);
+				Matrix adjoint = new Matrix(node.rows, node.columns, (i,j) -> random.nextGaussian());
+
+				ComputePool.setThreadCount(1);
+				Matrix serialOutput = node.forward(args);
+				Matrix[] serialAdjoints = node.reverse(args, adjoint);
+				ComputePool.setThreadCount(4);
+				Matrix parallelOutput = node.forward(args);
+				Matrix[] parallelAdjoints = node.reverse(args, adjoint);
+
+				Assert.assertArrayEquals(serialOutput.data, parallelOutput.data, 1e-9);
+				for(int i=0; i < serialAdjoints.length; i++) {
+					Assert.assertArrayEquals(serialAdjoints[i].data, parallelAdjoints[i].data, 1e-9);
+				}
+			}
+		} finally {
+			ComputePool.setThreadCount(oldThreadCount);
+		}
+	}
+
+	@Test
+	public void testConvolutionAlgorithmsAgree() {
+		Random random = new Random(9753);
+		// rows, columns, kernel rows, kernel columns, row stride, column stride, kernels.
+		int[][] configurations = new int[][] {
+			{7, 6, 3, 3, 1, 1, 2},
+			{13, 11, 9, 9, 1, 1, 3},
+			{13, 11, 9, 6, 2, 1, 2},
+			{20, 17, 5, 4, 3, 2, 2}
+		};
+		for(int[] config : configurations) {
+			Node x = new InputNode(config[0], config[1]*config[6]);
+			Matrix[] args = new Matrix[1+config[6]];
+			VariableNode[] kernelNodes = new VariableNode[config[6]];
+			args[0] = new Matrix(config[0], config[1]*config[6], (i,j) -> random.nextGaussian());
+			for(int k=0; k < config[6]; k++) {
+				args[1+k] = new Matrix(config[2], config[3], (i,j) -> random.nextGaussian());
+				kernelNodes[k] = new VariableNode(args[1+k]);
+			}
+			Convolution2DNode conv = new Convolution2DNode(x, kernelNodes, config[4], config[5]);
+			Deconvolution2DNode deconv = new Deconvolution2DNode(x, kernelNodes, config[4], config[5]);
+			Matrix convAdjoint = new Matrix(conv.rows, conv.columns, (i,j) -> random.nextGaussian());
+			Matrix deconvAdjoint = new Matrix(deconv.rows, deconv.columns, (i,j) -> random.nextGaussian());
+
+			conv.algorithm = Convolution2DNode.Algorithm.DIRECT;
+			deconv.algorithm = Convolution2DNode.Algorithm.DIRECT;
+			Matrix convExpected = conv.forward(args);
+			Matrix[] convExpectedAdjoints = conv.reverse(args, convAdjoint);
+			Matrix deconvExpected = deconv.forward(args);
+			Matrix[] deconvExpectedAdjoints = deconv.reverse(args, deconvAdjoint);
+
+			for(Convolution2DNode.Algorithm algorithm : new Convolution2DNode.Algorithm[]{Convolution2DNode.Algorithm.WINOGRAD, Convolution2DNode.Algorithm.FFT}) {
+				conv.algorithm = algorithm;
+				deconv.algorithm = algorithm;
+				Assert.assertArrayEquals(convExpected.data, conv.forward(args).data, 1e-9);
+				Assert.assertArrayEquals(deconvExpected.data, deconv.forward(args).data, 1e-9);
+				Matrix[] convAdjoints = conv.reverse(args, convAdjoint);
+				Matrix[] deconvAdjoints = deconv.reverse(args, deconvAdjoint);
+				for(int i=0; i < args.length; i++) {
+					Assert.assertArrayEquals(convExpectedAdjoints[i].data, convAdjoints[i].data, 1e-9);
+					Assert.assertArrayEquals(deconvExpectedAdjoints[i].data, deconvAdjoints[i].data, 1e-9);
+				}
+			}
+		}
+	}
+
 	@Test
 	public void resizeTest() {
 		Node input = new InputNode(2, 3);
@@ -0,0 +1,139 @@
+package com.josephcatrambone.aij;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels implemented with the incubating Vector API.  Loaded reflectively by Kernels.get(), never referenced directly,
+ * so the main source set doesn't need the module to compile or run.
+ * Each loop does whole vectors of the preferred width, then finishes the tail with scalar code.
+ */
+public class VectorKernels extends Kernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	// The GEMM tile is 4 columns wide.  Only worth vectorizing when the hardware really has 256-bit doubles.
+	private static final VectorSpecies<Double> TILE_SPECIES = DoubleVector.SPECIES_256;
+	private static final boolean VECTOR_TILE = SPECIES.length() >= 4;
+
+	public VectorKernels() {}
+
+	@Override
+	public void add(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset+i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset+i);
+			va.add(vb).intoArray(out, outOffset+i);
+		}
+		for(; i < n; i++) { out[outOffset+i] = a[aOffset+i] + b[bOffset+i]; }
+	}
+
+	@Override
+	public void sub(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset+i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset+i);
+			va.sub(vb).intoArray(out, outOffset+i);
+		}
+		for(; i < n; i++) { out[outOffset+i] = a[aOffset+i] - b[bOffset+i]; }
+	}
+
+	@Override
+	public void mul(double[] a, int aOffset, double[] b, int bOffset, double[] out, int outOffset, int n) {
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset+i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset+i);
+			va.mul(vb).intoArray(out, outOffset+i);
+		}
+		for(; i < n; i++) { out[outOffset+i] = a[aOffset+i] * b[bOffset+i]; }
+	}
+
+	@Override
+	public void scale(double alpha, double[] x, int xOffset, double[] out, int outOffset, int n) {
+		int i = 0;
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, x, xOffset+i).mul(alpha).intoArray(out, outOffset+i);
+		}
+		for(; i < n; i++) { out[outOffset+i] = alpha*x[xOffset+i]; }
+	}
+
+	@Override
+	public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int n) {
+		int i = 0;
+		// Multiply then add rather than fma, so the result matches the scalar kernel exactly.
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset+i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset+i);
+			vy.add(vx.mul(alpha)).intoArray(y, yOffset+i);
+		}
+		for(; i < n; i++) { y[yOffset+i] += alpha*x[xOffset+i]; }
+	}
+
+	@Override
+	public double sum(double[] x, int offset, int n) {
+		int i = 0;
+		DoubleVector accumulator = DoubleVector.zero(SPECIES);
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			accumulator = accumulator.add(DoubleVector.fromArray(SPECIES, x, offset+i));
+		}
+		double total = accumulator.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++) { total += x[offset+i]; }
+		return total;
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		int i = 0;
+		DoubleVector accumulator = DoubleVector.zero(SPECIES);
+		for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset+i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset+i);
+			accumulator = va.fma(vb, accumulator);
+		}
+		double total = accumulator.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++) { total += a[aOffset+i]*b[bOffset+i]; }
+		return total;
+	}
+
+	/***
+	 * One 4-wide vector per row of the tile.  Each step broadcasts an element of the A strip against the B strip row.
+	 */
+	@Override
+	public void gemmTile(int kc, double[] pa, int aIndex, double[] pb, int bIndex, double[] c, int cIndex, int cRowStride, int rows, int columns) {
+		if(!VECTOR_TILE) {
+			super.gemmTile(kc, pa, aIndex, pb, bIndex, c, cIndex, cRowStride, rows, columns);
+			return;
+		}
+		DoubleVector c0 = DoubleVector.zero(TILE_SPECIES);
+		DoubleVector c1 = DoubleVector.zero(TILE_SPECIES);
+		DoubleVector c2 = DoubleVector.zero(TILE_SPECIES);
+		DoubleVector c3 = DoubleVector.zero(TILE_SPECIES);
+		for(int p=0; p < kc; p++) {
+			DoubleVector b = DoubleVector.fromArray(TILE_SPECIES, pb, bIndex);
+			c0 = DoubleVector.broadcast(TILE_SPECIES, pa[aIndex]).fma(b, c0);
+			c1 = DoubleVector.broadcast(TILE_SPECIES, pa[aIndex+1]).fma(b, c1);
+			c2 = DoubleVector.broadcast(TILE_SPECIES, pa[aIndex+2]).fma(b, c2);
+			c3 = DoubleVector.broadcast(TILE_SPECIES, pa[aIndex+3]).fma(b, c3);
+			aIndex += 4;
+			bIndex += 4;
+		}
+
+		if(rows == 4 && columns == 4) {
+			addInto(c0, c, cIndex);
+			addInto(c1, c, cIndex + cRowStride);
+			addInto(c2, c, cIndex + 2*cRowStride);
+			addInto(c3, c, cIndex + 3*cRowStride);
+		} else {
+			addRow(c, cIndex, columns, c0.lane(0), c0.lane(1), c0.lane(2), c0.lane(3));
+			if(rows > 1) { addRow(c, cIndex + cRowStride, columns, c1.lane(0), c1.lane(1), c1.lane(2), c1.lane(3)); }
+			if(rows > 2) { addRow(c, cIndex + 2*cRowStride, columns, c2.lane(0), c2.lane(1), c2.lane(2), c2.lane(3)); }
+			if(rows > 3) { addRow(c, cIndex + 3*cRowStride, columns, c3.lane(0), c3.lane(1), c3.lane(2), c3.lane(3)); }
+		}
+	}
+
+	private static void addInto(DoubleVector v, double[] c, int index) {
+		DoubleVector.fromArray(TILE_SPECIES, c, index).add(v).intoArray(c, index);
+	}
+}